@@ -32,7 +32,7 @@ function App() {
   const [builds, setState] = useState([]);
 
   useEffect(() => {
-    axios.get(env.REACT_APP_PROXY + env.REACT_APP_URL + "/ci/get")
+    axios.get(env.REACT_APP_PROXY + env.REACT_APP_URL + "/ci/summaries")
     .then((res) => {
       setState(res['data'])
     })
@@ -1,9 +1,12 @@
-import React from 'react';
+import React, { useEffect, useState } from 'react';
 import './../App.css';
 import Build from '../components/Build'
 import Typography from '@material-ui/core/Typography';
 import 'typeface-roboto';
 import { makeStyles } from '@material-ui/core/styles';
+import axios from 'axios';
+
+import env from './../env';
 
 // Color scheme: https://coolors.co/06aed5-086788-f0c808-fff1d0-dd1c1a
 
@@ -16,12 +19,42 @@ const useStyles = makeStyles(theme => ({
 }));
 
 /**
- * Displays the information of one build. 
+ * Displays the information of one build. The list only holds summaries,
+ * so the full build with its log is fetched here.
  */
 export default function BuildInfo(props) {
   const classes = useStyles();
-  const tempBuilds = props.builds;
-  const build = tempBuilds.find(build => build.jobID === props.location.pathname.slice(7, props.location.pathname.length));
+  const [build, setBuild] = useState(null);
+  const jobID = props.location.pathname.slice(7, props.location.pathname.length);
+
+  useEffect(() => {
+    axios.get(env.REACT_APP_PROXY + env.REACT_APP_URL + "/ci/builds/" + jobID)
+    .then((res) => {
+      setBuild(res['data'])
+    })
+    .catch((e) => {
+      setBuild(null);
+    })
+
+  }, [jobID])
+
+  // Follow the output of a running build until it finishes
+  const [liveLog, setLiveLog] = useState([]);
+  const running = build && build.status === "pending";
+  useEffect(() => {
+    if (!running) {
+      return;
+    }
+    const source = new EventSource(env.REACT_APP_PROXY + env.REACT_APP_URL + "/ci/builds/" + jobID + "/log/stream");
+    source.onmessage = (e) => setLiveLog(lines => lines.concat([e.data]));
+    source.addEventListener("end", () => {
+      source.close();
+      axios.get(env.REACT_APP_PROXY + env.REACT_APP_URL + "/ci/builds/" + jobID)
+      .then((res) => setBuild(res['data']))
+      .catch(() => {});
+    });
+    return () => source.close();
+  }, [jobID, running])
 
   return (
       <header className="App-header">
@@ -38,6 +71,22 @@ export default function BuildInfo(props) {
               }</p>
               <p style={{fontSize: "24px", color: "black"}}>SHA: {build.commitSha}</p>
               <p style={{fontSize: "24px", color: "black"}}>Build date: {build.date}</p>
+              {build.steps && build.steps.map(step =>
+                <p style={{fontSize: "20px", color: "black"}}>{step.name}: {
+                  step.status === "success" ?
+                    <span style={{color: "green"}}>{step.status}</span> :
+                    <span style={{color: "red"}}>{step.status}</span>
+                } ({(step.millis / 1000).toFixed(1)} s{step.usage &&
+                  ", " + ((step.usage.userMillis + step.usage.systemMillis) / 1000).toFixed(1) + " s CPU, "
+                  + Math.round(step.usage.peakRssBytes / 1048576) + " MB"}{step.limit && ", over the " + step.limit + " limit"})</p>
+              )}
+              {build.cells && build.cells.map(cell =>
+                <p style={{fontSize: "20px", color: "black"}}>{cell.name}: {
+                  cell.status === "success" ?
+                    <span style={{color: "green"}}>{cell.status}</span> :
+                    <span style={{color: "red"}}>{cell.status}</span>
+                } ({(cell.millis / 1000).toFixed(1)} s)</p>
+              )}
             <Typography
                     component="p"
                     variant="h4"
@@ -47,6 +96,7 @@ export default function BuildInfo(props) {
             </Typography>
             <ul style={{textAlign: "left"}}>
               {build.log.map(logEntry => <li>{logEntry.map(ln => <p style={{fontSize: "16px", color: "black"}}>{ln}</p>)} </li>)}
+              {running && <li>{liveLog.map(ln => <p style={{fontSize: "16px", color: "black"}}>{ln}</p>)} </li>}
             </ul>
           </>
           }
@@ -0,0 +1,305 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generated builds and webhooks for the benchmarks. Build number i is the
+ * same on every run, so results of different commits are comparable.
+ * Databases are generated once into DATABASE_DIRECTORY and reused by
+ * later runs; delete it when the storage format changes.
+ */
+public class BenchmarkData {
+    public static String DATABASE_DIRECTORY = System.getProperty("jmh.db", "build/jmh-db");
+    public static int REPOS = 50;
+
+    private static final String[] STEP_NAMES = {"Build", "Test", "Lint", "Package"};
+    private static final Build.Result[] RESULTS = {
+            Build.Result.success, Build.Result.success, Build.Result.success, Build.Result.success,
+            Build.Result.failure, Build.Result.failure, Build.Result.error, Build.Result.superseded};
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param i - number of the build
+     * @return the jobID of build number i
+     */
+    public static String jobID(int i) {
+        return String.format("job-%08d", i);
+    }
+
+    /**
+     * A finished build as the server stores it: a short log, the tail of
+     * every step and the usage of every step. Every eighth build has a
+     * matrix of two cells instead of steps.
+     * @param i - number of the build
+     * @return the build
+     */
+    public static Build build(int i) {
+        Random random = new Random(i);
+        Build.Result status = RESULTS[random.nextInt(RESULTS.length)];
+        String jobID = jobID(i);
+        List<ArrayList<String>> log = new ArrayList<>();
+        log.add(new ArrayList<>(Collections.singletonList("Running build job with id " + jobID)));
+        log.add(new ArrayList<>(Collections.singletonList("Cloning repository.")));
+        log.add(new ArrayList<>(Collections.singletonList("Found build file.")));
+        List<StepResult> steps = steps(random, status);
+        for (StepResult step : steps) {
+            ArrayList<String> output = new ArrayList<>();
+            output.add("Step " + step.getName() + ":");
+            for (int line = 0; line < 20; line++) {
+                output.add("> Task :" + step.getName().toLowerCase() + " line " + line + " of build " + i);
+            }
+            log.add(output);
+        }
+        Build build = new Build(jobID, status, sha(random), "owner" + i % REPOS + "/repo" + i % REPOS, log,
+                String.format("2020-%02d-%02d %02d:%02d:%02d", 1 + i / 28 / 24 % 12, 1 + i / 24 % 28, i % 24, i % 60, i % 60));
+        build.setLogFile("build-logs/" + jobID + ".log");
+        if (i % 8 == 7) {
+            List<CellResult> cells = new ArrayList<>();
+            for (String jdk : Arrays.asList("8", "11")) {
+                Map<String, String> env = new LinkedHashMap<>();
+                env.put("JDK", jdk);
+                cells.add(new CellResult(Matrix.nameOf(env), env, status, steps(random, status),
+                        "build-logs/" + jobID + "-" + jdk + ".log", 60000 + random.nextInt(60000)));
+            }
+            build.setCells(cells);
+        } else {
+            build.setSteps(steps);
+        }
+        return build;
+    }
+
+    private static List<StepResult> steps(Random random, Build.Result status) {
+        List<StepResult> steps = new ArrayList<>();
+        long startedAt = 0;
+        int count = 2 + random.nextInt(STEP_NAMES.length - 1);
+        for (int s = 0; s < count; s++) {
+            long millis = 1000 + random.nextInt(60000);
+            boolean last = s == count - 1;
+            StepResult.Status stepStatus = status == Build.Result.failure && last
+                    ? StepResult.Status.failure : StepResult.Status.success;
+            ResourceUsage usage = new ResourceUsage(millis, millis / 2 + random.nextInt(10000), random.nextInt(3000),
+                    (256L + random.nextInt(1024)) * 1024 * 1024, random.nextInt(100000000), random.nextInt(50000000));
+            steps.add(new StepResult(STEP_NAMES[s], stepStatus, stepStatus == StepResult.Status.success ? 0 : 1,
+                    startedAt, millis, new ArrayList<>(), null, usage));
+            startedAt += millis;
+        }
+        return steps;
+    }
+
+    /**
+     * A build record as Storage keeps it, joined with its log.
+     * @param build - the build
+     * @return the record
+     */
+    public static JSONObject record(Build build) {
+        JSONObject data = new JSONObject();
+        data.put("status", build.getStatus());
+        data.put("commitSha", build.getCommitSha());
+        data.put("url", build.getUrl());
+        data.put("date", build.getDate());
+        data.put("logFile", build.getLogFile());
+        if (build.getSteps() != null) {
+            JSONArray steps = new JSONArray();
+            for (StepResult step : build.getSteps()) {
+                steps.put(step.toJSON());
+            }
+            data.put("steps", steps);
+        }
+        if (build.getCells() != null) {
+            JSONArray cells = new JSONArray();
+            for (CellResult cell : build.getCells()) {
+                cells.put(cell.toJSON());
+            }
+            data.put("cells", cells);
+        }
+        data.put("log", build.getLog());
+        return data;
+    }
+
+    /**
+     * Opens a database of the given number of builds, generating it on
+     * first use.
+     * @param builds - number of builds
+     * @return the database
+     * @throws Exception - if it cannot be generated
+     */
+    public static Storage database(int builds) throws Exception {
+        File directory = new File(DATABASE_DIRECTORY, "builds-" + builds);
+        File complete = new File(directory, "complete");
+        if (complete.exists()) {
+            return new Storage(directory.getPath(), new File(directory, "db.json").getPath());
+        }
+        MirrorCache.deleteRecursively(directory);
+        Storage storage = new Storage(directory.getPath(), new File(directory, "db.json").getPath());
+        // Several posts at once so the store writes them in batches
+        ExecutorService posters = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> posted = new ArrayList<>();
+            for (int i = 0; i < builds; i++) {
+                int n = i;
+                posted.add(posters.submit(() -> {
+                    storage.post(build(n));
+                    return null;
+                }));
+                if (posted.size() == 10000) {
+                    for (Future<?> post : posted) {
+                        post.get();
+                    }
+                    posted.clear();
+                }
+            }
+            for (Future<?> post : posted) {
+                post.get();
+            }
+        } finally {
+            posters.shutdown();
+        }
+        try (Writer writer = new FileWriter(complete)) {
+            writer.write(builds + "\n");
+        }
+        return storage;
+    }
+
+    /**
+     * A GitHub push webhook with all the fields GitHub sends.
+     * @param commits - number of commits in the push
+     * @return the payload
+     */
+    public static String push(int commits) {
+        Random random = new Random(commits);
+        String owner = "owner";
+        String name = "repo";
+        String api = "https://api.github.com/repos/" + owner + "/" + name;
+        JSONObject ownerJSON = user(owner, 1000);
+        JSONObject repository = new JSONObject()
+                .put("id", 240000000)
+                .put("node_id", "MDEwOlJlcG9zaXRvcnkyNDAwMDAwMDA=")
+                .put("name", name)
+                .put("full_name", owner + "/" + name)
+                .put("private", false)
+                .put("owner", ownerJSON)
+                .put("html_url", "https://github.com/" + owner + "/" + name)
+                .put("description", "Continuous integration server")
+                .put("fork", false)
+                .put("url", "https://github.com/" + owner + "/" + name);
+        for (String url : Arrays.asList("forks", "keys", "collaborators", "teams", "hooks", "issue_events", "events",
+                "assignees", "branches", "tags", "blobs", "git_tags", "git_refs", "trees", "statuses", "languages",
+                "stargazers", "contributors", "subscribers", "subscription", "commits", "git_commits", "comments",
+                "issue_comment", "contents", "compare", "merges", "archive", "downloads", "issues", "pulls",
+                "milestones", "notifications", "labels", "releases", "deployments")) {
+            repository.put(url + "_url", api + "/" + url + "{/id}");
+        }
+        repository.put("created_at", 1581500000)
+                .put("updated_at", "2020-02-12T10:00:00Z")
+                .put("pushed_at", 1581510000)
+                .put("git_url", "git://github.com/" + owner + "/" + name + ".git")
+                .put("ssh_url", "git@github.com:" + owner + "/" + name + ".git")
+                .put("clone_url", "https://github.com/" + owner + "/" + name + ".git")
+                .put("svn_url", "https://github.com/" + owner + "/" + name)
+                .put("homepage", JSONObject.NULL)
+                .put("size", 512)
+                .put("stargazers_count", 3)
+                .put("watchers_count", 3)
+                .put("language", "Java")
+                .put("has_issues", true)
+                .put("has_projects", true)
+                .put("has_downloads", true)
+                .put("has_wiki", true)
+                .put("has_pages", false)
+                .put("forks_count", 0)
+                .put("mirror_url", JSONObject.NULL)
+                .put("archived", false)
+                .put("disabled", false)
+                .put("open_issues_count", 12)
+                .put("license", JSONObject.NULL)
+                .put("forks", 0)
+                .put("open_issues", 12)
+                .put("watchers", 3)
+                .put("default_branch", "master")
+                .put("stargazers", 3)
+                .put("master_branch", "master");
+
+        JSONArray commitsJSON = new JSONArray();
+        String before = sha(random);
+        String after = before;
+        for (int c = 0; c < commits; c++) {
+            after = sha(random);
+            JSONObject author = new JSONObject().put("name", "Author " + c).put("email", "author" + c + "@example.com")
+                    .put("username", "author" + c);
+            commitsJSON.put(new JSONObject()
+                    .put("id", after)
+                    .put("tree_id", sha(random))
+                    .put("distinct", true)
+                    .put("message", "Change number " + c + "\n\nA longer description of what the change does and why.")
+                    .put("timestamp", "2020-02-12T11:00:00+01:00")
+                    .put("url", "https://github.com/" + owner + "/" + name + "/commit/" + after)
+                    .put("author", author)
+                    .put("committer", author)
+                    .put("added", new JSONArray().put("src/main/java/buildtools/File" + c + ".java"))
+                    .put("removed", new JSONArray())
+                    .put("modified", new JSONArray().put("README.md").put("build.gradle")));
+        }
+        return new JSONObject()
+                .put("ref", "refs/heads/master")
+                .put("before", before)
+                .put("after", after)
+                .put("repository", repository)
+                .put("pusher", new JSONObject().put("name", owner).put("email", owner + "@example.com"))
+                .put("sender", user(owner, 1000))
+                .put("created", false)
+                .put("deleted", false)
+                .put("forced", false)
+                .put("base_ref", JSONObject.NULL)
+                .put("compare", "https://github.com/" + owner + "/" + name + "/compare/" + before.substring(0, 12)
+                        + "..." + after.substring(0, 12))
+                .put("commits", commitsJSON)
+                .put("head_commit", commits > 0 ? commitsJSON.getJSONObject(commits - 1) : JSONObject.NULL)
+                .toString();
+    }
+
+    private static JSONObject user(String login, int id) {
+        String api = "https://api.github.com/users/" + login;
+        JSONObject user = new JSONObject()
+                .put("name", login)
+                .put("email", login + "@example.com")
+                .put("login", login)
+                .put("id", id)
+                .put("node_id", "MDQ6VXNlcjEwMDA=")
+                .put("avatar_url", "https://avatars.githubusercontent.com/u/" + id + "?v=4")
+                .put("gravatar_id", "")
+                .put("url", api)
+                .put("html_url", "https://github.com/" + login)
+                .put("type", "User")
+                .put("site_admin", false);
+        for (String url : Arrays.asList("followers", "following", "gists", "starred", "subscriptions",
+                "organizations", "repos", "events", "received_events")) {
+            user.put(url + "_url", api + "/" + url);
+        }
+        return user;
+    }
+
+    private static String sha(Random random) {
+        StringBuilder sha = new StringBuilder();
+        for (int c = 0; c < 40; c++) {
+            sha.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return sha.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files, e.g. of the commit before a change and
+ * of the change, benchmark by benchmark and parameter by parameter. A
+ * difference within the error of both runs is marked as noise.
+ * Run with: ./gradlew jmhCompare -Pbaseline=[results.json of the earlier run]
+ */
+public class BenchmarkDiff {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: BenchmarkDiff baseline.json results.json");
+            System.exit(2);
+        }
+        Map<String, JSONObject> baseline = read(new File(args[0]));
+        Map<String, JSONObject> results = read(new File(args[1]));
+        System.out.printf("%-60s %14s %14s %9s%n", "benchmark", "baseline", "now", "change");
+        for (Map.Entry<String, JSONObject> result : results.entrySet()) {
+            JSONObject now = result.getValue().getJSONObject("primaryMetric");
+            JSONObject before = baseline.containsKey(result.getKey())
+                    ? baseline.get(result.getKey()).getJSONObject("primaryMetric") : null;
+            String unit = now.getString("scoreUnit");
+            if (before == null) {
+                System.out.printf("%-60s %14s %14s %9s%n", result.getKey(), "-", format(now.getDouble("score"), unit), "new");
+                continue;
+            }
+            double change = (now.getDouble("score") - before.getDouble("score")) / before.getDouble("score") * 100;
+            boolean noise = Math.abs(now.getDouble("score") - before.getDouble("score"))
+                    <= error(now) + error(before);
+            System.out.printf("%-60s %14s %14s %+8.1f%%%s%n", result.getKey(), format(before.getDouble("score"), unit),
+                    format(now.getDouble("score"), unit), change, noise ? " (noise)" : "");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return every result, keyed by benchmark name and parameters
+     */
+    private static Map<String, JSONObject> read(File file) throws Exception {
+        JSONArray results = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Map<String, JSONObject> keyed = new LinkedHashMap<>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            String name = result.getString("benchmark").replaceFirst("^buildtools\\.", "");
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                name += new TreeMap<>(params.toMap()).toString();
+            }
+            keyed.put(name, result);
+        }
+        return keyed;
+    }
+
+    private static double error(JSONObject metric) {
+        double error = metric.optDouble("scoreError", 0);
+        return Double.isNaN(error) ? 0 : error;
+    }
+
+    private static String format(double score, String unit) {
+        return String.format("%.3f %s", score, unit);
+    }
+}
@@ -0,0 +1,59 @@
+package buildtools;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a stored build: the Build(String, JSONObject) constructor
+ * alone, and together with parsing the record's text as the store does.
+ * Build 0 has steps, build 7 a matrix of two cells.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuildBenchmark {
+    @Param({"0", "7"})
+    public int build;
+
+    private String jobID;
+    private JSONObject record;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        jobID = BenchmarkData.jobID(build);
+        record = BenchmarkData.record(BenchmarkData.build(build));
+        text = record.toString();
+    }
+
+    @Benchmark
+    public Build fromJSON() throws IOException {
+        return new Build(jobID, record);
+    }
+
+    @Benchmark
+    public Build fromText() throws IOException {
+        return new Build(jobID, new JSONObject(text));
+    }
+
+    @Benchmark
+    public String toText() {
+        return BenchmarkData.record(BenchmarkData.build(build)).toString();
+    }
+}
@@ -0,0 +1,135 @@
+package buildtools;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Compares a full clone per build with checkouts from a MirrorCache, on
+ * local fixture repositories with histories of different sizes. Bytes
+ * transferred are measured as the growth of the receiving object store.
+ * Not a JMH benchmark, each strategy is timed once; run with:
+ * ./gradlew cloneBenchmark [-Pargs='10 100 1000']
+ */
+public class CloneBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] histories = {10, 100, 1000};
+        if (args.length > 0) {
+            histories = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                histories[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%-8s %-26s %10s %12s %12s%n", "commits", "strategy", "millis", "transferred", "checkout");
+        for (int commits : histories) {
+            File dir = Files.createTempDirectory("clonebenchmark").toFile();
+            try {
+                run(dir, commits);
+            } finally {
+                MirrorCache.deleteRecursively(dir);
+            }
+        }
+        // JGit's FS keeps a non-daemon executor thread alive
+        System.exit(0);
+    }
+
+    private static void run(File dir, int commits) throws Exception {
+        File remoteDir = new File(dir, "remote");
+        Git remote = Git.init().setDirectory(remoteDir).call();
+        String url = remoteDir.toURI().toString();
+        RevCommit head = fixture(remote, commits);
+
+        long start = System.nanoTime();
+        File clone = new File(dir, "clone");
+        Git.cloneRepository().setURI(url).setDirectory(clone).setBranch("refs/heads/master").call().close();
+        report(commits, "full clone", start, size(new File(clone, ".git")), size(clone) - size(new File(clone, ".git")));
+
+        MirrorCache.Strategy strategy = MirrorCache.STRATEGY;
+        try {
+            MirrorCache.STRATEGY = MirrorCache.Strategy.full;
+            checkout(dir, url, commits, "mirror, all branches, cold", head, "full");
+
+            MirrorCache.STRATEGY = MirrorCache.Strategy.singleBranch;
+            checkout(dir, url, commits, "mirror, one branch, cold", head, "single");
+
+            head = commit(remote, "src/File0.java", "class File0 { int next; }");
+            checkout(dir, url, commits, "mirror, one branch, warm", head, "single");
+
+            head = commit(remote, ".dd.yml", "Paths\nsrc\nBuild\nls\nTest\nls\n");
+            checkout(dir, url, commits, "mirror, warm, sparse src", head, "single");
+        } finally {
+            MirrorCache.STRATEGY = strategy;
+        }
+    }
+
+    private static void checkout(File dir, String url, int commits, String name, RevCommit head, String mirrorName) throws Exception {
+        File mirrors = new File(dir, "mirrors-" + mirrorName);
+        MirrorCache cache = new MirrorCache(mirrors, Long.MAX_VALUE);
+        File worktree = new File(dir, "worktree-" + System.nanoTime());
+        long before = size(mirrors);
+        long start = System.nanoTime();
+        cache.checkout(url, "refs/heads/master", head.getName(), worktree, ".dd.yml");
+        report(commits, name, start, size(mirrors) - before, size(worktree));
+        MirrorCache.deleteRecursively(worktree);
+    }
+
+    /**
+     * Creates a master branch with the given number of commits over a
+     * source directory and a directory of documentation, plus a second
+     * branch that only the full strategies fetch.
+     */
+    private static RevCommit fixture(Git git, int commits) throws Exception {
+        StringBuilder docs = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            docs.append("documentation line ").append(i).append('\n');
+        }
+        RevCommit head = null;
+        for (int i = 0; i < commits; i++) {
+            write(git, "src/File" + (i % 20) + ".java", "class File" + (i % 20) + " { int version = " + i + "; }");
+            write(git, "docs/page" + (i % 10) + ".txt", docs.toString() + i);
+            git.add().addFilepattern(".").call();
+            head = git.commit().setMessage("commit " + i).call();
+        }
+        git.checkout().setCreateBranch(true).setName("other").call();
+        for (int i = 0; i < commits; i++) {
+            commit(git, "other/file" + (i % 10) + ".txt", docs.toString() + "other " + i);
+        }
+        git.checkout().setName("master").call();
+        return head;
+    }
+
+    private static RevCommit commit(Git git, String path, String content) throws Exception {
+        write(git, path, content);
+        git.add().addFilepattern(path).call();
+        return git.commit().setMessage("change " + path).call();
+    }
+
+    private static void write(Git git, String path, String content) throws IOException {
+        File file = new File(git.getRepository().getWorkTree(), path);
+        file.getParentFile().mkdirs();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    private static void report(int commits, String name, long start, long transferred, long checkout) {
+        System.out.printf("%-8d %-26s %10d %12d %12d%n", commits, name, (System.nanoTime() - start) / 1000000, transferred, checkout);
+    }
+
+    private static long size(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            return f.length();
+        }
+        long size = 0;
+        for (File c : children) {
+            size += size(c);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,127 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Measures the wall time of consecutive builds of one Gradle project,
+ * each in a fresh copy of the project like a new job: without a daemon,
+ * with a warm daemon kept by GradleDaemons, and with a warm daemon and
+ * Build and Test run as one invocation. All modes share one warmed up
+ * dependency cache, so only the daemon makes a difference.
+ * Not a JMH benchmark, a build takes seconds; run with:
+ * ./gradlew daemonBenchmark [-Pargs='project builds']
+ */
+public class DaemonBenchmark {
+    private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList(".git", ".gradle", "build"));
+
+    public static void main(String[] args) throws Exception {
+        File project = new File(args.length > 0 ? args[0] : ".").getAbsoluteFile();
+        int builds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        File dir = Files.createTempDirectory("daemonbenchmark").toFile();
+        DependencyCache caches = new DependencyCache(new File(dir, "caches"), Long.MAX_VALUE, 1);
+        boolean enabled = GradleDaemons.ENABLED;
+        boolean combine = Pipeline.COMBINE_GRADLE_STEPS;
+        try {
+            // Downloads the distribution and dependencies into the cache
+            build(project, dir, caches);
+
+            System.out.printf("%-22s %12s %12s %12s%n", "mode", "first", "mean rest", "total");
+            GradleDaemons.ENABLED = false;
+            long cold = run("cold, no daemon", project, dir, caches, builds);
+            GradleDaemons.ENABLED = true;
+            long warm = run("warm daemon", project, dir, caches, builds);
+            Pipeline.COMBINE_GRADLE_STEPS = true;
+            long combined = run("warm daemon, combined", project, dir, caches, builds);
+            System.out.printf("saved per build: warm %d ms, combined %d ms%n",
+                    (cold - warm) / builds, (cold - combined) / builds);
+        } finally {
+            GradleDaemons.ENABLED = enabled;
+            Pipeline.COMBINE_GRADLE_STEPS = combine;
+            for (File cache : caches(dir)) {
+                GradleDaemons.stopAll(new File(cache, "gradle"));
+            }
+            MirrorCache.deleteRecursively(dir);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return total wall time of the builds in milliseconds
+     */
+    private static long run(String mode, File project, File dir, DependencyCache caches, int builds) throws Exception {
+        long first = 0;
+        long total = 0;
+        for (int i = 0; i < builds; i++) {
+            long millis = build(project, dir, caches);
+            if (i == 0) {
+                first = millis;
+            }
+            total += millis;
+        }
+        long rest = builds > 1 ? (total - first) / (builds - 1) : first;
+        System.out.printf("%-22s %12d %12d %12d%n", mode, first, rest, total);
+        return total;
+    }
+
+    /**
+     * Builds a fresh copy of the project with the steps of its .dd.yml.
+     * @return wall time of the build in milliseconds
+     */
+    private static long build(File project, File dir, DependencyCache caches) throws Exception {
+        File worktree = new File(dir, "worktree-" + System.nanoTime());
+        copy(project.toPath(), worktree.toPath());
+        File buildConfig = new File(worktree, ".dd.yml");
+        Pipeline pipeline = buildConfig.exists()
+                ? Pipeline.read(buildConfig)
+                : Pipeline.parse("Build\n./gradlew assemble\nTest\n./gradlew test\n");
+        long start = System.nanoTime();
+        List<StepResult> steps;
+        try (DependencyCache.Lease lease = caches.acquire("benchmark/project", worktree)) {
+            steps = pipeline.run(worktree.getPath(), lease.getEnv(), null);
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        for (StepResult step : steps) {
+            if (!step.succeeded()) {
+                throw new IllegalStateException("Step failed:\n" + String.join("\n", step.output()));
+            }
+        }
+        MirrorCache.deleteRecursively(worktree);
+        return millis;
+    }
+
+    private static List<File> caches(File dir) {
+        File[] repos = new File(dir, "caches").listFiles();
+        File[] caches = repos == null || repos.length == 0 ? null : repos[0].listFiles();
+        return caches == null ? Arrays.asList() : Arrays.asList(caches);
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(source) && SKIPPED.contains(dir.getFileName().toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,52 @@
+package buildtools;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the whole history with Storage.getAll, next to listing the
+ * summaries served from the index. Separate from StorageBenchmark as one
+ * getAll of a million builds takes seconds; run it with
+ * -p builds=1000000 to include that size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GetAllBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int builds;
+
+    private Storage storage;
+
+    @Setup
+    public void setUp() throws Exception {
+        storage = BenchmarkData.database(builds);
+    }
+
+    @Benchmark
+    public JSONObject getAll() throws IOException {
+        return storage.getAll();
+    }
+
+    @Benchmark
+    public List<BuildSummary> getSummaries() throws IOException {
+        return storage.getSummaries();
+    }
+}
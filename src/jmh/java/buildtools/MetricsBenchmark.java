@@ -0,0 +1,104 @@
+package buildtools;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What metrics cost on the hot paths: an update of a counter and of a
+ * histogram, from one thread and from four at once, and
+ * WebhookInbox.accept with metrics enabled and disabled.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+    private final Metrics.Counter counter = Metrics.counter("benchmark_total", "Benchmark");
+    private final Metrics.Histogram histogram = Metrics.histogram("benchmark_seconds", "Benchmark");
+
+    /**
+     * An inbox that accepts every build without running it.
+     */
+    @State(Scope.Benchmark)
+    public static class Inbox {
+        @Param({"true", "false"})
+        public boolean metrics;
+
+        private File dir;
+        private WebhookInbox inbox;
+        private String payload;
+        private long delivery;
+
+        @Setup
+        public void setUp() throws Exception {
+            Metrics.ENABLED = metrics;
+            dir = Files.createTempDirectory("metricsbenchmark").toFile();
+            inbox = new WebhookInbox(dir, request -> BuildScheduler.Admission.accepted);
+            inbox.start();
+            payload = BenchmarkData.push(1);
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            while (inbox.queued() > 0) {
+                Thread.sleep(10);
+            }
+            SegmentStore.close(dir);
+            MirrorCache.deleteRecursively(dir);
+            Metrics.ENABLED = true;
+        }
+    }
+
+    @Benchmark
+    public void counterInc() {
+        counter.inc();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void counterIncContended() {
+        counter.inc();
+    }
+
+    @Benchmark
+    public void histogramObserve() {
+        histogram.observe(1_000_000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void histogramObserveContended() {
+        histogram.observe(1_000_000);
+    }
+
+    /**
+     * What a histogram update is usually paired with, for comparison.
+     */
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean accept(Inbox inbox) {
+        return inbox.inbox.accept("delivery-" + inbox.delivery++, "push", inbox.payload);
+    }
+}
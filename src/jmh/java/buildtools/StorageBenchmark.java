@@ -0,0 +1,68 @@
+package buildtools;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage against databases of a growing number of builds: posting a
+ * build, reading one through the cache and straight from the store, and
+ * one page of a repository's builds. A post overwrites a random build
+ * with the same record, as a build is posted again when it finishes, so
+ * the database keeps its size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StorageBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int builds;
+
+    private Storage storage;
+
+    @Setup
+    public void setUp() throws Exception {
+        storage = BenchmarkData.database(builds);
+    }
+
+    private int randomBuild() {
+        return ThreadLocalRandom.current().nextInt(builds);
+    }
+
+    @Benchmark
+    public void post() throws IOException {
+        storage.post(BenchmarkData.build(randomBuild()));
+    }
+
+    @Benchmark
+    public Build getBuild() throws IOException {
+        return storage.getBuild(BenchmarkData.jobID(randomBuild()));
+    }
+
+    @Benchmark
+    public JSONObject get() throws IOException {
+        return storage.get(BenchmarkData.jobID(randomBuild()));
+    }
+
+    @Benchmark
+    public BuildPage query() throws IOException {
+        int repo = randomBuild() % BenchmarkData.REPOS;
+        return storage.query(new BuildQuery(null, "owner" + repo + "/repo" + repo, null, null, null, null, BuildQuery.DEFAULT_LIMIT));
+    }
+}
@@ -0,0 +1,55 @@
+package buildtools;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing GitHub push webhooks the way the inbox does: the payload text
+ * into JSON, and from there into the build it asks for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebhookBenchmark {
+    @Param({"1", "20"})
+    public int commits;
+
+    private String payload;
+    private JSONObject json;
+
+    @Setup
+    public void setUp() {
+        payload = BenchmarkData.push(commits);
+        json = new JSONObject(payload);
+    }
+
+    @Benchmark
+    public JSONObject parseJSON() {
+        return new JSONObject(payload);
+    }
+
+    @Benchmark
+    public BuildRequest parseRequest() {
+        return WebhookInbox.parse("push", json);
+    }
+
+    @Benchmark
+    public BuildRequest parse() {
+        return WebhookInbox.parse("push", new JSONObject(payload));
+    }
+}
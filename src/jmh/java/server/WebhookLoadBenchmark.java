@@ -0,0 +1,178 @@
+package server;
+
+import buildtools.MirrorCache;
+import buildtools.StatusClient;
+import buildtools.WebhookInbox;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.glassfish.jersey.servlet.ServletContainer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.eclipse.jetty.servlet.ServletContextHandler.NO_SESSIONS;
+
+/**
+ * Load test of webhook acceptance. Posts push webhooks to /ci/push on a
+ * local Jetty server at fixed request rates and reports how long GitHub
+ * would wait for each response. Latency is measured from when a request
+ * was due, so a slow server is not hidden by clients that fall behind.
+ * The pushes are for the repository that is never built, so only
+ * acceptance and parsing are measured.
+ * Not a JMH benchmark, it measures latency at fixed rates rather than
+ * throughput; run with:
+ * ./gradlew webhookLoadBenchmark [-Pargs='100 500 2000']
+ */
+public class WebhookLoadBenchmark {
+    private static final int CLIENTS = 64;
+    private static final int SECONDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] rates = {100, 500, 2000};
+        if (args.length > 0) {
+            rates = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                rates[i] = Integer.parseInt(args[i]);
+            }
+        }
+        File dir = Files.createTempDirectory("webhookbenchmark").toFile();
+        WebhookInbox.INBOX_DIRECTORY = new File(dir, "inbox").getPath();
+        StatusClient.OUTBOX_DIRECTORY = new File(dir, "outbox").getPath();
+
+        Server server = new Server(0);
+        ServletContextHandler handler = new ServletContextHandler(NO_SESSIONS);
+        handler.setContextPath("/");
+        server.setHandler(handler);
+        ServletHolder holder = handler.addServlet(ServletContainer.class, "/*");
+        holder.setInitOrder(0);
+        holder.setInitParameter("jersey.config.server.provider.packages", "server/resources");
+        server.start();
+        ContinuousIntegrationServer.inbox.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/ci/push");
+            byte[] body = ("payload=" + URLEncoder.encode(payload(), "UTF-8")).getBytes(StandardCharsets.UTF_8);
+            // Warm up the server, Jersey and the inbox
+            run(url, body, 200, 2);
+            System.out.printf("%8s %10s %8s %8s %8s %8s %8s%n", "rate/s", "requests", "errors", "p50 ms", "p90 ms", "p99 ms", "max ms");
+            for (int rate : rates) {
+                run(url, body, rate, SECONDS);
+            }
+        } finally {
+            server.stop();
+            MirrorCache.deleteRecursively(dir);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends rate * seconds webhooks, one due every 1/rate seconds, and
+     * prints latency percentiles.
+     */
+    private static void run(URL url, byte[] body, int rate, int seconds) throws InterruptedException {
+        int total = rate * seconds;
+        long[] latencies = new long[total];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long start = System.nanoTime() + 100_000_000;
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            Thread client = new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < total) {
+                    long due = start + i * 1_000_000_000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        try {
+                            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (post(url, body, "delivery-" + rate + "-" + i) != 202) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[i] = System.nanoTime() - due;
+                }
+            });
+            client.start();
+            clients.add(client);
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        if (seconds < SECONDS) {
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%8d %10d %8d %8.2f %8.2f %8.2f %8.2f%n", rate, total, errors.get(),
+                millis(latencies, 0.50), millis(latencies, 0.90), millis(latencies, 0.99), latencies[total - 1] / 1e6);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1e6;
+    }
+
+    private static int post(URL url, byte[] body, String delivery) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setRequestProperty("X-GitHub-Event", "push");
+            connection.setRequestProperty("X-GitHub-Delivery", delivery);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int code = connection.getResponseCode();
+            try (InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                while (in != null && in.read() != -1) {
+                    // drain so the connection is kept alive
+                }
+            }
+            return code;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return a push of 20 commits, about the size of a typical push webhook
+     */
+    private static String payload() {
+        JSONArray commits = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            commits.put(new JSONObject()
+                    .put("id", String.format("%040d", i))
+                    .put("message", "Commit number " + i + " with a message of a realistic length")
+                    .put("author", new JSONObject().put("name", "Author").put("email", "author@example.com"))
+                    .put("modified", new JSONArray().put("src/main/java/File" + i + ".java")));
+        }
+        JSONObject repository = new JSONObject()
+                .put("name", WebhookInbox.DO_NOT_BUILD)
+                .put("full_name", "owner/" + WebhookInbox.DO_NOT_BUILD)
+                .put("owner", new JSONObject().put("name", "owner"))
+                .put("clone_url", "https://github.com/owner/" + WebhookInbox.DO_NOT_BUILD + ".git")
+                .put("default_branch", "master");
+        return new JSONObject()
+                .put("ref", "refs/heads/master")
+                .put("after", String.format("%040d", 19))
+                .put("commits", commits)
+                .put("head_commit", commits.getJSONObject(19))
+                .put("repository", repository)
+                .toString();
+    }
+}
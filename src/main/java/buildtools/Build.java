@@ -12,7 +12,8 @@ public class Build {
         pending,
         success,
         failure,
-        error
+        error,
+        superseded
     }
 
     private String jobID;
@@ -21,6 +22,9 @@ public class Build {
     private String url;
     private List<ArrayList<String>> log;
     private String date;
+    private String logFile;
+    private List<StepResult> steps;
+    private List<CellResult> cells;
 
     public Build(String jobID, Result status, String commitSha, String url, List<ArrayList<String>> log, String date) {
         this.jobID = jobID;
@@ -37,6 +41,23 @@ public class Build {
         this.url = json.getString("url");
         this.log = new ArrayList<>();
         this.date = json.getString("date");
+        this.logFile = json.optString("logFile", null);
+
+        JSONArray stepsJson = json.optJSONArray("steps");
+        if (stepsJson != null) {
+            steps = new ArrayList<>();
+            for (int i = 0; i < stepsJson.length(); i++) {
+                steps.add(new StepResult(stepsJson.getJSONObject(i)));
+            }
+        }
+
+        JSONArray cellsJson = json.optJSONArray("cells");
+        if (cellsJson != null) {
+            cells = new ArrayList<>();
+            for (int i = 0; i < cellsJson.length(); i++) {
+                cells.add(new CellResult(cellsJson.getJSONObject(i)));
+            }
+        }
 
         JSONArray allLogsJson = json.getJSONArray("log");
         for (int i = 0; i < allLogsJson.length(); i++) {
@@ -64,6 +85,9 @@ public class Build {
             case "error":
                 status = Build.Result.error;
                 break;
+            case "superseded":
+                status = Build.Result.superseded;
+                break;
             default:
                 throw new IOException("Invalid 'status' in database");
         }
@@ -93,6 +117,69 @@ public class Build {
         return date;
     }
 
+    /**
+     * @return path of the file with the full output of the build, or null
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return how each step of the build's pipeline went, or null if none ran
+     */
+    public List<StepResult> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return how each cell of the build matrix went, or null if the build has no matrix
+     */
+    public List<CellResult> getCells() {
+        return cells;
+    }
+
+    /**
+     * @return what all steps of the build, and of its cells, used of the
+     * host together, or null if none was measured
+     */
+    public ResourceUsage getUsage() {
+        ResourceUsage total = null;
+        for (StepResult step : allSteps()) {
+            if (step.getUsage() != null) {
+                total = total == null ? step.getUsage() : total.plus(step.getUsage());
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the first limit a step of the build, or of one of its cells,
+     * was killed for: see StepResult.getLimit(). Null if none was.
+     */
+    public String getLimit() {
+        for (StepResult step : allSteps()) {
+            if (step.getLimit() != null) {
+                return step.getLimit();
+            }
+        }
+        return null;
+    }
+
+    private List<StepResult> allSteps() {
+        List<StepResult> all = new ArrayList<>();
+        if (steps != null) {
+            all.addAll(steps);
+        }
+        if (cells != null) {
+            for (CellResult cell : cells) {
+                if (cell.getSteps() != null) {
+                    all.addAll(cell.getSteps());
+                }
+            }
+        }
+        return all;
+    }
+
     public void setJobID(String jobID) {
         this.jobID = jobID;
     }
@@ -117,4 +204,16 @@ public class Build {
         this.date = date;
     }
 
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    public void setSteps(List<StepResult> steps) {
+        this.steps = steps;
+    }
+
+    public void setCells(List<CellResult> cells) {
+        this.cells = cells;
+    }
+
 }
@@ -0,0 +1,171 @@
+package buildtools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, least-recently-used cache of deserialized Build objects.
+ * Entries are evicted when either the number of builds or their
+ * estimated size in bytes goes over budget.
+ */
+public class BuildCache {
+    private final int maxBuilds;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Build> builds = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> sizes = new HashMap<>();
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBuilds - maximum number of builds kept
+     * @param maxBytes - maximum estimated size of all kept builds
+     */
+    public BuildCache(int maxBuilds, long maxBytes) {
+        this.maxBuilds = maxBuilds;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a build and marks it as recently used.
+     * @param jobID - the build's jobID
+     * @return the cached build or null
+     */
+    public synchronized Build get(String jobID) {
+        Build build = builds.get(jobID);
+        if (build == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return build;
+    }
+
+    /**
+     * Adds or replaces a build, evicting the least recently used
+     * builds until the cache is within budget again.
+     * @param build - the build to cache
+     */
+    public synchronized void put(Build build) {
+        long size = estimateSize(build);
+        remove(build.getJobID());
+        if (size > maxBytes) {
+            return;
+        }
+        builds.put(build.getJobID(), build);
+        sizes.put(build.getJobID(), size);
+        bytes += size;
+
+        Iterator<Map.Entry<String, Build>> it = builds.entrySet().iterator();
+        while ((builds.size() > maxBuilds || bytes > maxBytes) && it.hasNext()) {
+            String evicted = it.next().getKey();
+            it.remove();
+            bytes -= sizes.remove(evicted);
+        }
+    }
+
+    /**
+     * Adds a build loaded from disk unless a build for the same job was
+     * written through in the meantime.
+     * @param build - the build to cache
+     * @return the build now in the cache
+     */
+    public synchronized Build putIfAbsent(Build build) {
+        Build cached = builds.get(build.getJobID());
+        if (cached != null) {
+            return cached;
+        }
+        put(build);
+        return build;
+    }
+
+    /**
+     * Drops a build from the cache.
+     * @param jobID - the build's jobID
+     */
+    public synchronized void remove(String jobID) {
+        if (builds.remove(jobID) != null) {
+            bytes -= sizes.remove(jobID);
+        }
+    }
+
+    /**
+     * Drops every build from the cache.
+     */
+    public synchronized void clear() {
+        builds.clear();
+        sizes.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the number of cached builds
+     */
+    public synchronized int size() {
+        return builds.size();
+    }
+
+    /**
+     * @return the estimated size of all cached builds in bytes
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return {hits, misses} since the cache was created
+     */
+    public synchronized long[] stats() {
+        return new long[]{hits, misses};
+    }
+
+    /**
+     * Rough heap size of a build: two bytes per character of its strings
+     * plus a fixed overhead per object.
+     */
+    static long estimateSize(Build build) {
+        long size = 64;
+        size += 2L * length(build.getJobID());
+        size += 2L * length(build.getCommitSha());
+        size += 2L * length(build.getUrl());
+        size += 2L * length(build.getDate());
+        size += 2L * length(build.getLogFile());
+        if (build.getSteps() != null) {
+            for (StepResult step : build.getSteps()) {
+                size += 96 + 2L * length(step.getName());
+            }
+        }
+        if (build.getCells() != null) {
+            for (CellResult cell : build.getCells()) {
+                size += 128 + 4L * length(cell.getName()) + 2L * length(cell.getLogFile());
+                if (cell.getSteps() != null) {
+                    size += 96L * cell.getSteps().size();
+                }
+            }
+        }
+        if (build.getLog() != null) {
+            for (List<String> entry : build.getLog()) {
+                size += 32;
+                for (String line : entry) {
+                    size += 40 + 2L * length(line);
+                }
+            }
+        }
+        return size;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    /**
+     * @return the jobIDs of the cached builds, least recently used first
+     */
+    synchronized List<String> keys() {
+        return new ArrayList<>(builds.keySet());
+    }
+}
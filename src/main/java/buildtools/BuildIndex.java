@@ -0,0 +1,231 @@
+package buildtools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * In-memory secondary indexes over the stored builds. Every index is a
+ * set of (date, jobID) keys sorted newest first, so a page of results is
+ * read by walking one set from the cursor instead of scanning history.
+ */
+public class BuildIndex {
+    private static final Comparator<Key> NEWEST_FIRST =
+            Comparator.comparing((Key k) -> k.date).reversed().thenComparing(k -> k.jobID);
+
+    /**
+     * Sort key of a build within an index.
+     */
+    static class Key {
+        final String date;
+        final String jobID;
+
+        Key(String date, String jobID) {
+            this.date = date == null ? "" : date;
+            this.jobID = jobID;
+        }
+    }
+
+    /**
+     * The indexed fields of one build.
+     */
+    static class Entry {
+        final Key key;
+        final String status;
+        final String commitSha;
+        final String url;
+
+        Entry(String jobID, String status, String commitSha, String url, String date) {
+            this.key = new Key(date, jobID);
+            this.status = status;
+            this.commitSha = commitSha;
+            this.url = url;
+        }
+
+        BuildSummary toSummary() {
+            return new BuildSummary(key.jobID, status, commitSha, url, key.date);
+        }
+    }
+
+    /**
+     * One page of query results.
+     */
+    public static class Page {
+        public final List<String> jobIDs;
+        public final String nextCursor;
+
+        Page(List<String> jobIDs, String nextCursor) {
+            this.jobIDs = jobIDs;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final NavigableSet<Key> byDate = new ConcurrentSkipListSet<>(NEWEST_FIRST);
+    private final ConcurrentHashMap<String, NavigableSet<Key>> byStatus = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, NavigableSet<Key>> byRepo = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, NavigableSet<Key>> bySha = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a build to the indexes, replacing what was indexed for the
+     * same job before.
+     * @param build - the build to index
+     */
+    public void update(Build build) {
+        update(new BuildSummary(build.getJobID(), build.getStatus(), build.getCommitSha(), build.getUrl(), build.getDate()));
+    }
+
+    /**
+     * Adds a build to the indexes, replacing what was indexed for the
+     * same job before.
+     * @param build - the summary of the build to index
+     */
+    public synchronized void update(BuildSummary build) {
+        Entry entry = new Entry(build.getJobID(), build.getStatus(), build.getCommitSha(), build.getUrl(), build.getDate());
+        Entry previous = entries.put(build.getJobID(), entry);
+        if (previous != null) {
+            byDate.remove(previous.key);
+            remove(byStatus, previous.status, previous.key);
+            remove(byRepo, previous.url, previous.key);
+            remove(bySha, previous.commitSha, previous.key);
+        }
+        byDate.add(entry.key);
+        add(byStatus, entry.status, entry.key);
+        add(byRepo, entry.url, entry.key);
+        add(bySha, entry.commitSha, entry.key);
+    }
+
+    /**
+     * @param jobID - the build's jobID
+     * @return the indexed fields of the build, or null if it is not indexed
+     */
+    public BuildSummary summary(String jobID) {
+        Entry entry = entries.get(jobID);
+        return entry == null ? null : entry.toSummary();
+    }
+
+    /**
+     * @return the indexed fields of every build, newest first
+     */
+    public List<BuildSummary> summaries() {
+        List<BuildSummary> summaries = new ArrayList<>();
+        for (Key key : byDate) {
+            Entry entry = entries.get(key.jobID);
+            if (entry != null && entry.key == key) {
+                summaries.add(entry.toSummary());
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Drops every indexed build.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        byDate.clear();
+        byStatus.clear();
+        byRepo.clear();
+        bySha.clear();
+    }
+
+    private static void add(ConcurrentHashMap<String, NavigableSet<Key>> index, String value, Key key) {
+        if (value == null) {
+            return;
+        }
+        index.computeIfAbsent(value, v -> new ConcurrentSkipListSet<>(NEWEST_FIRST)).add(key);
+    }
+
+    private static void remove(ConcurrentHashMap<String, NavigableSet<Key>> index, String value, Key key) {
+        if (value == null) {
+            return;
+        }
+        NavigableSet<Key> keys = index.get(value);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                index.remove(value, keys);
+            }
+        }
+    }
+
+    /**
+     * Finds one page of builds matching the query, newest first. The most
+     * selective index the query allows is walked (commit, then repo, then
+     * status, then date) and the remaining filters are checked per build.
+     * @param query - filters, cursor and page size
+     * @return the matching jobIDs and the cursor of the next page, if any
+     * @throws IllegalArgumentException - if the cursor is malformed
+     */
+    public Page query(BuildQuery query) {
+        NavigableSet<Key> candidates;
+        if (query.getCommitSha() != null) {
+            candidates = bySha.get(query.getCommitSha());
+        } else if (query.getRepo() != null) {
+            candidates = byRepo.get(query.getRepo());
+        } else if (query.getStatus() != null) {
+            candidates = byStatus.get(query.getStatus());
+        } else {
+            candidates = byDate;
+        }
+        List<String> jobIDs = new ArrayList<>();
+        if (candidates == null) {
+            return new Page(jobIDs, null);
+        }
+
+        if (query.getCursor() != null) {
+            candidates = candidates.tailSet(decodeCursor(query.getCursor()), false);
+        } else if (query.getTo() != null) {
+            // Dates sort as strings, so a day or minute prefix works as bound
+            candidates = candidates.tailSet(new Key(query.getTo() + Character.MAX_VALUE, ""), true);
+        }
+
+        Key last = null;
+        for (Key key : candidates) {
+            if (query.getFrom() != null && key.date.compareTo(query.getFrom()) < 0) {
+                break;
+            }
+            Entry entry = entries.get(key.jobID);
+            if (entry == null || entry.key != key || !matches(entry, query)) {
+                continue;
+            }
+            if (jobIDs.size() == query.getLimit()) {
+                return new Page(jobIDs, encodeCursor(last));
+            }
+            jobIDs.add(key.jobID);
+            last = key;
+        }
+        return new Page(jobIDs, null);
+    }
+
+    private static boolean matches(Entry entry, BuildQuery query) {
+        return (query.getStatus() == null || query.getStatus().equals(entry.status))
+                && (query.getRepo() == null || query.getRepo().equals(entry.url))
+                && (query.getCommitSha() == null || query.getCommitSha().equals(entry.commitSha))
+                && (query.getTo() == null || entry.key.date.compareTo(query.getTo() + Character.MAX_VALUE) <= 0);
+    }
+
+    private static String encodeCursor(Key key) {
+        String raw = key.date + "|" + key.jobID;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Key decodeCursor(String cursor) {
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        int split = raw.lastIndexOf('|');
+        if (split < 0) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return new Key(raw.substring(0, split), raw.substring(split + 1));
+    }
+}
@@ -4,16 +4,53 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.lib.Repository;
 import server.ContinuousIntegrationServer;
 
 public class BuildJob {
     public static String BUILD_CONFIG_FILE_NAME = ".dd.yml";
+    public static boolean KEEP_WORKTREES = false;
     private static Storage storage = ContinuousIntegrationServer.storage;
+    private static MirrorCache mirrors = ContinuousIntegrationServer.mirrors;
+    private static JobJournal journal = ContinuousIntegrationServer.journal;
+    private static ResultCache results = ContinuousIntegrationServer.results;
+    private static DependencyCache dependencies = ContinuousIntegrationServer.dependencies;
+    private static final Map<String, MatrixRun> matrices = new ConcurrentHashMap<>();
+    private static final Metrics.Histogram FETCH_SECONDS =
+            Metrics.histogram("ci_clone_seconds", "Time to fetch a commit into its mirror or check it out", "phase", "fetch");
+    private static final Metrics.Histogram CHECKOUT_SECONDS =
+            Metrics.histogram("ci_clone_seconds", "Time to fetch a commit into its mirror or check it out", "phase", "checkout");
+
+    /**
+     * A build whose matrix cells are queued or running, with the results
+     * of the cells that have finished.
+     */
+    private static class MatrixRun {
+        private final BuildRequest request;
+        private final List<ArrayList<String>> log;
+        private final CellResult[] results;
+        private final List<List<ArrayList<String>>> logs;
+        private final String cacheKey;
+        private int remaining;
+
+        MatrixRun(BuildRequest request, List<ArrayList<String>> log, int cells, String cacheKey) {
+            this.request = request;
+            this.log = log;
+            this.cacheKey = cacheKey;
+            this.results = new CellResult[cells];
+            this.logs = new ArrayList<>(Collections.nCopies(cells, new ArrayList<>()));
+            this.remaining = cells;
+        }
+    }
 
      /**
       * The main entry point for the ci build job. Runs the 
@@ -24,7 +61,7 @@ public class BuildJob {
       * as the commit status update on github.
       *
       * Build job flow:
-      * 1. Clone repo
+      * 1. Fetch repo into its mirror and check out the commit
       * 2. Find build config file in root directory
       * 3. Parse and run commands
       * 4. Notify github of result
@@ -38,6 +75,188 @@ public class BuildJob {
       * @param commitSha - sha of the latest commit
       */
     public static void run(String jobID, String cloneURL, String branchRef, String owner, String repo, String commitSha) {
+        run(new BuildRequest(jobID, cloneURL, branchRef, owner, repo, commitSha, false));
+    }
+
+    /**
+     * Runs a build taken from the BuildScheduler. A build with a matrix
+     * queues its cells and returns, the last cell to finish stores the
+     * result of the whole build.
+     * @param request - the build or matrix cell to run
+     */
+    public static void run(BuildRequest request) {
+        if (request.isCell()) {
+            runCell(request);
+            return;
+        }
+        String jobID = request.getJobID();
+        Trace trace = Trace.start(jobID);
+        recordQueued(trace, request);
+        JobLog jobLog;
+        try {
+            jobLog = JobLog.open(jobID);
+        } catch (IOException e) {
+            e.printStackTrace();
+            List<ArrayList<String>> log = new ArrayList<>();
+            log.add(new ArrayList<>(Collections.singletonList("Internal issue. Contact support.")));
+            BuildJob.error(jobID, log, request.getOwner(), request.getRepo(), request.getCommitSha());
+            trace.finish(BuildJob::storeTrace);
+            return;
+        }
+        boolean fannedOut = false;
+        try {
+            fannedOut = run(request, jobLog);
+        } finally {
+            // A matrix build stays in the journal until its last cell has finished
+            if (!fannedOut) {
+                journal.finish(jobID);
+                trace.finish(BuildJob::storeTrace);
+            }
+            jobLog.close();
+            RunBash.forget(jobID);
+            if (!KEEP_WORKTREES) {
+                MirrorCache.deleteRecursively(new File("./" + jobID));
+            }
+        }
+    }
+
+    /**
+     * Journals a build as queued and submits it to the server's scheduler.
+     * @param request - the build to queue
+     * @return whether the scheduler took the build
+     */
+    public static BuildScheduler.Admission submit(BuildRequest request) {
+        journal.queued(request);
+        BuildScheduler.Admission admission = ContinuousIntegrationServer.scheduler.submit(request);
+        if (admission != BuildScheduler.Admission.accepted) {
+            journal.finish(request.getJobID());
+        }
+        return admission;
+    }
+
+    /**
+     * Adds the time a build waited in the scheduler's queue to its trace.
+     */
+    private static void recordQueued(Trace trace, BuildRequest request) {
+        if (request.getQueuedAt() != 0) {
+            long now = System.currentTimeMillis();
+            trace.record("queued", now - (System.nanoTime() - request.getQueuedAt()) / 1000000, now);
+        }
+    }
+
+    /**
+     * Stores the trace of a finished build, and again when a span of it
+     * ends later.
+     */
+    private static void storeTrace(Trace trace) {
+        try {
+            storage.postTrace(trace);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stores a build, traced as a phase of the build.
+     */
+    private static void store(Build build) throws IOException {
+        try (Trace.Span span = Trace.of(build.getJobID()).span("store")) {
+            span.set("status", build.getStatus());
+            storage.post(build);
+        }
+    }
+
+    /**
+     * Recovers the builds a restart interrupted, before new builds are
+     * taken in. Builds that were queued or still cloning run again.
+     * Builds that were running are stored as errors, and builds that were
+     * reporting get the status of their stored result sent again. The
+     * commit status of every recovered build is updated, and pending
+     * builds stored before there was a journal are marked as errors.
+     */
+    public static void recover() {
+        Set<String> recovered = new HashSet<>();
+        for (JobJournal.Entry entry : journal.entries()) {
+            BuildRequest request = entry.getRequest();
+            String jobID = request.getJobID();
+            recovered.add(jobID);
+            MirrorCache.deleteRecursively(new File("./" + jobID));
+            switch (entry.getState()) {
+                case queued:
+                case cloning:
+                    // Nothing was built yet, so the build can simply run again
+                    System.out.println("Queueing interrupted job " + jobID + " again");
+                    if (submit(request) == BuildScheduler.Admission.accepted) {
+                        continue;
+                    }
+                    interrupted(jobID, request.getOwner(), request.getRepo(), request.getCommitSha());
+                    break;
+                case reporting:
+                    Build stored = null;
+                    try {
+                        stored = storage.getBuild(jobID);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    if (stored != null && !stored.getStatus().equals(Build.Result.pending.toString())) {
+                        StatusUpdater.updateStatus(request.getOwner(), request.getRepo(), request.getCommitSha(),
+                                Build.Result.valueOf(stored.getStatus()), jobID);
+                        break;
+                    }
+                    interrupted(jobID, request.getOwner(), request.getRepo(), request.getCommitSha());
+                    break;
+                default:
+                    interrupted(jobID, request.getOwner(), request.getRepo(), request.getCommitSha());
+            }
+            journal.finish(jobID);
+        }
+
+        List<BuildSummary> summaries;
+        try {
+            summaries = storage.getSummaries();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (BuildSummary summary : summaries) {
+            String[] ownerRepo = summary.getUrl() == null ? new String[0] : summary.getUrl().split("/", 2);
+            if (summary.getStatus().equals(Build.Result.pending.toString()) && !recovered.contains(summary.getJobID())
+                    && ownerRepo.length == 2) {
+                interrupted(summary.getJobID(), ownerRepo[0], ownerRepo[1], summary.getCommitSha());
+            }
+        }
+    }
+
+    /**
+     * Stores a build that a restart interrupted as an error, keeping the
+     * log it had so far.
+     */
+    private static void interrupted(String jobID, String owner, String repo, String commitSha) {
+        List<ArrayList<String>> log = new ArrayList<>();
+        try {
+            Build stored = storage.getBuild(jobID);
+            if (stored != null) {
+                log.addAll(stored.getLog());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        log.add(new ArrayList<>(Collections.singletonList("Interrupted by a restart of the server")));
+        System.out.println("Job " + jobID + " was interrupted by a restart");
+        error(jobID, log, owner, repo, commitSha);
+    }
+
+    /**
+     * Runs the build flow with command output streamed to the job log.
+     * @return true if the build's matrix cells were queued, false if the build has finished
+     */
+    private static boolean run(BuildRequest request, JobLog jobLog) {
+        String jobID = request.getJobID();
+        String cloneURL = request.getCloneURL();
+        String branchRef = request.getBranchRef();
+        String owner = request.getOwner();
+        String repo = request.getRepo();
+        String commitSha = request.getCommitSha();
         List<ArrayList<String>> log = new ArrayList<>();
         ArrayList<String> logEntry = new ArrayList<>();
         logEntry.add("Running build job with id " + jobID);
@@ -45,11 +264,12 @@ public class BuildJob {
 
 
         System.out.println("Running build job with id " + jobID);
-        Build pendingBuild = new Build(jobID, Build.Result.pending, commitSha, "", log, "");
+        Build pendingBuild = new Build(jobID, Build.Result.pending, commitSha, owner + "/" + repo, log, getTimeString());
+        pendingBuild.setLogFile(jobLog.getFile().getPath());
         StatusUpdater.updateStatus(owner, repo, commitSha, Build.Result.pending, jobID);
 
         try {
-            BuildJob.storage.post(pendingBuild);
+            store(pendingBuild);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -57,36 +277,61 @@ public class BuildJob {
             logEntry.add("Internal issue. Contact support.");
             log.add(logEntry);
             BuildJob.error(jobID, log, owner, repo, commitSha);
-            return;
+            return false;
+        }
+
+        journal.update(jobID, JobJournal.State.cloning);
+        String cacheKey = null;
+        long fetchStart = System.nanoTime();
+        Trace.Span fetch = Trace.of(jobID).span("fetch");
+        try {
+            String[] identity = mirrors.identify(cloneURL, branchRef, commitSha, BUILD_CONFIG_FILE_NAME);
+            FETCH_SECONDS.observeSince(fetchStart);
+            fetch.close();
+            if (identity[1] != null && ResultCache.enabledFor(identity[1])) {
+                cacheKey = ResultCache.keyOf(identity[0], identity[1], request.getEnv());
+                ResultCache.Entry cached = results.get(cacheKey);
+                if (cached != null) {
+                    reuse(request, log, cached);
+                    return false;
+                }
+            }
+        } catch (GitAPIException | IOException | RuntimeException e) {
+            // The checkout below tries again and reports the problem
+            e.printStackTrace();
+            fetch.set("error", e.getMessage()).close();
         }
 
         logEntry.clear();
         logEntry.add("Cloning repository.");
         log.add(new ArrayList<>(logEntry));
 
-
-        Git git;
+        long checkoutStart = System.nanoTime();
+        Trace.Span checkout = Trace.of(jobID).span("checkout");
         try {
-            git = Git.cloneRepository()
-                    .setURI(cloneURL)
-                    .setDirectory(new File("./" + jobID))
-                    .setBranch(branchRef)
-                    .call();
-
-        } catch (GitAPIException e) {
+            mirrors.checkout(cloneURL, branchRef, commitSha, new File("./" + jobID), BUILD_CONFIG_FILE_NAME);
+            CHECKOUT_SECONDS.observeSince(checkoutStart);
+            checkout.close();
+        } catch (GitAPIException | IOException | RuntimeException e) {
             e.printStackTrace();
+            checkout.set("error", e.getMessage()).close();
             logEntry.clear();
             logEntry.add("Failed to clone repository " + cloneURL);
             log.add(new ArrayList<>(logEntry));
             BuildJob.error(jobID, log, owner, repo, commitSha);
-            return;
+            return false;
         }
 
-        Repository repository = git.getRepository();
-        File root = repository.getWorkTree();
-        File[] rootFiles = root.listFiles();
+        if (RunBash.wasKilled(jobID)) {
+            log.add(new ArrayList<>(Collections.singletonList("Superseded by a newer push to " + branchRef)));
+            BuildJob.superseded(jobID, log, owner, repo, commitSha);
+            return false;
+        }
 
         String buildDirectory = "./" + jobID;
+        Trace.Span config = Trace.of(jobID).span("config");
+        File[] rootFiles = new File(buildDirectory).listFiles();
+
         String buildConfig = buildDirectory + "/" + BUILD_CONFIG_FILE_NAME;
 
         boolean hasBuildConfig = false;
@@ -95,54 +340,76 @@ public class BuildJob {
             hasBuildConfig |= f.getPath().equals(buildConfig);
         }
 
+        config.set("found", hasBuildConfig);
         if (hasBuildConfig) {
-            ArrayList<ArrayList<String>> commands = RunBash.run(buildDirectory, buildConfig);
-            ArrayList<Integer> exitValues = new ArrayList<>();
+            Pipeline pipeline;
+            try {
+                pipeline = Pipeline.read(new File(buildConfig));
+            } catch (IOException | IllegalArgumentException e) {
+                config.close();
+                logEntry.clear();
+                logEntry.add("Invalid build file: " + e.getMessage());
+                log.add(new ArrayList<>(logEntry));
+                BuildJob.error(jobID, log, owner, repo, commitSha);
+                return false;
+            }
+            if (pipeline.getSteps().isEmpty()) {
+                config.close();
+                logEntry.clear();
+                logEntry.add("The build file has no steps.");
+                log.add(new ArrayList<>(logEntry));
+                BuildJob.error(jobID, log, owner, repo, commitSha);
+                return false;
+            }
 
+            List<Map<String, String>> cells;
+            try {
+                cells = Matrix.read(new File(buildConfig));
+            } catch (IOException | IllegalArgumentException e) {
+                config.close();
+                logEntry.clear();
+                logEntry.add("Invalid build file: " + e.getMessage());
+                log.add(new ArrayList<>(logEntry));
+                BuildJob.error(jobID, log, owner, repo, commitSha);
+                return false;
+            }
 
-            for (ArrayList<String> command : commands) {
-                int ev = Integer.parseInt(command.get(command.size() - 1));
-                exitValues.add(ev);
-                command.remove(command.size() - 1);
-                for (String ln : command) {
-                    System.out.println(ln);
-                }
+            config.set("steps", pipeline.getSteps().size()).set("cells", cells.size()).close();
+            journal.update(jobID, JobJournal.State.running);
+            if (!cells.isEmpty()) {
+                fanOut(request, log, cells, cacheKey);
+                return true;
             }
 
-            boolean buildFailed = false;
-            boolean testsFailed = false;
+            // Output goes to the job log file, only a tail of each step is kept here
+            List<StepResult> steps = runPipeline(request, pipeline, buildDirectory, jobLog);
+            ArrayList<ArrayList<String>> commands = outputOf(steps);
 
-            // build exit-value
-            if(exitValues.get(0) != 0)
-                buildFailed = true;
-            
-            // tests exit-value
-            if(exitValues.get(1) != 0)
-                testsFailed = true;
+            if (RunBash.wasKilled(jobID)) {
+                log.addAll(commands);
+                log.add(new ArrayList<>(Collections.singletonList("Superseded by a newer push to " + branchRef)));
+                BuildJob.superseded(jobID, log, owner, repo, commitSha, steps);
+                return false;
+            }
 
-            if (buildFailed || testsFailed) {
-                if(buildFailed) {
-                    logEntry.clear();
-                    logEntry.add("Build failed, exit-value was non-zero");
-                    log.add(new ArrayList<>(logEntry));
-                }
-                if(testsFailed) {
-                    logEntry.clear();
-                    logEntry.add("Tests failed, exit-value was non-zero");
-                    log.add(new ArrayList<>(logEntry));
-                }
-              
+            List<ArrayList<String>> problems = problemsOf(steps);
+            if (!problems.isEmpty()) {
+                log.addAll(problems);
                 log.addAll(commands);
 
-                BuildJob.fail(jobID, log, owner, repo, commitSha);
+                BuildJob.fail(jobID, log, owner, repo, commitSha, steps);
+                remember(cacheKey, Build.Result.failure, jobID, limitOf(steps));
             } else {
+                logEntry.clear();
                 logEntry.add("Found build file.");
                 log.add(new ArrayList<>(logEntry));
                 log.addAll(commands);
 
-                BuildJob.success(jobID, log, owner, repo, commitSha);
+                BuildJob.success(jobID, log, owner, repo, commitSha, steps);
+                remember(cacheKey, Build.Result.success, jobID, null);
             }
         } else {
+            config.close();
             logEntry.clear();
             logEntry.add("Failed to find a build file.");
             log.add(new ArrayList<>(logEntry));
@@ -151,6 +418,296 @@ public class BuildJob {
         }
 
         System.out.println("Finished build job with id " + jobID);
+        return false;
+    }
+
+    /**
+     * Runs a build's pipeline with a dependency cache of its repository
+     * leased for as long as the commands run. The matrix variables of a
+     * cell come last, so a cell can point a build tool elsewhere.
+     */
+    private static List<StepResult> runPipeline(BuildRequest request, Pipeline pipeline, String buildDirectory, JobLog jobLog) {
+        Map<String, String> env = new LinkedHashMap<>();
+        DependencyCache.Lease lease = null;
+        if (DependencyCache.ENABLED) {
+            try (Trace.Span span = Trace.of(request.getJobID()).span("dependencies")) {
+                lease = dependencies.acquire(request.getRepoKey(), new File(buildDirectory));
+                span.set("cache", lease.getDirectory().getName());
+                env.putAll(lease.getEnv());
+                jobLog.println("Using dependency cache " + lease.getDirectory().getPath());
+            } catch (IOException e) {
+                System.err.println("Running job " + request.getJobID() + " without a dependency cache: " + e.getMessage());
+            }
+        }
+        env.putAll(request.getEnv());
+        try {
+            return pipeline.run(buildDirectory, env, jobLog);
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+        }
+    }
+
+    /**
+     * @return the output of every step that ran, each headed by the step's name
+     */
+    private static ArrayList<ArrayList<String>> outputOf(List<StepResult> steps) {
+        ArrayList<ArrayList<String>> commands = new ArrayList<>();
+        for (StepResult step : steps) {
+            if (step.status() != StepResult.Status.skipped) {
+                ArrayList<String> command = new ArrayList<>();
+                command.add("Step " + step.getName() + ":");
+                command.addAll(step.output());
+                commands.add(command);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @return a log entry for every step that did not succeed, empty if all did
+     */
+    private static List<ArrayList<String>> problemsOf(List<StepResult> steps) {
+        List<ArrayList<String>> problems = new ArrayList<>();
+        for (StepResult step : steps) {
+            switch (step.status()) {
+                case success:
+                    continue;
+                case failure:
+                    problems.add(new ArrayList<>(Collections.singletonList(step.getLimit() != null
+                            ? "Step " + step.getName() + " was killed, it went over the " + step.getLimit() + " limit"
+                            : "Step " + step.getName() + " failed, exit-value was " + step.getExitValue())));
+                    break;
+                case cancelled:
+                    problems.add(new ArrayList<>(Collections.singletonList("Step " + step.getName() + " was cancelled because another step failed")));
+                    break;
+                default:
+                    problems.add(new ArrayList<>(Collections.singletonList("Step " + step.getName() + " was skipped because a step it depends on did not succeed")));
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Queues every cell of a build's matrix with the scheduler, where
+     * they count against the same limits as other builds. Cells that
+     * cannot be queued are recorded as errors right away.
+     */
+    private static void fanOut(BuildRequest request, List<ArrayList<String>> log, List<Map<String, String>> cells, String cacheKey) {
+        String jobID = request.getJobID();
+        log.add(new ArrayList<>(Collections.singletonList("Running " + cells.size() + " matrix cells")));
+        matrices.put(jobID, new MatrixRun(request, log, cells.size(), cacheKey));
+        for (int i = 0; i < cells.size(); i++) {
+            BuildRequest cell = request.cell(i, cells.get(i));
+            String problem;
+            Build.Result result;
+            if (RunBash.wasKilled(jobID)) {
+                problem = "Superseded by a newer push to " + request.getBranchRef();
+                result = Build.Result.superseded;
+            } else {
+                BuildScheduler.Admission admission = ContinuousIntegrationServer.scheduler.submit(cell);
+                if (admission == BuildScheduler.Admission.accepted) {
+                    continue;
+                }
+                problem = "Could not queue the cell: " + admission;
+                result = Build.Result.error;
+            }
+            List<ArrayList<String>> cellLog = new ArrayList<>();
+            cellLog.add(new ArrayList<>(Collections.singletonList(problem)));
+            cellFinished(cell, new CellResult(Matrix.nameOf(cell.getEnv()), cell.getEnv(), result, null, null, 0), cellLog);
+        }
+    }
+
+    /**
+     * Runs one cell of a build matrix in its own working copy, written
+     * from the repository's mirror that the build already fetched into.
+     * @param cell - the cell to run
+     */
+    private static void runCell(BuildRequest cell) {
+        String jobID = cell.getJobID();
+        Trace.join(jobID, cell.getParentID(), Matrix.nameOf(cell.getEnv()));
+        recordQueued(Trace.of(jobID), cell);
+        List<ArrayList<String>> log = new ArrayList<>();
+        JobLog jobLog;
+        try {
+            jobLog = JobLog.open(jobID);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.add(new ArrayList<>(Collections.singletonList("Internal issue. Contact support.")));
+            Trace.forget(jobID);
+            cellFinished(cell, new CellResult(Matrix.nameOf(cell.getEnv()), cell.getEnv(), Build.Result.error, null, null, 0), log);
+            return;
+        }
+        CellResult result;
+        try {
+            result = runCell(cell, jobLog, log);
+        } finally {
+            Trace.forget(jobID);
+            jobLog.close();
+            RunBash.forget(jobID);
+            if (!KEEP_WORKTREES) {
+                MirrorCache.deleteRecursively(new File("./" + jobID));
+            }
+        }
+        cellFinished(cell, result, log);
+    }
+
+    private static CellResult runCell(BuildRequest cell, JobLog jobLog, List<ArrayList<String>> log) {
+        String jobID = cell.getJobID();
+        String name = Matrix.nameOf(cell.getEnv());
+        String buildDirectory = "./" + jobID;
+        long started = System.currentTimeMillis();
+        jobLog.println("Running matrix cell " + name);
+        long checkoutStart = System.nanoTime();
+        Trace.Span checkout = Trace.of(jobID).span("checkout");
+        try {
+            mirrors.checkout(cell.getCloneURL(), cell.getBranchRef(), cell.getCommitSha(), new File(buildDirectory), BUILD_CONFIG_FILE_NAME);
+            CHECKOUT_SECONDS.observeSince(checkoutStart);
+            checkout.close();
+        } catch (GitAPIException | IOException | RuntimeException e) {
+            e.printStackTrace();
+            checkout.set("error", e.getMessage()).close();
+            log.add(new ArrayList<>(Collections.singletonList("Failed to check out " + cell.getCommitSha())));
+            return new CellResult(name, cell.getEnv(), Build.Result.error, null, jobLog.getFile().getPath(), System.currentTimeMillis() - started);
+        }
+        if (RunBash.wasKilled(jobID)) {
+            log.add(new ArrayList<>(Collections.singletonList("Superseded by a newer push to " + cell.getBranchRef())));
+            return new CellResult(name, cell.getEnv(), Build.Result.superseded, null, jobLog.getFile().getPath(), System.currentTimeMillis() - started);
+        }
+        Pipeline pipeline;
+        try {
+            pipeline = Pipeline.read(new File(buildDirectory, BUILD_CONFIG_FILE_NAME));
+        } catch (IOException | IllegalArgumentException e) {
+            log.add(new ArrayList<>(Collections.singletonList("Invalid build file: " + e.getMessage())));
+            return new CellResult(name, cell.getEnv(), Build.Result.error, null, jobLog.getFile().getPath(), System.currentTimeMillis() - started);
+        }
+
+        List<StepResult> steps = runPipeline(cell, pipeline, buildDirectory, jobLog);
+        ArrayList<ArrayList<String>> commands = outputOf(steps);
+        Build.Result result;
+        if (RunBash.wasKilled(jobID)) {
+            log.addAll(commands);
+            log.add(new ArrayList<>(Collections.singletonList("Superseded by a newer push to " + cell.getBranchRef())));
+            result = Build.Result.superseded;
+        } else {
+            List<ArrayList<String>> problems = problemsOf(steps);
+            log.addAll(problems);
+            log.addAll(commands);
+            result = problems.isEmpty() ? Build.Result.success : Build.Result.failure;
+        }
+        return new CellResult(name, cell.getEnv(), result, steps, jobLog.getFile().getPath(), System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Records the result of a matrix cell. Once every cell of the build
+     * has finished, the build is stored with one result for all cells
+     * and a single commit status is sent.
+     */
+    private static void cellFinished(BuildRequest cell, CellResult result, List<ArrayList<String>> cellLog) {
+        MatrixRun matrix = matrices.get(cell.getParentID());
+        if (matrix == null) {
+            System.err.println("Matrix cell " + cell.getJobID() + " finished without its build");
+            return;
+        }
+        synchronized (matrix) {
+            matrix.results[cell.getCellIndex()] = result;
+            matrix.logs.set(cell.getCellIndex(), cellLog);
+            if (--matrix.remaining > 0) {
+                return;
+            }
+        }
+        matrices.remove(cell.getParentID());
+
+        BuildRequest request = matrix.request;
+        String jobID = request.getJobID();
+        List<ArrayList<String>> log = new ArrayList<>(matrix.log);
+        List<CellResult> cells = Arrays.asList(matrix.results);
+        Build.Result status = Build.Result.success;
+        for (int i = 0; i < cells.size(); i++) {
+            log.add(new ArrayList<>(Collections.singletonList("Cell " + cells.get(i).getName() + ": " + cells.get(i).getStatus())));
+            log.addAll(matrix.logs.get(i));
+            status = worst(status, cells.get(i).status());
+        }
+
+        journal.update(jobID, JobJournal.State.reporting);
+        Build matrixBuild = new Build(jobID, status, request.getCommitSha(), request.getRepoKey(), log, getTimeString());
+        matrixBuild.setLogFile(logFileOf(jobID));
+        matrixBuild.setCells(cells);
+        StatusUpdater.updateStatus(request.getOwner(), request.getRepo(), request.getCommitSha(), status, jobID);
+        try {
+            store(matrixBuild);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            journal.finish(jobID);
+            Trace.of(jobID).finish(BuildJob::storeTrace);
+        }
+        remember(matrix.cacheKey, status, jobID, matrixBuild.getLimit());
+
+        System.out.println("Finished matrix job " + jobID + " as " + status);
+    }
+
+    /**
+     * Finishes a build with the result of an earlier build of the same
+     * tree and build configuration, without checking anything out or
+     * running anything. The stored build refers to the earlier build's log.
+     */
+    private static void reuse(BuildRequest request, List<ArrayList<String>> log, ResultCache.Entry cached) {
+        String jobID = request.getJobID();
+        log.add(new ArrayList<>(Collections.singletonList("Same tree and build configuration as job " + cached.getJobID()
+                + ", reusing its result: " + cached.getStatus())));
+        journal.update(jobID, JobJournal.State.reporting);
+        Build reusedBuild = new Build(jobID, cached.getStatus(), request.getCommitSha(), request.getRepoKey(), log, getTimeString());
+        reusedBuild.setLogFile(cached.getLogFile());
+        StatusUpdater.updateStatus(request.getOwner(), request.getRepo(), request.getCommitSha(), cached.getStatus(), jobID);
+
+        try {
+            store(reusedBuild);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        System.out.println("Reused the result of job " + cached.getJobID() + " for job " + jobID);
+    }
+
+    /**
+     * Remembers the result of a finished build for later pushes of the same tree.
+     * @param cacheKey - the build's key in the result cache, or null if it is not cached
+     * @param limit - the first limit a step was killed for, or null
+     */
+    private static void remember(String cacheKey, Build.Result status, String jobID, String limit) {
+        if (cacheKey != null) {
+            results.put(cacheKey, status, jobID, logFileOf(jobID), limit);
+        }
+    }
+
+    private static String limitOf(List<StepResult> steps) {
+        for (StepResult step : steps) {
+            if (step.getLimit() != null) {
+                return step.getLimit();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The result of a matrix build: superseded if any cell was, otherwise
+     * failure if any cell failed, otherwise error if any cell had one.
+     */
+    private static Build.Result worst(Build.Result a, Build.Result b) {
+        List<Build.Result> order = Arrays.asList(Build.Result.success, Build.Result.error, Build.Result.failure, Build.Result.superseded);
+        return order.indexOf(a) >= order.indexOf(b) ? a : b;
+    }
+
+    /**
+     * @param jobID - the unique ID of the job
+     * @return path of the job's log file, or null if it has none
+     */
+    private static String logFileOf(String jobID) {
+        File file = JobLog.fileOf(jobID);
+        return file.exists() ? file.getPath() : null;
     }
 
     /**
@@ -179,11 +736,30 @@ public class BuildJob {
      * @param commitSha
      */
     public static void error(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha) {
+        error(jobID, log, owner, repo, commitSha, null);
+    }
+
+    /**
+     * This function is called if the build cannot be compiled (or error while compiling?).
+     * Updates commit status to "error" and stores the build in the database with its log.
+     *
+     * @param jobID
+     * @param log
+     * @param owner
+     * @param repo
+     * @param commitSha
+     * @param steps - how each step of the pipeline went, or null if none ran
+     */
+    public static void error(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha,
+            List<StepResult> steps) {
+        journal.update(jobID, JobJournal.State.reporting);
         Build failedBuild = new Build(jobID, Build.Result.error, commitSha, owner + "/" + repo, log, getTimeString());
+        failedBuild.setLogFile(logFileOf(jobID));
+        failedBuild.setSteps(steps);
         StatusUpdater.updateStatus(owner, repo, commitSha, Build.Result.error, jobID);
 
         try {
-            BuildJob.storage.post(failedBuild);
+            store(failedBuild);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -206,12 +782,31 @@ public class BuildJob {
      * @param commitSha
      */
     public static void success(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha) {
+        success(jobID, log, owner, repo, commitSha, null);
+    }
 
+    /**
+     * This function is called if the build successfully compiles and passes all tests.
+     * Updates commit status to "success" and stores the build in the database with its log.
+     *
+     * @param jobID
+     * @param log
+     * @param owner
+     * @param repo
+     * @param commitSha
+     * @param steps - how each step of the pipeline went, or null if none ran
+     */
+    public static void success(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha,
+            List<StepResult> steps) {
+
+        journal.update(jobID, JobJournal.State.reporting);
         Build succeededBuild = new Build(jobID, Build.Result.success, commitSha, owner + "/" + repo, log, getTimeString());
+        succeededBuild.setLogFile(logFileOf(jobID));
+        succeededBuild.setSteps(steps);
         StatusUpdater.updateStatus(owner, repo, commitSha, Build.Result.success, jobID);
 
         try {
-            BuildJob.storage.post(succeededBuild);
+            store(succeededBuild);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -233,11 +828,30 @@ public class BuildJob {
      * @param commitSha
      */
     public static void fail(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha) {
+        fail(jobID, log, owner, repo, commitSha, null);
+    }
+
+    /**
+     * This function is called if the build compiles but fails one or more tests.
+     * Updates commit status to "failure" and stores the build in the database with its log.
+     *
+     * @param jobID
+     * @param log
+     * @param owner
+     * @param repo
+     * @param commitSha
+     * @param steps - how each step of the pipeline went, or null if none ran
+     */
+    public static void fail(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha,
+            List<StepResult> steps) {
+        journal.update(jobID, JobJournal.State.reporting);
         Build failedBuild = new Build(jobID, Build.Result.failure, commitSha, owner + "/" + repo, log, getTimeString());
+        failedBuild.setLogFile(logFileOf(jobID));
+        failedBuild.setSteps(steps);
         StatusUpdater.updateStatus(owner, repo, commitSha, Build.Result.failure, jobID);
 
         try {
-            BuildJob.storage.post(failedBuild);
+            store(failedBuild);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -248,4 +862,65 @@ public class BuildJob {
         System.out.println(log);
     }
 
-}
\ No newline at end of file
+    /**
+     * This function is called if a newer push to the same branch made the build obsolete,
+     * either while it was queued or while it ran.
+     * Updates commit status to "error" and stores the build as "superseded" with its log.
+     *
+     * @param jobID
+     * @param log
+     * @param owner
+     * @param repo
+     * @param commitSha
+     */
+    public static void superseded(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha) {
+        superseded(jobID, log, owner, repo, commitSha, null);
+    }
+
+    /**
+     * This function is called if a newer push to the same branch made the build obsolete,
+     * either while it was queued or while it ran.
+     * Updates commit status to "error" and stores the build as "superseded" with its log.
+     *
+     * @param jobID
+     * @param log
+     * @param owner
+     * @param repo
+     * @param commitSha
+     * @param steps - how each step of the pipeline went, or null if none ran
+     */
+    public static void superseded(String jobID, List<ArrayList<String>> log, String owner, String repo, String commitSha,
+            List<StepResult> steps) {
+        journal.update(jobID, JobJournal.State.reporting);
+        Build supersededBuild = new Build(jobID, Build.Result.superseded, commitSha, owner + "/" + repo, log, getTimeString());
+        supersededBuild.setLogFile(logFileOf(jobID));
+        supersededBuild.setSteps(steps);
+        StatusUpdater.updateStatus(owner, repo, commitSha, Build.Result.superseded, jobID);
+
+        try {
+            store(supersededBuild);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        System.out.println("Superseded job " + jobID);
+    }
+
+    /**
+     * Records a queued build that was dropped for a newer push to the same branch.
+     * @param request - the dropped build
+     */
+    public static void superseded(BuildRequest request) {
+        List<ArrayList<String>> log = new ArrayList<>();
+        log.add(new ArrayList<>(Collections.singletonList("Superseded by a newer push to " + request.getBranchRef())));
+        if (request.isCell()) {
+            cellFinished(request, new CellResult(Matrix.nameOf(request.getEnv()), request.getEnv(), Build.Result.superseded, null, null, 0), log);
+            return;
+        }
+        superseded(request.getJobID(), log, request.getOwner(), request.getRepo(), request.getCommitSha());
+        journal.finish(request.getJobID());
+    }
+
+}
@@ -0,0 +1,27 @@
+package buildtools;
+
+import java.util.List;
+
+/**
+ * One page of build summaries returned by a BuildQuery.
+ */
+public class BuildPage {
+    private List<BuildSummary> builds;
+    private String nextCursor;
+
+    public BuildPage(List<BuildSummary> builds, String nextCursor) {
+        this.builds = builds;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<BuildSummary> getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @return cursor to pass to fetch the next page, or null on the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
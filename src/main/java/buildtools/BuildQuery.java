@@ -0,0 +1,72 @@
+package buildtools;
+
+/**
+ * Filters and paging parameters for looking up stored builds. Any
+ * filter left null matches every build.
+ */
+public class BuildQuery {
+    public static final int DEFAULT_LIMIT = 20;
+    public static final int MAX_LIMIT = 100;
+
+    private String status;
+    private String repo;
+    private String commitSha;
+    private String from;
+    private String to;
+    private String cursor;
+    private int limit;
+
+    /**
+     * @param status - only builds with this status
+     * @param repo - only builds of this repository, as "owner/repo"
+     * @param commitSha - only builds of this commit
+     * @param from - only builds on or after this date (YYYY-MM-DD[ H:M:S])
+     * @param to - only builds on or before this date (YYYY-MM-DD[ H:M:S])
+     * @param cursor - nextCursor of the previous page, or null for the first page
+     * @param limit - page size, clamped to 1..MAX_LIMIT; 0 means DEFAULT_LIMIT
+     */
+    public BuildQuery(String status, String repo, String commitSha, String from, String to, String cursor, int limit) {
+        this.status = emptyToNull(status);
+        this.repo = emptyToNull(repo);
+        this.commitSha = emptyToNull(commitSha);
+        this.from = emptyToNull(from);
+        this.to = emptyToNull(to);
+        this.cursor = emptyToNull(cursor);
+        if (limit <= 0) {
+            limit = DEFAULT_LIMIT;
+        }
+        this.limit = Math.min(limit, MAX_LIMIT);
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getCommitSha() {
+        return commitSha;
+    }
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
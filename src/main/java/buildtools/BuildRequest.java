@@ -0,0 +1,193 @@
+package buildtools;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A build waiting in the BuildScheduler: everything BuildJob.run needs,
+ * plus when it was queued and whether it is for the default branch.
+ * A cell of a build matrix is a request of its own, with the jobID of
+ * the build it belongs to and the environment it runs with.
+ */
+public class BuildRequest {
+    private final String jobID;
+    private final String cloneURL;
+    private final String branchRef;
+    private final String owner;
+    private final String repo;
+    private final String commitSha;
+    private final boolean defaultBranch;
+    private final String parentID;
+    private final int cellIndex;
+    private final Map<String, String> env;
+    private long queuedAt;
+    private long seq;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param jobID - the unique ID of the job
+     * @param cloneURL - url to clone the github repository from
+     * @param branchRef - the unique identifier of the branch
+     * @param owner - owner of repo
+     * @param repo - name of repo
+     * @param commitSha - sha of the latest commit
+     * @param defaultBranch - true if the push was to the repository's default branch
+     */
+    public BuildRequest(String jobID, String cloneURL, String branchRef, String owner, String repo, String commitSha, boolean defaultBranch) {
+        this.jobID = jobID;
+        this.cloneURL = cloneURL;
+        this.branchRef = branchRef;
+        this.owner = owner;
+        this.repo = repo;
+        this.commitSha = commitSha;
+        this.defaultBranch = defaultBranch;
+        this.parentID = null;
+        this.cellIndex = -1;
+        this.env = Collections.emptyMap();
+    }
+
+    private BuildRequest(BuildRequest parent, String jobID, int cellIndex, Map<String, String> env) {
+        this.jobID = jobID;
+        this.cloneURL = parent.cloneURL;
+        this.branchRef = parent.branchRef;
+        this.owner = parent.owner;
+        this.repo = parent.repo;
+        this.commitSha = parent.commitSha;
+        this.defaultBranch = parent.defaultBranch;
+        this.parentID = parent.jobID;
+        this.cellIndex = cellIndex;
+        this.env = env;
+    }
+
+    /**
+     * @param cellIndex - position of the cell in the matrix
+     * @param env - the matrix variables of the cell
+     * @return a request for one cell of this build's matrix
+     */
+    public BuildRequest cell(int cellIndex, Map<String, String> env) {
+        return new BuildRequest(this, jobID + "-" + (cellIndex + 1), cellIndex, env);
+    }
+
+    /**
+     * Reads a request written to the job journal.
+     * @param json - the request as written by toJSON
+     * @throws JSONException - if a field is missing
+     */
+    public BuildRequest(JSONObject json) {
+        this(json.getString("jobID"), json.getString("cloneURL"), json.getString("branchRef"), json.getString("owner"),
+                json.getString("repo"), json.getString("commitSha"), json.optBoolean("defaultBranch"));
+    }
+
+    public String getJobID() {
+        return jobID;
+    }
+
+    public String getCloneURL() {
+        return cloneURL;
+    }
+
+    public String getBranchRef() {
+        return branchRef;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getRepo() {
+        return repo;
+    }
+
+    public String getCommitSha() {
+        return commitSha;
+    }
+
+    public boolean isDefaultBranch() {
+        return defaultBranch;
+    }
+
+    /**
+     * @return true if this is a cell of a build matrix
+     */
+    public boolean isCell() {
+        return parentID != null;
+    }
+
+    /**
+     * @return jobID of the build this cell belongs to, or null
+     */
+    public String getParentID() {
+        return parentID;
+    }
+
+    /**
+     * @return position of the cell in the matrix, or -1
+     */
+    public int getCellIndex() {
+        return cellIndex;
+    }
+
+    /**
+     * @return the environment variables the build runs with
+     */
+    public Map<String, String> getEnv() {
+        return env;
+    }
+
+    /**
+     * @return the repository as "owner/repo"
+     */
+    public String getRepoKey() {
+        return owner + "/" + repo;
+    }
+
+    /**
+     * @return the branch as "owner/repo@branchRef"
+     */
+    public String getBranchKey() {
+        return getRepoKey() + "@" + branchRef;
+    }
+
+    /**
+     * Cells are not journaled, the build they belong to is.
+     * @return the request as written to the job journal
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("jobID", jobID);
+        json.put("cloneURL", cloneURL);
+        json.put("branchRef", branchRef);
+        json.put("owner", owner);
+        json.put("repo", repo);
+        json.put("commitSha", commitSha);
+        json.put("defaultBranch", defaultBranch);
+        return json;
+    }
+
+    /**
+     * @return true if a newer push to the same branch cancelled the build
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    void queued(long seq, long queuedAt) {
+        this.seq = seq;
+        this.queuedAt = queuedAt;
+    }
+}
@@ -0,0 +1,369 @@
+package buildtools;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Process-wide queue of build jobs run by a fixed set of worker threads.
+ * The queue is bounded: when it is full new builds are refused so the
+ * webhook can answer with backpressure instead of piling up work. Pushes
+ * to a repository's default branch go first, and the number of builds
+ * running at once is limited per repository and per branch. A push to a
+ * branch supersedes the older builds of that branch: queued ones are
+ * dropped and running ones are cancelled. The cells of a build matrix
+ * are builds of their own, limited per repository but not per branch.
+ */
+public class BuildScheduler {
+    public static int WORKERS = 10;
+    public static int MAX_QUEUED = 100;
+    public static int MAX_PER_REPO = 4;
+    public static int MAX_PER_BRANCH = 1;
+    public static boolean SUPERSEDE = true;
+
+    private static final Comparator<BuildRequest> PRIORITY =
+            Comparator.comparing((BuildRequest r) -> !r.isDefaultBranch()).thenComparingLong(BuildRequest::getSeq);
+    private static final Metrics.Histogram QUEUE_WAIT_SECONDS =
+            Metrics.histogram("ci_queue_wait_seconds", "Time builds waited in the queue before starting");
+
+    /**
+     * Runs the builds taken from the queue.
+     */
+    public interface Runner {
+        /**
+         * Runs one build.
+         * @param request - the build to run
+         */
+        void run(BuildRequest request);
+
+        /**
+         * Records a queued build dropped for a newer push to its branch.
+         * @param request - the dropped build
+         */
+        default void superseded(BuildRequest request) {
+        }
+
+        /**
+         * Stops a running build made obsolete by a newer push to its
+         * branch. run() is expected to return soon after.
+         * @param request - the build to stop
+         */
+        default void cancel(BuildRequest request) {
+        }
+    }
+
+    /**
+     * Runs builds with BuildJob, cancelling them by killing their commands.
+     */
+    private static class BuildJobRunner implements Runner {
+        @Override
+        public void run(BuildRequest request) {
+            BuildJob.run(request);
+        }
+
+        @Override
+        public void superseded(BuildRequest request) {
+            BuildJob.superseded(request);
+        }
+
+        @Override
+        public void cancel(BuildRequest request) {
+            RunBash.kill(request.getJobID());
+        }
+    }
+
+    /**
+     * Outcome of submitting a build.
+     */
+    public enum Admission {
+        accepted,
+        queueFull,
+        shutdown
+    }
+
+    /**
+     * Snapshot of the scheduler's queue and wait time metrics.
+     */
+    public static class Stats {
+        private final int queued;
+        private final int running;
+        private final long accepted;
+        private final long rejected;
+        private final long started;
+        private final long superseded;
+        private final double averageWaitMillis;
+        private final long maxWaitMillis;
+
+        Stats(int queued, int running, long accepted, long rejected, long started, long superseded, double averageWaitMillis, long maxWaitMillis) {
+            this.queued = queued;
+            this.running = running;
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.started = started;
+            this.superseded = superseded;
+            this.averageWaitMillis = averageWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        public long getAccepted() {
+            return accepted;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getStarted() {
+            return started;
+        }
+
+        public long getSuperseded() {
+            return superseded;
+        }
+
+        public double getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+    }
+
+    private final int maxQueued;
+    private final int maxPerRepo;
+    private final int maxPerBranch;
+    private final Runner runner;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final TreeSet<BuildRequest> queue = new TreeSet<>(PRIORITY);
+    private final Map<String, Integer> runningPerRepo = new HashMap<>();
+    private final Map<String, List<BuildRequest>> runningPerBranch = new HashMap<>();
+    private int running = 0;
+    private boolean shutdown = false;
+    private long seq = 0;
+
+    private long accepted = 0;
+    private long rejected = 0;
+    private long started = 0;
+    private long superseded = 0;
+    private long totalWaitNanos = 0;
+    private long maxWaitNanos = 0;
+
+    /**
+     * Creates a scheduler with the default limits that runs builds
+     * with BuildJob.run.
+     */
+    public BuildScheduler() {
+        this(WORKERS, MAX_QUEUED, MAX_PER_REPO, MAX_PER_BRANCH, new BuildJobRunner());
+    }
+
+    /**
+     * @param workers - number of builds run at once
+     * @param maxQueued - number of builds that may wait before new ones are refused
+     * @param maxPerRepo - number of builds of one repository run at once
+     * @param maxPerBranch - number of builds of one branch run at once
+     * @param runner - runs, drops and cancels builds
+     */
+    public BuildScheduler(int workers, int maxQueued, int maxPerRepo, int maxPerBranch, Runner runner) {
+        this.maxQueued = maxQueued;
+        this.maxPerRepo = maxPerRepo;
+        this.maxPerBranch = maxPerBranch;
+        this.runner = runner;
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::workLoop, "build-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            this.workers.add(worker);
+        }
+    }
+
+    /**
+     * Queues a build unless the queue is full or the scheduler is shut down.
+     * @param request - the build to run
+     * @return whether the build was accepted
+     */
+    public Admission submit(BuildRequest request) {
+        List<BuildRequest> dropped = new ArrayList<>();
+        List<BuildRequest> cancelled = new ArrayList<>();
+        Admission admission;
+        synchronized (this) {
+            admission = admit(request);
+            // The cells of a matrix are queued together and must not drop each other
+            if (admission == Admission.accepted && SUPERSEDE && !request.isCell()) {
+                supersede(request, dropped, cancelled);
+            }
+        }
+        // Outside the lock, these post to storage and GitHub or kill processes
+        for (BuildRequest r : cancelled) {
+            runner.cancel(r);
+        }
+        for (BuildRequest r : dropped) {
+            try {
+                runner.superseded(r);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        return admission;
+    }
+
+    /**
+     * Takes the older builds of the request's branch out of the queue
+     * and marks its running ones as cancelled.
+     */
+    private void supersede(BuildRequest request, List<BuildRequest> dropped, List<BuildRequest> cancelled) {
+        Iterator<BuildRequest> it = queue.iterator();
+        while (it.hasNext()) {
+            BuildRequest queued = it.next();
+            if (queued != request && queued.getBranchKey().equals(request.getBranchKey())) {
+                it.remove();
+                dropped.add(queued);
+            }
+        }
+        for (BuildRequest running : runningPerBranch.getOrDefault(request.getBranchKey(), new ArrayList<>())) {
+            if (!running.isCancelled()) {
+                running.cancel();
+                cancelled.add(running);
+            }
+        }
+        superseded += dropped.size() + cancelled.size();
+    }
+
+    private Admission admit(BuildRequest request) {
+        if (shutdown) {
+            rejected++;
+            return Admission.shutdown;
+        }
+        // A push replacing a queued build of the same branch always fits,
+        // matrix cells replace nothing and count against the limit
+        boolean replaces = false;
+        if (SUPERSEDE && !request.isCell()) {
+            for (BuildRequest queued : queue) {
+                replaces |= queued.getBranchKey().equals(request.getBranchKey());
+            }
+        }
+        if (queue.size() >= maxQueued && !replaces) {
+            rejected++;
+            return Admission.queueFull;
+        }
+        request.queued(seq++, System.nanoTime());
+        queue.add(request);
+        accepted++;
+        notifyAll();
+        return Admission.accepted;
+    }
+
+    /**
+     * Takes the first queued build, in priority order, whose repository
+     * and branch are below their limits.
+     * @return the build, or null if none may start now
+     */
+    private BuildRequest next() {
+        Iterator<BuildRequest> it = queue.iterator();
+        while (it.hasNext()) {
+            BuildRequest request = it.next();
+            if (runningPerRepo.getOrDefault(request.getRepoKey(), 0) < maxPerRepo
+                    && (request.isCell() || runningPerBranch.getOrDefault(request.getBranchKey(), new ArrayList<>()).size() < maxPerBranch)) {
+                it.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void workLoop() {
+        while (true) {
+            BuildRequest request;
+            synchronized (this) {
+                while ((request = next()) == null) {
+                    if (shutdown && queue.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                long waited = System.nanoTime() - request.getQueuedAt();
+                QUEUE_WAIT_SECONDS.observe(waited);
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+                started++;
+                running++;
+                runningPerRepo.merge(request.getRepoKey(), 1, Integer::sum);
+                runningPerBranch.computeIfAbsent(request.getBranchKey(), b -> new ArrayList<>()).add(request);
+            }
+            try {
+                runner.run(request);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    running--;
+                    runningPerRepo.merge(request.getRepoKey(), -1, (a, b) -> a + b == 0 ? null : a + b);
+                    List<BuildRequest> branch = runningPerBranch.get(request.getBranchKey());
+                    branch.remove(request);
+                    if (branch.isEmpty()) {
+                        runningPerBranch.remove(request.getBranchKey());
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of builds waiting to run
+     */
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of builds running
+     */
+    public synchronized int running() {
+        return running;
+    }
+
+    /**
+     * @return current queue depth and wait times
+     */
+    public synchronized Stats stats() {
+        return new Stats(queue.size(), running, accepted, rejected, started, superseded,
+                started == 0 ? 0 : totalWaitNanos / 1e6 / started, maxWaitNanos / 1000000);
+    }
+
+    /**
+     * Stops accepting builds. Builds already queued are still run.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits for the workers to finish after shutdown().
+     * @param millis - maximum time to wait per worker
+     * @throws InterruptedException - if the waiting thread is interrupted
+     */
+    public void awaitTermination(long millis) throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join(millis);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package buildtools;
+
+/**
+ * Lightweight projection of a Build without its log, used for
+ * listing builds.
+ */
+public class BuildSummary {
+    private String jobID;
+    private String status;
+    private String commitSha;
+    private String url;
+    private String date;
+
+    public BuildSummary(String jobID, String status, String commitSha, String url, String date) {
+        this.jobID = jobID;
+        this.status = status;
+        this.commitSha = commitSha;
+        this.url = url;
+        this.date = date;
+    }
+
+    public String getJobID() {
+        return jobID;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getCommitSha() {
+        return commitSha;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getDate() {
+        return date;
+    }
+}
@@ -0,0 +1,114 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How one cell of a build matrix went: its environment, its result and
+ * how each of its steps went.
+ */
+public class CellResult {
+    private final String name;
+    private final Map<String, String> env;
+    private final Build.Result status;
+    private final List<StepResult> steps;
+    private final String logFile;
+    private final long millis;
+
+    /**
+     * @param name - name of the cell
+     * @param env - the matrix variables of the cell
+     * @param status - result of the cell's build
+     * @param steps - how each step went, or null if none ran
+     * @param logFile - path of the file with the cell's full output, or null
+     * @param millis - how long the cell ran
+     */
+    public CellResult(String name, Map<String, String> env, Build.Result status, List<StepResult> steps, String logFile, long millis) {
+        this.name = name;
+        this.env = env;
+        this.status = status;
+        this.steps = steps;
+        this.logFile = logFile;
+        this.millis = millis;
+    }
+
+    /**
+     * Reads a cell stored with a build.
+     * @param json - the cell as written by toJSON
+     */
+    public CellResult(JSONObject json) {
+        this.name = json.getString("name");
+        this.status = json.getEnum(Build.Result.class, "status");
+        this.logFile = json.optString("logFile", null);
+        this.millis = json.optLong("millis");
+        this.env = new LinkedHashMap<>();
+        JSONObject envJson = json.optJSONObject("env");
+        if (envJson != null) {
+            for (String key : envJson.keySet()) {
+                env.put(key, envJson.getString(key));
+            }
+        }
+        JSONArray stepsJson = json.optJSONArray("steps");
+        if (stepsJson == null) {
+            this.steps = null;
+        } else {
+            this.steps = new ArrayList<>();
+            for (int i = 0; i < stepsJson.length(); i++) {
+                steps.add(new StepResult(stepsJson.getJSONObject(i)));
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getEnv() {
+        return env;
+    }
+
+    public String getStatus() {
+        return status.toString();
+    }
+
+    public List<StepResult> getSteps() {
+        return steps;
+    }
+
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    Build.Result status() {
+        return status;
+    }
+
+    /**
+     * @return the cell as stored with a build
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("env", new JSONObject(env));
+        json.put("status", status);
+        json.put("logFile", logFile);
+        json.put("millis", millis);
+        if (steps != null) {
+            JSONArray stepsJson = new JSONArray();
+            for (StepResult step : steps) {
+                stepsJson.put(step.toJSON());
+            }
+            json.put("steps", stepsJson);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,334 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Dependency caches that outlive the builds using them, so Gradle, Maven
+ * and npm do not download every dependency again for every build. Each
+ * repository has its own caches, keyed by a hash of its build files and
+ * lockfiles. A build leases a cache for as long as it runs and gets its
+ * location through GRADLE_USER_HOME, MAVEN_OPTS (maven.repo.local) and
+ * npm_config_cache in the environment of its commands.
+ *
+ * A cache is used by one build at a time. When builds of the same
+ * repository and key run at once, each takes its own slot, at most
+ * SLOTS of them. A new cache starts as a copy of the most recently used
+ * cache of the repository, so changing a build file does not mean
+ * downloading everything again. When all caches together go over
+ * MAX_BYTES, the least recently used ones not leased are deleted.
+ *
+ * The Gradle user home of a cache also keeps the Gradle daemons of its
+ * builds warm, see GradleDaemons.
+ */
+public class DependencyCache {
+    public static String CACHE_DIRECTORY = "dependency-cache";
+    public static long MAX_BYTES = 10L * 1024 * 1024 * 1024;
+    public static int SLOTS = 4;
+    public static boolean ENABLED = true;
+
+    /**
+     * Files whose content decides which dependencies a build needs.
+     */
+    static final Set<String> KEY_FILES = new HashSet<>(Arrays.asList(
+            "build.gradle", "build.gradle.kts", "settings.gradle", "settings.gradle.kts", "gradle.properties",
+            "gradle-wrapper.properties", "gradle.lockfile", "pom.xml",
+            "package.json", "package-lock.json", "npm-shrinkwrap.json", "yarn.lock"));
+    private static final Set<String> SKIPPED = new HashSet<>(Arrays.asList(".git", "node_modules", "build", "target"));
+
+    /**
+     * A cache leased by a build. Closing the lease hands the cache back.
+     */
+    public class Lease implements AutoCloseable {
+        private final File directory;
+        private final ReentrantLock lock;
+        private boolean closed = false;
+
+        Lease(File directory, ReentrantLock lock) {
+            this.directory = directory;
+            this.lock = lock;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return the environment variables pointing the build tools at the cache
+         */
+        public Map<String, String> getEnv() {
+            Map<String, String> env = new LinkedHashMap<>();
+            String path = directory.getAbsolutePath();
+            env.put("GRADLE_USER_HOME", gradleUserHome(directory).getAbsolutePath());
+            String mavenOpts = System.getenv("MAVEN_OPTS");
+            env.put("MAVEN_OPTS", (mavenOpts == null ? "" : mavenOpts + " ") + "-Dmaven.repo.local=" + path + File.separator + "m2");
+            env.put("npm_config_cache", path + File.separator + "npm");
+            env.put("YARN_CACHE_FOLDER", path + File.separator + "yarn");
+            return env;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            GradleDaemons.check(gradleUserHome(directory));
+            if (!directory.setLastModified(System.currentTimeMillis())) {
+                System.err.println("Could not mark dependency cache " + directory + " as used");
+            }
+            synchronized (sizes) {
+                sizes.put(directory, MirrorCache.directorySize(directory));
+            }
+            lock.unlock();
+            evict(directory);
+        }
+    }
+
+    private final File root;
+    private final long maxBytes;
+    private final int slots;
+    private final Map<File, ReentrantLock> locks = new HashMap<>();
+    private final Map<File, Long> sizes = new HashMap<>();
+
+    /**
+     * Keeps the caches in CACHE_DIRECTORY with a budget of MAX_BYTES.
+     */
+    public DependencyCache() {
+        this(new File(CACHE_DIRECTORY), MAX_BYTES, SLOTS);
+    }
+
+    /**
+     * @param root - directory holding the caches
+     * @param maxBytes - disk budget of all caches together
+     * @param slots - number of builds of one repository and key that get a cache of their own at once
+     */
+    public DependencyCache(File root, long maxBytes, int slots) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        this.slots = slots;
+    }
+
+    /**
+     * Leases the cache for a build, waiting if every slot for its key is
+     * in use.
+     * @param repoKey - the repository as "owner/repo"
+     * @param worktree - the build's checkout, whose build files select the cache
+     * @return the lease, to be closed when the build's commands have finished
+     * @throws IOException - if the build files cannot be read or the cache cannot be created
+     */
+    public Lease acquire(String repoKey, File worktree) throws IOException {
+        File repoDirectory = new File(root, repoKey.replaceAll("[^A-Za-z0-9._-]", "_"));
+        String key = keyOf(worktree);
+        for (int slot = 0; slot < slots; slot++) {
+            File directory = new File(repoDirectory, key + "-" + slot);
+            ReentrantLock lock = lockOf(directory);
+            if (lock.tryLock()) {
+                return open(directory, lock);
+            }
+        }
+        File directory = new File(repoDirectory, key + "-0");
+        ReentrantLock lock = lockOf(directory);
+        lock.lock();
+        return open(directory, lock);
+    }
+
+    private Lease open(File directory, ReentrantLock lock) throws IOException {
+        try {
+            if (!directory.isDirectory()) {
+                seed(directory);
+            }
+            GradleDaemons.configure(gradleUserHome(directory));
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+        return new Lease(directory, lock);
+    }
+
+    /**
+     * Creates a cache as a copy of the most recently used cache of the
+     * same repository that is not leased, or empty if there is none. The
+     * daemon registry is not copied, the daemons stay with their cache.
+     */
+    private void seed(File directory) throws IOException {
+        File[] siblings = directory.getParentFile().listFiles(File::isDirectory);
+        List<File> byLastUse = new ArrayList<>(siblings == null ? new ArrayList<>() : Arrays.asList(siblings));
+        // Modification times may only have whole seconds, the fuller cache wins a tie
+        byLastUse.sort(Comparator.comparingLong(File::lastModified).thenComparingLong(this::sizeOf).reversed());
+        for (File sibling : byLastUse) {
+            ReentrantLock lock = lockOf(sibling);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                copyRecursively(sibling.toPath(), directory.toPath(), gradleUserHome(sibling).toPath().resolve("daemon"));
+                System.out.println("Seeded dependency cache " + directory + " from " + sibling.getName());
+                return;
+            } catch (IOException e) {
+                System.err.println("Could not copy dependency cache " + sibling + ": " + e.getMessage());
+                MirrorCache.deleteRecursively(directory);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (!directory.mkdirs()) {
+            throw new IOException("Could not create dependency cache " + directory);
+        }
+    }
+
+    /**
+     * Deletes the least recently used caches until all caches fit in the
+     * disk budget. Leased caches are skipped.
+     * @param keep - the cache just used, which is never deleted
+     */
+    void evict(File keep) {
+        File[] repos = root.listFiles(File::isDirectory);
+        if (repos == null) {
+            return;
+        }
+        List<File> byLastUse = new ArrayList<>();
+        long total = 0;
+        for (File repo : repos) {
+            File[] caches = repo.listFiles(File::isDirectory);
+            for (File cache : caches == null ? new File[0] : caches) {
+                byLastUse.add(cache);
+                total += sizeOf(cache);
+            }
+        }
+        byLastUse.sort(Comparator.comparingLong(File::lastModified));
+        for (File cache : byLastUse) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (cache.equals(keep)) {
+                continue;
+            }
+            ReentrantLock lock = lockOf(cache);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                long size = sizeOf(cache);
+                GradleDaemons.stopAll(gradleUserHome(cache));
+                MirrorCache.deleteRecursively(cache);
+                total -= size;
+                synchronized (sizes) {
+                    sizes.remove(cache);
+                }
+                System.out.println("Evicted dependency cache " + cache);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static File gradleUserHome(File cache) {
+        return new File(cache, "gradle");
+    }
+
+    private long sizeOf(File cache) {
+        synchronized (sizes) {
+            return sizes.computeIfAbsent(cache, MirrorCache::directorySize);
+        }
+    }
+
+    private ReentrantLock lockOf(File directory) {
+        synchronized (locks) {
+            return locks.computeIfAbsent(directory.getAbsoluteFile(), d -> new ReentrantLock());
+        }
+    }
+
+    /**
+     * Hashes the build files and lockfiles of a checkout, wherever they
+     * are in it, so multi-project builds are covered.
+     * @param worktree - the build's checkout
+     * @return the cache key, "default" if the checkout has no build files
+     * @throws IOException - if a build file cannot be read
+     */
+    static String keyOf(File worktree) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Path base = worktree.toPath();
+        Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(base) && SKIPPED.contains(dir.getFileName().toString())
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && KEY_FILES.contains(file.getFileName().toString())) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        if (files.isEmpty()) {
+            return "default";
+        }
+        files.sort(Comparator.comparing(file -> base.relativize(file).toString()));
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (Path file : files) {
+            digest.update(base.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(file));
+            digest.update((byte) 0);
+        }
+        StringBuilder key = new StringBuilder();
+        byte[] hash = digest.digest();
+        for (int i = 0; i < 8; i++) {
+            key.append(String.format("%02x", hash[i]));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Copies a directory with everything in it but one subdirectory,
+     * keeping symbolic links.
+     */
+    private static void copyRecursively(Path source, Path target, Path skipped) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(skipped)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, target.resolve(source.relativize(file)),
+                        StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
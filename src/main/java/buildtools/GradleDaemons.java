@@ -0,0 +1,259 @@
+package buildtools;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps Gradle daemons warm between builds of the same repository. Every
+ * dependency cache has a GRADLE_USER_HOME of its own (see
+ * DependencyCache), and Gradle reuses an idle daemon of the same user
+ * home, Gradle version and JDK. So consecutive builds of a repository,
+ * which lease the same cache one at a time, share a pool of warm daemons
+ * instead of starting a new JVM for every build, and every toolchain in
+ * a build matrix gets daemons of its own.
+ *
+ * The daemons are configured through the gradle.properties of the user
+ * home: they stop by themselves after IDLE_TIMEOUT_MILLIS without a
+ * build, and with JVM_ARGS set their heap is bounded. When a build hands
+ * its cache back, the daemons of that cache are checked, and those that
+ * have been running for more than MAX_LIFETIME_MILLIS or use more than
+ * MAX_RSS_BYTES of memory are stopped, so a leaking daemon is replaced by
+ * a fresh one. A daemon is never stopped while a build holds its cache.
+ *
+ * With RunBash.MAX_CPU_SECONDS or MAX_MEMORY_BYTES set there are no warm
+ * daemons. The ulimits of a step would be inherited by a daemon it
+ * started, which then carries them, and its lifetime CPU time, into the
+ * later builds it serves, while a daemon started before the limits were
+ * set escapes them. Gradle then runs each build in a process of the step.
+ */
+public class GradleDaemons {
+    public static boolean ENABLED = true;
+    public static long IDLE_TIMEOUT_MILLIS = 30L * 60 * 1000;
+    public static long MAX_LIFETIME_MILLIS = 4L * 60 * 60 * 1000;
+    public static long MAX_RSS_BYTES = 2L * 1024 * 1024 * 1024;
+    /**
+     * JVM arguments of the daemons, or null to use the project's own.
+     */
+    public static String JVM_ARGS = null;
+
+    private static final Pattern DAEMON_LOG = Pattern.compile("^daemon-(\\d+)\\.out\\.log$");
+    private static final Pattern RSS = Pattern.compile("(?m)^VmRSS:\\s*(\\d+)\\s*kB");
+    private static final String MANAGED = "# Managed by the CI server, see GradleDaemons";
+
+    /**
+     * A running daemon.
+     */
+    public static class Daemon {
+        private final long pid;
+        private final long startedAt;
+        private final long rssBytes;
+
+        Daemon(long pid, long startedAt, long rssBytes) {
+            this.pid = pid;
+            this.startedAt = startedAt;
+            this.rssBytes = rssBytes;
+        }
+
+        public long getPid() {
+            return pid;
+        }
+
+        /**
+         * @return when the daemon started in milliseconds since the epoch, or -1 if unknown
+         */
+        public long getStartedAt() {
+            return startedAt;
+        }
+
+        /**
+         * @return resident memory of the daemon in bytes, or -1 if unknown
+         */
+        public long getRssBytes() {
+            return rssBytes;
+        }
+    }
+
+    private GradleDaemons() {
+    }
+
+    /**
+     * @return whether builds keep warm daemons, not while the steps have ulimits
+     */
+    public static boolean enabled() {
+        return ENABLED && RunBash.MAX_CPU_SECONDS <= 0 && RunBash.MAX_MEMORY_BYTES <= 0;
+    }
+
+    /**
+     * Writes the daemon settings into the gradle.properties of a Gradle
+     * user home, keeping any other settings in it. Properties in the
+     * user home win over the project's, so turning the daemon off here
+     * turns it off for every build. Without warm daemons, those still
+     * running from earlier builds are stopped, so no build uses them.
+     * @param gradleUserHome - the GRADLE_USER_HOME of a build, not in use by any build
+     * @throws IOException - if the file cannot be written
+     */
+    public static void configure(File gradleUserHome) throws IOException {
+        if (!gradleUserHome.isDirectory() && !gradleUserHome.mkdirs()) {
+            throw new IOException("Could not create " + gradleUserHome);
+        }
+        File properties = new File(gradleUserHome, "gradle.properties");
+        List<String> lines = new ArrayList<>();
+        if (properties.exists()) {
+            for (String line : Files.readAllLines(properties.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.equals(MANAGED) && !line.startsWith("org.gradle.daemon")
+                        && !line.startsWith("org.gradle.jvmargs")) {
+                    lines.add(line);
+                }
+            }
+        }
+        lines.add(MANAGED);
+        boolean daemons = enabled();
+        lines.add("org.gradle.daemon=" + daemons);
+        lines.add("org.gradle.daemon.idletimeout=" + IDLE_TIMEOUT_MILLIS);
+        if (JVM_ARGS != null) {
+            lines.add("org.gradle.jvmargs=" + JVM_ARGS);
+        }
+        try (Writer writer = new FileWriter(properties)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        if (!daemons) {
+            stopAll(gradleUserHome);
+        }
+    }
+
+    /**
+     * Finds the daemons of a Gradle user home that are running. Every
+     * daemon writes daemon/[version]/daemon-[pid].out.log, and the
+     * process with that id must still be a Gradle daemon.
+     * @param gradleUserHome - the GRADLE_USER_HOME of a build
+     * @return the running daemons, empty without /proc
+     */
+    public static List<Daemon> find(File gradleUserHome) {
+        List<Daemon> daemons = new ArrayList<>();
+        File[] versions = new File(gradleUserHome, "daemon").listFiles(File::isDirectory);
+        for (File version : versions == null ? new File[0] : versions) {
+            File[] logs = version.listFiles();
+            for (File log : logs == null ? new File[0] : logs) {
+                Matcher name = DAEMON_LOG.matcher(log.getName());
+                if (!name.matches()) {
+                    continue;
+                }
+                long pid = Long.parseLong(name.group(1));
+                if (isDaemon(pid)) {
+                    daemons.add(new Daemon(pid, startedAt(pid), rssOf(pid)));
+                }
+            }
+        }
+        return daemons;
+    }
+
+    /**
+     * Stops the daemons of a Gradle user home that have been running too
+     * long or use too much memory. Only to be called while no build uses
+     * the user home.
+     * @param gradleUserHome - the GRADLE_USER_HOME of a build
+     * @return number of daemons stopped
+     */
+    public static int check(File gradleUserHome) {
+        return check(gradleUserHome, System.currentTimeMillis(), MAX_LIFETIME_MILLIS, MAX_RSS_BYTES);
+    }
+
+    static int check(File gradleUserHome, long now, long maxLifetimeMillis, long maxRssBytes) {
+        int stopped = 0;
+        for (Daemon daemon : find(gradleUserHome)) {
+            String reason = null;
+            if (daemon.getStartedAt() >= 0 && now - daemon.getStartedAt() > maxLifetimeMillis) {
+                reason = "has been running for " + (now - daemon.getStartedAt()) / 1000 + " s";
+            } else if (daemon.getRssBytes() > maxRssBytes) {
+                reason = "uses " + daemon.getRssBytes() / (1024 * 1024) + " MB";
+            }
+            if (reason != null && stop(daemon.getPid())) {
+                System.out.println("Stopped Gradle daemon " + daemon.getPid() + " of " + gradleUserHome + ", it " + reason);
+                stopped++;
+            }
+        }
+        return stopped;
+    }
+
+    /**
+     * Stops every daemon of a Gradle user home, e.g. before its cache is
+     * deleted.
+     * @param gradleUserHome - the GRADLE_USER_HOME of a build
+     */
+    public static void stopAll(File gradleUserHome) {
+        for (Daemon daemon : find(gradleUserHome)) {
+            stop(daemon.getPid());
+        }
+    }
+
+    /**
+     * Asks a daemon to stop with SIGTERM, which it handles by finishing
+     * cleanly.
+     */
+    private static boolean stop(long pid) {
+        try {
+            return new ProcessBuilder("kill", "-TERM", Long.toString(pid))
+                    .redirectErrorStream(true).start().waitFor() == 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Checks the command line of a process, as the id in a daemon log may
+     * since have been taken by another process.
+     */
+    private static boolean isDaemon(long pid) {
+        try {
+            byte[] cmdline = Files.readAllBytes(new File("/proc/" + pid + "/cmdline").toPath());
+            return new String(cmdline, StandardCharsets.UTF_8).contains("GradleDaemon");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the start time of a process from /proc/[pid]/stat, in clock
+     * ticks after boot, and the boot time from /proc/stat.
+     */
+    private static long startedAt(long pid) {
+        try {
+            String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), StandardCharsets.UTF_8);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(fields[19]);
+            for (String line : Files.readAllLines(new File("/proc/stat").toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("btime ")) {
+                    return Long.parseLong(line.substring(6).trim()) * 1000 + ticks * 1000 / ProcessTree.CLOCK_TICKS;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Process exited while reading
+        }
+        return -1;
+    }
+
+    private static long rssOf(long pid) {
+        try {
+            String status = new String(Files.readAllBytes(new File("/proc/" + pid + "/status").toPath()), StandardCharsets.UTF_8);
+            Matcher rss = RSS.matcher(status);
+            return rss.find() ? Long.parseLong(rss.group(1)) * 1024 : -1;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
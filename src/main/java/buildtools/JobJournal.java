@@ -0,0 +1,172 @@
+package buildtools;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable record of the builds that are queued or running, so a restart
+ * does not leave them pending forever. Every state change of a build is
+ * one small record appended to a SegmentStore, and the build is removed
+ * once it is finished. Whatever is left in the journal on startup was
+ * interrupted and is recovered by BuildJob.recover.
+ */
+public class JobJournal {
+    public static String JOURNAL_DIRECTORY = "db/journal";
+
+    /**
+     * How far a build got.
+     */
+    public enum State {
+        /** waiting in the scheduler */
+        queued,
+        /** fetching and checking out the commit */
+        cloning,
+        /** running the build commands */
+        running,
+        /** storing the result and updating the commit status */
+        reporting
+    }
+
+    /**
+     * A build left in the journal.
+     */
+    public static class Entry {
+        private final BuildRequest request;
+        private final State state;
+        private final long updatedAt;
+
+        Entry(BuildRequest request, State state, long updatedAt) {
+            this.request = request;
+            this.state = state;
+            this.updatedAt = updatedAt;
+        }
+
+        public BuildRequest getRequest() {
+            return request;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return time of the last state change, in milliseconds since the epoch
+         */
+        public long getUpdatedAt() {
+            return updatedAt;
+        }
+    }
+
+    private final SegmentStore store;
+    private final Map<String, BuildRequest> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the journal in JOURNAL_DIRECTORY.
+     */
+    public JobJournal() {
+        this(new File(JOURNAL_DIRECTORY));
+    }
+
+    /**
+     * Opens the journal. If it cannot be opened nothing is journaled.
+     * @param directory - directory of the journal store
+     */
+    public JobJournal(File directory) {
+        SegmentStore opened = null;
+        try {
+            opened = SegmentStore.open(directory);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.store = opened;
+        for (Entry entry : entries()) {
+            jobs.put(entry.getRequest().getJobID(), entry.getRequest());
+        }
+    }
+
+    /**
+     * Journals a build about to be submitted to the scheduler.
+     * @param request - the build
+     */
+    public void queued(BuildRequest request) {
+        jobs.put(request.getJobID(), request);
+        write(request, State.queued);
+    }
+
+    /**
+     * Journals a state change. Builds that were never queued through the
+     * journal are ignored.
+     * @param jobID - the build's jobID
+     * @param state - the state the build is in now
+     */
+    public void update(String jobID, State state) {
+        BuildRequest request = jobs.get(jobID);
+        if (request != null) {
+            write(request, state);
+        }
+    }
+
+    /**
+     * Removes a finished build from the journal.
+     * @param jobID - the build's jobID
+     */
+    public void finish(String jobID) {
+        if (jobs.remove(jobID) == null || store == null) {
+            return;
+        }
+        try {
+            store.remove(jobID);
+        } catch (IOException e) {
+            System.err.println("Could not remove job " + jobID + " from the journal: " + e.getMessage());
+        }
+    }
+
+    private void write(BuildRequest request, State state) {
+        if (store == null) {
+            return;
+        }
+        JSONObject record = request.toJSON();
+        record.put("state", state);
+        record.put("updatedAt", System.currentTimeMillis());
+        try {
+            store.put(request.getJobID(), record);
+        } catch (IOException e) {
+            System.err.println("Could not journal job " + request.getJobID() + " as " + state + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return every build in the journal, least recently changed first
+     */
+    public List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        if (store == null) {
+            return entries;
+        }
+        Map<String, JSONObject> records;
+        try {
+            records = store.getAll();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return entries;
+        }
+        for (Map.Entry<String, JSONObject> record : records.entrySet()) {
+            JSONObject json = record.getValue();
+            try {
+                entries.add(new Entry(new BuildRequest(json), json.getEnum(State.class, "state"), json.optLong("updatedAt")));
+            } catch (JSONException e) {
+                System.err.println("Ignoring invalid journal record for job " + record.getKey());
+            }
+        }
+        entries.sort(Comparator.comparingLong(Entry::getUpdatedAt));
+        return entries;
+    }
+}
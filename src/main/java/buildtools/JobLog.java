@@ -0,0 +1,155 @@
+package buildtools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Output of one build job. Every line is streamed to the job's log file
+ * on disk and into a bounded LogRing, so the full log never has to be
+ * held in memory. Only a tail of each command ends up in the Build record.
+ */
+public class JobLog {
+    public static String LOG_DIRECTORY = "build-logs";
+    public static int RING_LINES = 1000;
+    public static int TAIL_LINES = 100;
+
+    private static final Map<String, JobLog> running = new ConcurrentHashMap<>();
+
+    private final String jobID;
+    private final File file;
+    private final Writer writer;
+    private final LogRing ring = new LogRing(RING_LINES);
+
+    private JobLog(String jobID, File file) throws IOException {
+        this.jobID = jobID;
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Opens the log file of a job for appending.
+     * @param jobID - the unique ID of the job
+     * @return the job log
+     * @throws IOException - if the log file cannot be created
+     */
+    public static JobLog open(String jobID) throws IOException {
+        File dir = new File(LOG_DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create log directory " + dir);
+        }
+        JobLog log = new JobLog(jobID, fileOf(jobID));
+        running.put(jobID, log);
+        return log;
+    }
+
+    /**
+     * @param jobID - the unique ID of the job
+     * @return the log of the job if it is still running, otherwise null
+     */
+    public static JobLog running(String jobID) {
+        return running.get(jobID);
+    }
+
+    /**
+     * @param jobID - the unique ID of the job
+     * @return the file the job's log is written to
+     */
+    public static File fileOf(String jobID) {
+        return new File(LOG_DIRECTORY, jobID + ".log");
+    }
+
+    /**
+     * Appends a line to the log file and the ring.
+     * @param line - the output line
+     */
+    public void println(String line) {
+        synchronized (writer) {
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Under the same lock, so steps running in parallel number lines as in the file
+            ring.append(line);
+        }
+    }
+
+    /**
+     * @return number of lines written so far
+     */
+    public long lines() {
+        return ring.total();
+    }
+
+    /**
+     * Returns the last TAIL_LINES lines written since the given line, with
+     * a note in front if lines were left out.
+     * @param from - number of the first line of interest
+     * @return the tail, oldest line first
+     */
+    public List<String> tail(long from) {
+        List<String> tail = ring.tail(from, TAIL_LINES);
+        long omitted = ring.total() - from - tail.size();
+        if (omitted > 0) {
+            tail.add(0, "... " + omitted + " lines omitted, see " + file.getPath());
+        }
+        return tail;
+    }
+
+    /**
+     * @return the in-memory ring of recent lines
+     */
+    public LogRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public String getJobID() {
+        return jobID;
+    }
+
+    /**
+     * Flushes the log file to disk.
+     */
+    public void flush() {
+        synchronized (writer) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the log file. No lines may be written afterwards, readers
+     * of a finished job read the log file instead.
+     */
+    public void close() {
+        synchronized (writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        ring.close();
+        // Only once the file is complete, readers that no longer find the job read it
+        running.remove(jobID, this);
+    }
+}
@@ -0,0 +1,121 @@
+package buildtools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size ring of the most recent output lines of a build. Lines are
+ * numbered from 0 in the order they were appended, so readers can ask
+ * for everything after a line they have already seen. Memory use stays
+ * bounded by the capacity however much output a build produces.
+ */
+public class LogRing {
+    private final String[] lines;
+    private long total = 0;
+    private boolean closed = false;
+
+    /**
+     * @param capacity - maximum number of lines kept
+     */
+    public LogRing(int capacity) {
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Appends a line, overwriting the oldest one if the ring is full.
+     * @param line - the output line
+     */
+    public synchronized void append(String line) {
+        lines[(int) (total % lines.length)] = line;
+        total++;
+        notifyAll();
+    }
+
+    /**
+     * @return number of lines appended since the ring was created
+     */
+    public synchronized long total() {
+        return total;
+    }
+
+    /**
+     * @return number of the oldest line still kept
+     */
+    public synchronized long first() {
+        return Math.max(0, total - lines.length);
+    }
+
+    /**
+     * Returns the kept lines numbered from the given line onwards. Lines
+     * that have already been overwritten are skipped.
+     * @param from - number of the first line wanted
+     * @return the lines, oldest first
+     */
+    public synchronized List<String> from(long from) {
+        List<String> result = new ArrayList<>();
+        for (long i = Math.max(from, first()); i < total; i++) {
+            result.add(lines[(int) (i % lines.length)]);
+        }
+        return result;
+    }
+
+    /**
+     * Copies the kept lines numbered from the given line onwards, like
+     * from(long), and tells where they start.
+     * @param from - number of the first line wanted
+     * @param into - list the lines are added to
+     * @return number of the first line added, larger than from if lines were overwritten
+     */
+    public synchronized long read(long from, List<String> into) {
+        long start = Math.max(from, first());
+        for (long i = start; i < total; i++) {
+            into.add(lines[(int) (i % lines.length)]);
+        }
+        return start;
+    }
+
+    /**
+     * Returns the last n kept lines, but none before the given line.
+     * @param from - number of the first line that may be returned
+     * @param n - maximum number of lines
+     * @return the lines, oldest first
+     */
+    public synchronized List<String> tail(long from, int n) {
+        return from(Math.max(from, total - n));
+    }
+
+    /**
+     * Marks the ring as complete, waking up waiting readers.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return true if no more lines will be appended
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits until there is a line numbered at least from, the ring is
+     * closed or the timeout passes.
+     * @param from - number of the line waited for
+     * @param timeoutMillis - maximum time to wait
+     * @return true if such a line is available
+     * @throws InterruptedException - if the waiting thread is interrupted
+     */
+    public synchronized boolean await(long from, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (total <= from && !closed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+        }
+        return total > from;
+    }
+}
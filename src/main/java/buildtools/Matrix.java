@@ -0,0 +1,146 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The build matrix of a .dd.yml: environment variables with the values
+ * to build with. Every combination of values is one cell, and every
+ * cell runs the build's steps in its own working copy with its values
+ * in the environment:
+ *
+ *   matrix:
+ *     JAVA_HOME: [/usr/lib/jvm/java-8-openjdk, /usr/lib/jvm/java-11-openjdk]
+ *     GRADLE_OPTS:
+ *       - -Dfast=true
+ *       - -Dfast=false
+ *
+ * A build configuration without a matrix section runs once, as before.
+ */
+public class Matrix {
+    public static int MAX_CELLS = 16;
+
+    static final Pattern MATRIX = Pattern.compile("^matrix:\\s*$");
+    private static final Pattern VARIABLE = Pattern.compile("^(\\s+)([A-Za-z_][A-Za-z0-9_]*):\\s*(.*)$");
+    private static final Pattern ITEM = Pattern.compile("^\\s+-\\s*(.*)$");
+
+    private Matrix() {
+    }
+
+    /**
+     * Reads the matrix of a build configuration file.
+     * @param buildConfig - the .dd.yml file
+     * @return the environment of every cell, empty if there is no matrix
+     * @throws IOException - if the file cannot be read
+     * @throws IllegalArgumentException - if the matrix section is not valid
+     */
+    public static List<Map<String, String>> read(File buildConfig) throws IOException {
+        return parse(new String(Files.readAllBytes(buildConfig.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Expands the matrix section of a build configuration into its cells,
+     * the first variable changing slowest.
+     * @param buildConfig - content of the .dd.yml file
+     * @return the environment of every cell, empty if there is no matrix
+     * @throws IllegalArgumentException - if the matrix section is not valid
+     */
+    public static List<Map<String, String>> parse(String buildConfig) {
+        String[] lines = buildConfig.split("\r?\n");
+        Map<String, List<String>> variables = new LinkedHashMap<>();
+        int i = 0;
+        while (i < lines.length && !MATRIX.matcher(lines[i]).matches()) {
+            i++;
+        }
+        String variable = null;
+        for (i++; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                break;
+            }
+            Matcher item = ITEM.matcher(line);
+            if (variable != null && item.matches()) {
+                variables.get(variable).add(unquote(item.group(1)));
+                continue;
+            }
+            Matcher key = VARIABLE.matcher(line);
+            if (!key.matches()) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": expected 'VARIABLE: [values]'");
+            }
+            variable = key.group(2);
+            if (variables.containsKey(variable)) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": variable " + variable + " is listed twice");
+            }
+            List<String> values = new ArrayList<>();
+            String value = key.group(3).trim();
+            if (value.startsWith("[") && value.endsWith("]")) {
+                for (String v : value.substring(1, value.length() - 1).split(",")) {
+                    if (!v.trim().isEmpty()) {
+                        values.add(unquote(v));
+                    }
+                }
+            } else if (!value.isEmpty()) {
+                values.add(unquote(value));
+            }
+            variables.put(variable, values);
+        }
+
+        List<Map<String, String>> cells = new ArrayList<>();
+        if (variables.isEmpty()) {
+            return cells;
+        }
+        cells.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> entry : variables.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException("Matrix variable " + entry.getKey() + " has no values");
+            }
+            List<Map<String, String>> expanded = new ArrayList<>();
+            for (Map<String, String> cell : cells) {
+                for (String value : entry.getValue()) {
+                    Map<String, String> env = new LinkedHashMap<>(cell);
+                    env.put(entry.getKey(), value);
+                    expanded.add(env);
+                }
+            }
+            cells = expanded;
+            if (cells.size() > MAX_CELLS) {
+                throw new IllegalArgumentException("The matrix has more than " + MAX_CELLS + " cells");
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * @param env - the environment of a cell
+     * @return name of the cell, e.g. "JAVA_HOME=/usr/lib/jvm/java-11 GRADLE_OPTS=-Dfast=true"
+     */
+    public static String nameOf(Map<String, String> env) {
+        StringBuilder name = new StringBuilder();
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            if (name.length() > 0) {
+                name.append(' ');
+            }
+            name.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return name.toString();
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") || value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,264 @@
+package buildtools;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, histograms and gauges of the server's hot paths, served in
+ * the Prometheus text format. Updating a counter or histogram is a few
+ * LongAdder increments without locks, so they can sit on the request
+ * path; gauges are only read when the metrics are scraped. Metrics are
+ * registered once, usually in a static field of the class they measure,
+ * and registering the same name and labels again returns the same one.
+ * With ENABLED false updates are ignored.
+ */
+public class Metrics {
+    public static boolean ENABLED = true;
+
+    /**
+     * Upper bounds in seconds of the buckets of every histogram, the
+     * default buckets of the Prometheus client libraries.
+     */
+    static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    private static final Map<String, Metric> registry = new ConcurrentSkipListMap<>();
+
+    /**
+     * A named metric with optional labels.
+     */
+    public abstract static class Metric {
+        private final String name;
+        private final String help;
+        private final String labels;
+
+        Metric(String name, String help, String labels) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+        }
+
+        abstract String type();
+
+        abstract void render(StringBuilder out);
+
+        /**
+         * Writes one sample line, adding a label to the metric's own.
+         */
+        void sample(StringBuilder out, String suffix, String extraLabel, String value) {
+            out.append(name).append(suffix);
+            if (!labels.isEmpty() || extraLabel != null) {
+                out.append('{').append(labels);
+                if (extraLabel != null) {
+                    out.append(labels.isEmpty() ? "" : ",").append(extraLabel);
+                }
+                out.append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    /**
+     * A count that only goes up, e.g. of webhooks received.
+     */
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help, String labels) {
+            super(name, help, labels);
+        }
+
+        public void inc() {
+            if (ENABLED) {
+                count.increment();
+            }
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            sample(out, "", null, Long.toString(count.sum()));
+        }
+    }
+
+    /**
+     * Durations counted in buckets, with their sum.
+     */
+    public static class Histogram extends Metric {
+        private final long[] boundNanos = new long[BUCKETS.length];
+        // One more for durations over the last bound
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help, String labels) {
+            super(name, help, labels);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                boundNanos[i] = (long) (BUCKETS[i] * 1e9);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param nanos - a duration in nanoseconds
+         */
+        public void observe(long nanos) {
+            if (!ENABLED) {
+                return;
+            }
+            int i = 0;
+            while (i < boundNanos.length && nanos > boundNanos[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @param startNanos - System.nanoTime() when the measured work started
+         */
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                sample(out, "_bucket", "le=\"" + le + "\"", Long.toString(cumulative));
+            }
+            sample(out, "_sum", null, Double.toString(sumNanos.sum() / 1e9));
+            sample(out, "_count", null, Long.toString(cumulative));
+        }
+    }
+
+    /**
+     * A value read when the metrics are scraped, e.g. the queue depth.
+     */
+    public static class Gauge extends Metric {
+        private final LongSupplier value;
+
+        Gauge(String name, String help, String labels, LongSupplier value) {
+            super(name, help, labels);
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void render(StringBuilder out) {
+            long v;
+            try {
+                v = value.getAsLong();
+            } catch (RuntimeException e) {
+                // Whatever it reads is not available, leave the sample out
+                return;
+            }
+            sample(out, "", null, Long.toString(v));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name - metric name, e.g. ci_webhooks_total
+     * @param help - what is counted
+     * @param labels - label names and values, alternating
+     * @return the counter
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        String rendered = labelsOf(labels);
+        return (Counter) registry.computeIfAbsent(keyOf(name, rendered), k -> new Counter(name, help, rendered));
+    }
+
+    /**
+     * @param name - metric name, e.g. ci_clone_seconds
+     * @param help - what is timed
+     * @param labels - label names and values, alternating
+     * @return the histogram, with BUCKETS
+     */
+    public static Histogram histogram(String name, String help, String... labels) {
+        String rendered = labelsOf(labels);
+        return (Histogram) registry.computeIfAbsent(keyOf(name, rendered), k -> new Histogram(name, help, rendered));
+    }
+
+    /**
+     * Registers a gauge, replacing an earlier one of the same name and
+     * labels.
+     * @param name - metric name, e.g. ci_queue_depth
+     * @param help - what is measured
+     * @param value - reads the value
+     * @param labels - label names and values, alternating
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        String rendered = labelsOf(labels);
+        registry.put(keyOf(name, rendered), new Gauge(name, help, rendered, value));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format, version 0.0.4
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        String previous = null;
+        for (Metric metric : registry.values()) {
+            if (!metric.name.equals(previous)) {
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+                previous = metric.name;
+            }
+            metric.render(out);
+        }
+        return out.toString();
+    }
+
+    // Sorts every series of a name together
+    private static String keyOf(String name, String labels) {
+        return name + '\u0000' + labels;
+    }
+
+    private static String labelsOf(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder rendered = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                rendered.append(',');
+            }
+            rendered.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return rendered.toString();
+    }
+}
@@ -0,0 +1,441 @@
+package buildtools;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Local bare mirrors of the repositories we build, one per clone URL.
+ * A build fetches only what is new into the mirror and then writes the
+ * tree of its commit into its own worktree, instead of cloning the full
+ * history every time. Mirrors that were not used for the longest time
+ * are deleted when all of them together go over the disk budget.
+ *
+ * With the singleBranch strategy only the pushed branch is fetched. If
+ * the build configuration lists Paths, only those are checked out.
+ * JGit 4.7 cannot fetch shallow, so mirrors always hold full history of
+ * the branches they fetched; after the first build that history is
+ * never transferred again.
+ *
+ * Every worktree is a cheap clone of its mirror: its .git has HEAD
+ * detached at the commit, an index of the commit's tree and the mirror's
+ * branches and tags, and borrows all objects from the mirror through
+ * objects/info/alternates instead of copying them, so git rev-parse and
+ * git describe work in a build. With GIT_DIRECTORY false the worktree
+ * only has the files.
+ */
+public class MirrorCache {
+    public static String MIRROR_DIRECTORY = "mirrors";
+    public static long MAX_BYTES = 5L * 1024 * 1024 * 1024;
+    public static Strategy STRATEGY = Strategy.singleBranch;
+    public static boolean GIT_DIRECTORY = true;
+
+    /**
+     * Which refs are fetched into a mirror.
+     */
+    public enum Strategy {
+        /** every branch of the remote */
+        full,
+        /** only the branch that was pushed, every branch if that does not bring the commit */
+        singleBranch
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final Map<String, ReentrantLock> locks = new HashMap<>();
+    private final Map<String, Long> sizes = new HashMap<>();
+
+    /**
+     * Creates a cache in MIRROR_DIRECTORY with a budget of MAX_BYTES.
+     */
+    public MirrorCache() {
+        this(new File(MIRROR_DIRECTORY), MAX_BYTES);
+    }
+
+    /**
+     * @param directory - directory holding the mirrors
+     * @param maxBytes - disk budget of all mirrors together
+     */
+    public MirrorCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Writes the files of a commit into a new worktree, fetching from the
+     * remote into the mirror first unless the commit is already there.
+     * @param cloneURL - url to fetch the repository from
+     * @param commitSha - sha of the commit to check out
+     * @param worktree - directory to write the files to, must not exist yet
+     * @throws IOException - if the commit cannot be found or written
+     * @throws GitAPIException - if fetching fails
+     */
+    public void checkout(String cloneURL, String commitSha, File worktree) throws IOException, GitAPIException {
+        checkout(cloneURL, null, commitSha, worktree, null);
+    }
+
+    /**
+     * Writes the files of a commit into a new worktree, fetching the
+     * pushed branch into the mirror first unless the commit is already
+     * there. If the commit has a build configuration listing Paths, only
+     * those and the configuration are written.
+     * @param cloneURL - url to fetch the repository from
+     * @param branchRef - the pushed branch, e.g. refs/heads/master, or null for every branch
+     * @param commitSha - sha of the commit to check out
+     * @param worktree - directory to write the files to, must not exist yet
+     * @param buildConfig - path of the build configuration in the repository, or null to write the whole tree
+     * @throws IOException - if the commit cannot be found or written
+     * @throws GitAPIException - if fetching fails
+     */
+    public void checkout(String cloneURL, String branchRef, String commitSha, File worktree, String buildConfig) throws IOException, GitAPIException {
+        File mirror = new File(directory, nameOf(cloneURL));
+        ReentrantLock lock = lockOf(mirror.getName());
+        lock.lock();
+        try {
+            try (Repository repository = open(mirror, cloneURL, branchRef, commitSha)) {
+                writeTree(repository, commitSha, worktree, buildConfig);
+                if (GIT_DIRECTORY) {
+                    writeGitDirectory(repository, commitSha, worktree);
+                }
+            }
+            if (!mirror.setLastModified(System.currentTimeMillis())) {
+                System.err.println("Could not mark mirror " + mirror + " as used");
+            }
+        } finally {
+            lock.unlock();
+        }
+        evict(mirror.getName());
+    }
+
+    /**
+     * Fetches the commit into its mirror unless it is there already, and
+     * reads what decides the outcome of its build without checking it out.
+     * @param cloneURL - url to fetch the repository from
+     * @param branchRef - the pushed branch, or null for every branch
+     * @param commitSha - sha of the commit
+     * @param buildConfig - path of the build configuration in the repository
+     * @return {hash of the commit's tree, content of its build configuration or null}
+     * @throws IOException - if the commit cannot be found or read
+     * @throws GitAPIException - if fetching fails
+     */
+    public String[] identify(String cloneURL, String branchRef, String commitSha, String buildConfig) throws IOException, GitAPIException {
+        File mirror = new File(directory, nameOf(cloneURL));
+        ReentrantLock lock = lockOf(mirror.getName());
+        lock.lock();
+        try (Repository repository = open(mirror, cloneURL, branchRef, commitSha);
+             ObjectReader reader = repository.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader)) {
+            RevCommit commit = revWalk.parseCommit(ObjectId.fromString(commitSha));
+            String config = null;
+            try (TreeWalk walk = TreeWalk.forPath(reader, buildConfig, commit.getTree())) {
+                if (walk != null) {
+                    config = new String(reader.open(walk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+                }
+            }
+            return new String[]{commit.getTree().getName(), config};
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the mirror, creating it if needed, and fetches the pushed
+     * branch into it unless it already has the commit. Called with the
+     * mirror's lock held.
+     */
+    private Repository open(File mirror, String cloneURL, String branchRef, String commitSha) throws IOException, GitAPIException {
+        if (!mirror.isDirectory()) {
+            Git.init().setBare(true).setDirectory(mirror).call().close();
+        }
+        Repository repository = new FileRepositoryBuilder().setGitDir(mirror).setMustExist(true).build();
+        try {
+            if (!hasCommit(repository, commitSha) && STRATEGY == Strategy.singleBranch && branchRef != null) {
+                fetch(repository, cloneURL, new RefSpec("+" + branchRef + ":" + branchRef));
+            }
+            if (!hasCommit(repository, commitSha)) {
+                fetch(repository, cloneURL, new RefSpec("+refs/heads/*:refs/heads/*"));
+            }
+        } catch (IOException | GitAPIException | RuntimeException e) {
+            repository.close();
+            throw e;
+        }
+        return repository;
+    }
+
+    /**
+     * Fetches refs of the remote into the mirror. Objects the mirror
+     * already has are not transferred again.
+     */
+    private void fetch(Repository repository, String cloneURL, RefSpec refSpec) throws GitAPIException {
+        new Git(repository).fetch()
+                .setRemote(cloneURL)
+                .setRefSpecs(refSpec)
+                .setRemoveDeletedRefs(refSpec.isWildcard())
+                // Tags of the fetched commits too, for git describe in the worktrees
+                .setTagOpt(TagOpt.AUTO_FOLLOW)
+                .call();
+        synchronized (sizes) {
+            sizes.remove(repository.getDirectory().getName());
+        }
+    }
+
+    private static boolean hasCommit(Repository repository, String commitSha) throws IOException {
+        ObjectId id = ObjectId.fromString(commitSha);
+        return repository.hasObject(id);
+    }
+
+    /**
+     * Writes every file in the commit's tree, or only the paths listed in
+     * its build configuration, keeping executable bits and symbolic links.
+     * Submodules become empty directories.
+     */
+    private static void writeTree(Repository repository, String commitSha, File worktree, String buildConfig) throws IOException {
+        if (!worktree.mkdirs()) {
+            throw new IOException("Could not create worktree " + worktree);
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            RevCommit commit;
+            try {
+                commit = revWalk.parseCommit(ObjectId.fromString(commitSha));
+            } catch (MissingObjectException e) {
+                throw new IOException("Commit " + commitSha + " not found in " + repository.getDirectory());
+            }
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(true);
+            List<String> paths = buildConfig == null ? new ArrayList<>() : sparsePaths(reader, commit, buildConfig);
+            if (!paths.isEmpty()) {
+                paths.add(buildConfig);
+                treeWalk.setFilter(PathFilterGroup.createFromStrings(paths));
+            }
+            while (treeWalk.next()) {
+                File file = new File(worktree, treeWalk.getPathString());
+                File parent = file.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Could not create directory " + parent);
+                }
+                FileMode mode = treeWalk.getFileMode(0);
+                if (mode == FileMode.GITLINK) {
+                    file.mkdir();
+                } else if (mode == FileMode.SYMLINK) {
+                    String target = new String(reader.open(treeWalk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+                    Files.createSymbolicLink(file.toPath(), Paths.get(target));
+                } else {
+                    ObjectLoader loader = reader.open(treeWalk.getObjectId(0));
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        loader.copyTo(out);
+                    }
+                    if (mode == FileMode.EXECUTABLE_FILE) {
+                        file.setExecutable(true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a worktree a clone of its mirror without copying any objects:
+     * a .git whose objects/info/alternates points at the mirror, HEAD
+     * detached at the commit and the mirror's refs as packed-refs. The
+     * index lists the whole tree, files a sparse checkout left out are
+     * marked assume-unchanged so git status does not report them deleted.
+     */
+    private static void writeGitDirectory(Repository mirror, String commitSha, File worktree) throws IOException {
+        File gitDir = new File(worktree, Constants.DOT_GIT);
+        try (Repository clone = FileRepositoryBuilder.create(gitDir)) {
+            clone.create();
+        }
+        File alternates = new File(gitDir, "objects/info/alternates");
+        if (!alternates.getParentFile().isDirectory() && !alternates.getParentFile().mkdirs()) {
+            throw new IOException("Could not create " + alternates.getParentFile());
+        }
+        write(alternates, new File(mirror.getDirectory(), "objects").getAbsolutePath() + "\n");
+        write(new File(gitDir, Constants.HEAD), commitSha + "\n");
+        StringBuilder packedRefs = new StringBuilder("# pack-refs with: peeled \n");
+        for (Ref ref : mirror.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+            if (ref.getName().startsWith(Constants.R_REFS) && !ref.isSymbolic() && ref.getObjectId() != null) {
+                packedRefs.append(ref.getObjectId().getName()).append(' ').append(ref.getName()).append('\n');
+            }
+        }
+        write(new File(gitDir, Constants.PACKED_REFS), packedRefs.toString());
+
+        try (Repository clone = new FileRepositoryBuilder().setGitDir(gitDir).setMustExist(true).build();
+             ObjectReader reader = mirror.newObjectReader();
+             RevWalk revWalk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(commitSha)).getTree());
+            treeWalk.setRecursive(true);
+            DirCache index = clone.lockDirCache();
+            try {
+                DirCacheBuilder builder = index.builder();
+                while (treeWalk.next()) {
+                    DirCacheEntry entry = new DirCacheEntry(treeWalk.getPathString());
+                    entry.setFileMode(treeWalk.getFileMode(0));
+                    entry.setObjectId(treeWalk.getObjectId(0));
+                    File file = new File(worktree, treeWalk.getPathString());
+                    if (Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                        BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+                                BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        entry.setLength(attributes.size());
+                        entry.setLastModified(attributes.lastModifiedTime().toMillis());
+                    } else {
+                        entry.setAssumeValid(true);
+                    }
+                    builder.add(entry);
+                }
+                builder.commit();
+            } finally {
+                index.unlock();
+            }
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the Paths listed in the commit's build configuration, empty if it has none
+     */
+    private static List<String> sparsePaths(ObjectReader reader, RevCommit commit, String buildConfig) throws IOException {
+        try (TreeWalk config = TreeWalk.forPath(reader, buildConfig, commit.getTree())) {
+            if (config == null) {
+                return new ArrayList<>();
+            }
+            String content = new String(reader.open(config.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+            return RunBash.readPaths(content);
+        }
+    }
+
+    /**
+     * Deletes the least recently used mirrors until all mirrors fit in the
+     * disk budget. Mirrors in use by a build are skipped.
+     * @param keep - name of the mirror just used, which is never deleted
+     */
+    void evict(String keep) {
+        File[] mirrors = directory.listFiles(File::isDirectory);
+        if (mirrors == null) {
+            return;
+        }
+        List<File> byLastUse = new ArrayList<>();
+        long total = 0;
+        for (File mirror : mirrors) {
+            byLastUse.add(mirror);
+            total += sizeOf(mirror);
+        }
+        byLastUse.sort(Comparator.comparingLong(File::lastModified));
+        for (File mirror : byLastUse) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (mirror.getName().equals(keep)) {
+                continue;
+            }
+            ReentrantLock lock = lockOf(mirror.getName());
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                long size = sizeOf(mirror);
+                deleteRecursively(mirror);
+                total -= size;
+                synchronized (sizes) {
+                    sizes.remove(mirror.getName());
+                }
+                System.out.println("Evicted mirror " + mirror.getName());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private long sizeOf(File mirror) {
+        synchronized (sizes) {
+            Long size = sizes.get(mirror.getName());
+            if (size == null) {
+                size = directorySize(mirror);
+                sizes.put(mirror.getName(), size);
+            }
+            return size;
+        }
+    }
+
+    private ReentrantLock lockOf(String name) {
+        synchronized (locks) {
+            return locks.computeIfAbsent(name, n -> new ReentrantLock());
+        }
+    }
+
+    /**
+     * @param cloneURL - url of a repository
+     * @return directory name of the repository's mirror
+     */
+    static String nameOf(String cloneURL) {
+        String name = cloneURL.replaceFirst("^[a-z]+://", "").replaceFirst("\\.git$", "");
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + ".git";
+    }
+
+    static long directorySize(File f) {
+        File[] children = f.listFiles();
+        if (children == null) {
+            return f.length();
+        }
+        long size = 0;
+        for (File c : children) {
+            size += directorySize(c);
+        }
+        return size;
+    }
+
+    /**
+     * Deletes a file or directory with everything in it, without
+     * following symbolic links.
+     * @param f - file or directory to delete
+     */
+    public static void deleteRecursively(File f) {
+        if (!Files.isSymbolicLink(f.toPath())) {
+            File[] children = f.listFiles();
+            if (children != null) {
+                for (File c : children) {
+                    deleteRecursively(c);
+                }
+            }
+        }
+        f.delete();
+    }
+}
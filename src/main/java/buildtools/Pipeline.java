@@ -0,0 +1,564 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The steps of a build, read from its .dd.yml, and how to run them. A
+ * build configuration either has a steps section, where every step has
+ * a name, a run command and optionally the steps it depends_on:
+ *
+ *   steps:
+ *     build:
+ *       run: ./gradlew assemble
+ *     lint:
+ *       run: ./gradlew checkstyleMain
+ *     test:
+ *       run: ./gradlew test
+ *       depends_on: [build]
+ *       timeout: 10m
+ *
+ * or the old Build and Test keywords, each followed by a command on the
+ * next line, which run one after the other. With COMBINE_GRADLE_STEPS
+ * consecutive keyword steps that only name Gradle tasks run as one Gradle
+ * invocation, e.g. "./gradlew assemble test", which saves configuring
+ * the project a second time.
+ *
+ * A step is killed with every process it started when it runs longer
+ * than STEP_TIMEOUT_MILLIS, and all steps are killed when the build runs
+ * longer than JOB_TIMEOUT_MILLIS. A build configuration can lower them
+ * with a timeout under a step and a top-level "timeout: 30m" line, as a
+ * number of seconds or with an s, m or h suffix.
+ *
+ * Steps whose dependencies have succeeded run in parallel, at most
+ * MAX_PARALLEL at a time per build, on STEP_THREADS threads shared by
+ * all builds. With FAIL_FAST the first failing step kills
+ * the steps running next to it and no further steps are started.
+ */
+public class Pipeline {
+    public static int MAX_PARALLEL = 4;
+    // Read once, when the shared step runners are created
+    public static int STEP_THREADS = BuildScheduler.WORKERS * MAX_PARALLEL;
+    public static boolean FAIL_FAST = true;
+    public static boolean COMBINE_GRADLE_STEPS = false;
+    public static long STEP_TIMEOUT_MILLIS = 30L * 60 * 1000;
+    public static long JOB_TIMEOUT_MILLIS = 60L * 60 * 1000;
+
+    private static final AtomicInteger runnerCount = new AtomicInteger();
+    private static final ThreadPoolExecutor runners = new ThreadPoolExecutor(STEP_THREADS, STEP_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread runner = new Thread(r, "step-runner-" + runnerCount.incrementAndGet());
+        runner.setDaemon(true);
+        return runner;
+    });
+
+    static {
+        runners.allowCoreThreadTimeOut(true);
+    }
+
+    private static final Pattern STEPS = Pattern.compile("^steps:\\s*$");
+    private static final Pattern KEY = Pattern.compile("^(\\s*)([A-Za-z0-9_.-]+):\\s*(.*)$");
+    private static final Pattern ITEM = Pattern.compile("^(\\s*)-\\s*(.+)$");
+    private static final Pattern KEYWORD = Pattern.compile("\\b(Build|Test)\\b");
+    private static final Pattern TIMEOUT = Pattern.compile("^timeout:\\s*(.*)$");
+    private static final Pattern DURATION = Pattern.compile("^(\\d+)\\s*(s|m|h)?$");
+    private static final Pattern GRADLE = Pattern.compile("^(\\S*gradlew|gradle)((?: +[A-Za-z][A-Za-z0-9:_-]*)+) *$");
+
+    /**
+     * One step of a pipeline.
+     */
+    public static class Step {
+        private final String name;
+        private final String command;
+        private final boolean shell;
+        private final List<String> dependsOn;
+        private final long timeoutMillis;
+
+        /**
+         * @param name - unique name of the step
+         * @param command - the command line to run
+         * @param shell - true to run the command with sh -c, false to split it on spaces
+         * @param dependsOn - names of the steps that must succeed first
+         */
+        public Step(String name, String command, boolean shell, List<String> dependsOn) {
+            this(name, command, shell, dependsOn, 0);
+        }
+
+        /**
+         * @param name - unique name of the step
+         * @param command - the command line to run
+         * @param shell - true to run the command with sh -c, false to split it on spaces
+         * @param dependsOn - names of the steps that must succeed first
+         * @param timeoutMillis - how long the step may run, 0 for STEP_TIMEOUT_MILLIS
+         */
+        public Step(String name, String command, boolean shell, List<String> dependsOn, long timeoutMillis) {
+            this.name = name;
+            this.command = command;
+            this.shell = shell;
+            this.dependsOn = dependsOn;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public List<String> getDependsOn() {
+            return dependsOn;
+        }
+
+        /**
+         * @return how long the step may run, never more than STEP_TIMEOUT_MILLIS
+         */
+        public long getTimeoutMillis() {
+            return timeoutMillis > 0 && timeoutMillis < STEP_TIMEOUT_MILLIS ? timeoutMillis : STEP_TIMEOUT_MILLIS;
+        }
+
+        /**
+         * @return the command and its arguments as passed to ProcessBuilder
+         */
+        List<String> argv() {
+            return shell ? Arrays.asList("sh", "-c", command) : Arrays.asList(command.split(" "));
+        }
+    }
+
+    private final List<Step> steps;
+    private final long timeoutMillis;
+
+    /**
+     * @param steps - the steps, every dependency must be one of them and there may be no cycles
+     * @throws IllegalArgumentException - if the steps do not form a valid pipeline
+     */
+    public Pipeline(List<Step> steps) {
+        this(steps, 0);
+    }
+
+    /**
+     * @param steps - the steps, every dependency must be one of them and there may be no cycles
+     * @param timeoutMillis - how long all steps together may run, 0 for JOB_TIMEOUT_MILLIS
+     * @throws IllegalArgumentException - if the steps do not form a valid pipeline
+     */
+    public Pipeline(List<Step> steps, long timeoutMillis) {
+        this.steps = steps;
+        this.timeoutMillis = timeoutMillis;
+        validate();
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return how long all steps together may run, never more than JOB_TIMEOUT_MILLIS
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis > 0 && timeoutMillis < JOB_TIMEOUT_MILLIS ? timeoutMillis : JOB_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Reads the pipeline of a build configuration file.
+     * @param buildConfig - the .dd.yml file
+     * @return the pipeline
+     * @throws IOException - if the file cannot be read
+     * @throws IllegalArgumentException - if the file is not a valid pipeline
+     */
+    public static Pipeline read(File buildConfig) throws IOException {
+        return parse(new String(Files.readAllBytes(buildConfig.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a build configuration in either format.
+     * @param buildConfig - content of the .dd.yml file
+     * @return the pipeline
+     * @throws IllegalArgumentException - if the configuration is not a valid pipeline
+     */
+    public static Pipeline parse(String buildConfig) {
+        String[] lines = buildConfig.split("\r?\n");
+        long timeoutMillis = 0;
+        for (int i = 0; i < lines.length; i++) {
+            Matcher timeout = TIMEOUT.matcher(lines[i]);
+            if (timeout.matches()) {
+                timeoutMillis = parseDuration(timeout.group(1), i);
+            }
+        }
+        for (String line : lines) {
+            if (STEPS.matcher(line).matches()) {
+                return new Pipeline(parseSteps(lines), timeoutMillis);
+            }
+        }
+        return new Pipeline(parseKeywords(lines), timeoutMillis);
+    }
+
+    /**
+     * Reads a duration such as "90", "90s", "10m" or "1h", in seconds
+     * without a suffix.
+     * @param value - the duration as written in the build configuration
+     * @param line - index of the line, for the error message
+     * @return the duration in milliseconds
+     */
+    private static long parseDuration(String value, int line) {
+        Matcher duration = DURATION.matcher(unquote(value));
+        if (!duration.matches() || Long.parseLong(duration.group(1)) == 0) {
+            throw new IllegalArgumentException("Line " + (line + 1) + ": expected a timeout like 90s, 10m or 1h");
+        }
+        long seconds = Long.parseLong(duration.group(1));
+        String unit = duration.group(2) == null ? "s" : duration.group(2);
+        return seconds * 1000 * (unit.equals("h") ? 3600 : unit.equals("m") ? 60 : 1);
+    }
+
+    /**
+     * Reads the old format: every Build or Test keyword is followed by a
+     * command line. The steps run in the order they are listed.
+     */
+    private static List<Step> parseKeywords(String[] lines) {
+        List<Step> steps = new ArrayList<>();
+        Map<String, Integer> seen = new HashMap<>();
+        for (int i = 0; i < lines.length; i++) {
+            if (Matrix.MATRIX.matcher(lines[i]).matches()) {
+                // matrix variables, not commands
+                while (i + 1 < lines.length && (lines[i + 1].isEmpty() || Character.isWhitespace(lines[i + 1].charAt(0)))) {
+                    i++;
+                }
+                continue;
+            }
+            if (lines[i].matches(".*\\bPaths\\b.*")) {
+                // checkout paths, not a command
+                i++;
+                continue;
+            }
+            Matcher keyword = KEYWORD.matcher(lines[i]);
+            if (keyword.find() && i + 1 < lines.length) {
+                String name = keyword.group(1).toLowerCase();
+                int count = seen.merge(name, 1, Integer::sum);
+                if (count > 1) {
+                    name = name + count;
+                }
+                List<String> dependsOn = steps.isEmpty()
+                        ? new ArrayList<>()
+                        : new ArrayList<>(Collections.singletonList(steps.get(steps.size() - 1).getName()));
+                steps.add(new Step(name, lines[++i], false, dependsOn));
+            }
+        }
+        return COMBINE_GRADLE_STEPS ? combineGradle(steps) : steps;
+    }
+
+    /**
+     * Merges consecutive steps that run the same Gradle launcher with
+     * nothing but task names into one step, named e.g. "build+test".
+     * Steps with options keep running on their own.
+     */
+    static List<Step> combineGradle(List<Step> steps) {
+        List<Step> combined = new ArrayList<>();
+        for (Step step : steps) {
+            Step last = combined.isEmpty() ? null : combined.get(combined.size() - 1);
+            Matcher previous = last == null ? null : GRADLE.matcher(last.getCommand());
+            Matcher current = GRADLE.matcher(step.getCommand());
+            if (previous != null && previous.matches() && current.matches()
+                    && previous.group(1).equals(current.group(1))) {
+                combined.set(combined.size() - 1, new Step(last.getName() + "+" + step.getName(),
+                        last.getCommand().trim() + current.group(2), false, last.getDependsOn()));
+                continue;
+            }
+            List<String> dependsOn = last == null
+                    ? new ArrayList<>()
+                    : new ArrayList<>(Collections.singletonList(last.getName()));
+            combined.add(new Step(step.getName(), step.getCommand(), false, dependsOn));
+        }
+        return combined;
+    }
+
+    /**
+     * Reads the steps section: a block of step names, each with run and
+     * depends_on indented below it. depends_on is a name, a [a, b] list
+     * or a list of "- name" lines. The section ends at the next line that
+     * is not indented.
+     */
+    private static List<Step> parseSteps(String[] lines) {
+        Map<String, String> commands = new LinkedHashMap<>();
+        Map<String, List<String>> dependsOn = new HashMap<>();
+        Map<String, Long> timeouts = new HashMap<>();
+        int i = 0;
+        while (!STEPS.matcher(lines[i]).matches()) {
+            i++;
+        }
+        int stepIndent = -1;
+        String step = null;
+        boolean inDependsOn = false;
+        for (i++; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+                continue;
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                break;
+            }
+            Matcher item = ITEM.matcher(line);
+            if (inDependsOn && item.matches()) {
+                dependsOn.get(step).add(unquote(item.group(2)));
+                continue;
+            }
+            inDependsOn = false;
+            Matcher key = KEY.matcher(line);
+            if (!key.matches()) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": expected 'name:' or 'key: value'");
+            }
+            int indent = key.group(1).length();
+            String value = key.group(3).trim();
+            if (stepIndent < 0 || indent <= stepIndent) {
+                if (stepIndent >= 0 && indent < stepIndent) {
+                    throw new IllegalArgumentException("Line " + (i + 1) + ": inconsistent indentation");
+                }
+                stepIndent = indent;
+                step = key.group(2);
+                if (!value.isEmpty()) {
+                    throw new IllegalArgumentException("Line " + (i + 1) + ": step " + step + " needs run on its own line");
+                }
+                if (commands.containsKey(step)) {
+                    throw new IllegalArgumentException("Line " + (i + 1) + ": step " + step + " is defined twice");
+                }
+                commands.put(step, null);
+                dependsOn.put(step, new ArrayList<>());
+            } else if (key.group(2).equals("run")) {
+                commands.put(step, unquote(value));
+            } else if (key.group(2).equals("timeout")) {
+                timeouts.put(step, parseDuration(value, i));
+            } else if (key.group(2).equals("depends_on")) {
+                if (value.isEmpty()) {
+                    inDependsOn = true;
+                } else {
+                    for (String name : value.replaceAll("^\\[|\\]$", "").split(",")) {
+                        if (!name.trim().isEmpty()) {
+                            dependsOn.get(step).add(unquote(name.trim()));
+                        }
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": unknown key " + key.group(2));
+            }
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for (Map.Entry<String, String> entry : commands.entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                throw new IllegalArgumentException("Step " + entry.getKey() + " has no run command");
+            }
+            steps.add(new Step(entry.getKey(), entry.getValue(), true, dependsOn.get(entry.getKey()),
+                    timeouts.getOrDefault(entry.getKey(), 0L)));
+        }
+        return steps;
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") || value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * Checks that every dependency exists and that there are no cycles.
+     */
+    private void validate() {
+        Map<String, Step> byName = new HashMap<>();
+        for (Step step : steps) {
+            if (byName.put(step.getName(), step) != null) {
+                throw new IllegalArgumentException("Step " + step.getName() + " is defined twice");
+            }
+        }
+        for (Step step : steps) {
+            for (String dependency : step.getDependsOn()) {
+                if (!byName.containsKey(dependency)) {
+                    throw new IllegalArgumentException("Step " + step.getName() + " depends on unknown step " + dependency);
+                }
+            }
+        }
+        // Repeatedly take away steps whose dependencies are all taken away
+        Set<String> done = new HashSet<>();
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (Step step : steps) {
+                if (!done.contains(step.getName()) && done.containsAll(step.getDependsOn())) {
+                    done.add(step.getName());
+                    progress = true;
+                }
+            }
+        }
+        if (done.size() < steps.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (Step step : steps) {
+                if (!done.contains(step.getName())) {
+                    cycle.add(step.getName());
+                }
+            }
+            throw new IllegalArgumentException("Steps " + cycle + " depend on each other");
+        }
+    }
+
+    /**
+     * Runs the steps, each as soon as the steps it depends on have
+     * succeeded. Output of every step goes to the job log, each line
+     * prefixed with the name of its step. No step starts after the
+     * pipeline's timeout, running steps are killed when it passes.
+     * @param buildDirectoryPath - the directory the commands are run in
+     * @param log - the job log, or null to keep all output in memory
+     * @return how every step went, in the order they are listed
+     */
+    public List<StepResult> run(String buildDirectoryPath, JobLog log) {
+        return run(buildDirectoryPath, Collections.emptyMap(), log);
+    }
+
+    /**
+     * Runs the steps with extra environment variables, e.g. those of a
+     * cell of the build matrix.
+     * @param buildDirectoryPath - the directory the commands are run in
+     * @param env - variables added to the environment of every command
+     * @param log - the job log, or null to keep all output in memory
+     * @return how every step went, in the order they are listed
+     */
+    public List<StepResult> run(String buildDirectoryPath, Map<String, String> env, JobLog log) {
+        Map<String, StepResult> results = new HashMap<>();
+        Set<String> started = new HashSet<>();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        // Without a job log the processes are still tracked, so fail-fast can kill them
+        String jobID = log != null ? log.getJobID() : "pipeline-" + UUID.randomUUID();
+        long start = System.currentTimeMillis();
+        long deadline = start + getTimeoutMillis();
+        synchronized (results) {
+            while (true) {
+                boolean killed = RunBash.wasKilled(jobID);
+                for (Step step : steps) {
+                    if (cancelled.get() || killed || System.currentTimeMillis() >= deadline
+                            || started.size() - results.size() >= Math.max(1, MAX_PARALLEL)) {
+                        break;
+                    }
+                    if (started.contains(step.getName()) || !succeeded(step.getDependsOn(), results)) {
+                        continue;
+                    }
+                    started.add(step.getName());
+                    runners.execute(() -> {
+                        // A step that ends in an Error still counts as failed, or the pipeline would wait forever
+                        StepResult result = new StepResult(step.getName(), StepResult.Status.failure, -1,
+                                System.currentTimeMillis() - start, 0, new ArrayList<>());
+                        try {
+                            result = runStep(step, jobID, buildDirectoryPath, env, log, start, deadline, cancelled);
+                        } finally {
+                            synchronized (results) {
+                                results.put(step.getName(), result);
+                                if (result.status() == StepResult.Status.failure && FAIL_FAST) {
+                                    cancelled.set(true);
+                                    RunBash.killRunning(jobID);
+                                }
+                                results.notifyAll();
+                            }
+                        }
+                    });
+                }
+                if (results.size() == started.size()) {
+                    break;
+                }
+                try {
+                    results.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        List<StepResult> ordered = new ArrayList<>();
+        synchronized (results) {
+            for (Step step : steps) {
+                StepResult result = results.get(step.getName());
+                ordered.add(result == null ? StepResult.skipped(step.getName()) : result);
+            }
+        }
+        return ordered;
+    }
+
+    private static boolean succeeded(List<String> names, Map<String, StepResult> results) {
+        for (String name : names) {
+            StepResult result = results.get(name);
+            if (result == null || !result.succeeded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs one step until its own timeout or the pipeline's deadline,
+     * whichever comes first. A non-zero exit after the pipeline was
+     * cancelled counts as cancelled rather than failed, unless the step
+     * ran into a limit.
+     */
+    private static StepResult runStep(Step step, String jobID, String buildDirectoryPath, Map<String, String> env, JobLog log,
+                                      long pipelineStart, long deadline, AtomicBoolean cancelled) {
+        Trace.Span span = Trace.of(jobID).span("step " + step.getName());
+        long started = System.currentTimeMillis();
+        boolean jobTimeout = deadline - started < step.getTimeoutMillis();
+        long timeoutMillis = Math.max(1, Math.min(step.getTimeoutMillis(), deadline - started));
+        AtomicReference<String> limit = new AtomicReference<>();
+        AtomicReference<ResourceUsage> usage = new AtomicReference<>();
+        List<String> output;
+        int exitValue;
+        try {
+            ArrayList<String> cmd = RunBash.runStep(jobID, step.getName(), step.argv(), step.getCommand(), buildDirectoryPath,
+                    env, log, cancelled, timeoutMillis, limit, usage);
+            exitValue = Integer.parseInt(cmd.remove(cmd.size() - 1));
+            output = cmd;
+        } catch (Exception e) {
+            e.printStackTrace();
+            output = new ArrayList<>(Collections.singletonList("Could not run " + step.getCommand() + ": " + e.getMessage()));
+            exitValue = -1;
+        }
+        long millis = System.currentTimeMillis() - started;
+        String exceeded = limit.get();
+        if (RunBash.TIMEOUT.equals(exceeded)) {
+            exceeded = jobTimeout ? StepResult.JOB_TIMEOUT : StepResult.STEP_TIMEOUT;
+        }
+        StepResult.Status status;
+        if (exitValue == 0 && exceeded == null) {
+            status = StepResult.Status.success;
+        } else if (exceeded == null && (cancelled.get() || RunBash.wasKilled(jobID))) {
+            status = StepResult.Status.cancelled;
+        } else {
+            status = StepResult.Status.failure;
+        }
+        if (log != null) {
+            log.println("[" + step.getName() + "] " + status + " after " + millis + " ms"
+                    + (exceeded == null ? "" : ", over its " + exceeded + " limit"));
+        }
+        span.set("status", status).set("exitValue", exitValue);
+        if (exceeded != null) {
+            span.set("limit", exceeded);
+        }
+        span.close();
+        return new StepResult(step.getName(), status, exitValue, started - pipelineStart, millis, output, exceeded, usage.get());
+    }
+}
@@ -0,0 +1,126 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds and kills the processes started by a build command. Process only
+ * kills the direct child, which leaves e.g. a Gradle daemon or test JVM
+ * started by a shell script running, so descendants are found in /proc.
+ */
+public class ProcessTree {
+    /**
+     * Clock ticks per second of the times in /proc/[pid]/stat, 100 on
+     * every common Linux.
+     */
+    static final long CLOCK_TICKS = 100;
+
+    /**
+     * @param process - a started process
+     * @return the process id, or -1 if it cannot be found
+     */
+    public static long pid(Process process) {
+        try {
+            // Java 9 and later
+            Method pid = Process.class.getMethod("pid");
+            return (Long) pid.invoke(process);
+        } catch (ReflectiveOperationException ignored) {
+        }
+        try {
+            // java.lang.UNIXProcess on Java 8
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getLong(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Lists every descendant of a process by reading the parent of
+     * every process in /proc.
+     * @param pid - the process id
+     * @return ids of children, grandchildren and so on; empty without /proc
+     */
+    public static List<Long> descendants(long pid) {
+        Map<Long, List<Long>> children = new HashMap<>();
+        File[] procs = new File("/proc").listFiles();
+        if (procs != null) {
+            for (File proc : procs) {
+                long child = parseLong(proc.getName());
+                long parent = child < 0 ? -1 : parentOf(proc);
+                if (parent >= 0) {
+                    children.computeIfAbsent(parent, p -> new ArrayList<>()).add(child);
+                }
+            }
+        }
+        List<Long> result = new ArrayList<>();
+        Deque<Long> todo = new ArrayDeque<>();
+        todo.add(pid);
+        while (!todo.isEmpty()) {
+            for (long child : children.getOrDefault(todo.poll(), new ArrayList<>())) {
+                result.add(child);
+                todo.add(child);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Kills a process and all of its descendants.
+     * @param process - the process to kill
+     */
+    public static void kill(Process process) {
+        long pid = pid(process);
+        List<Long> tree = pid < 0 ? new ArrayList<>() : descendants(pid);
+        process.destroyForcibly();
+        if (!tree.isEmpty()) {
+            List<String> command = new ArrayList<>();
+            command.add("kill");
+            command.add("-KILL");
+            for (long p : tree) {
+                command.add(Long.toString(p));
+            }
+            try {
+                new ProcessBuilder(command).redirectErrorStream(true).start().waitFor();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads the parent process id from /proc/[pid]/stat. The command name
+     * in parentheses may contain spaces, so fields are counted after it.
+     */
+    private static long parentOf(File proc) {
+        try {
+            String stat = new String(Files.readAllBytes(new File(proc, "stat").toPath()), StandardCharsets.UTF_8);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return parseLong(fields[1]);
+        } catch (IOException | RuntimeException e) {
+            // Process exited while reading
+            return -1;
+        }
+    }
+
+    private static long parseLong(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
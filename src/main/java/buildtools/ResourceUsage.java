@@ -0,0 +1,102 @@
+package buildtools;
+
+import org.json.JSONObject;
+
+/**
+ * What a step used of the host: wall time, CPU time in user and system
+ * mode, the peak resident memory of all its processes together and the
+ * bytes they read from and wrote to storage. Times are in milliseconds.
+ * A value that could not be measured is 0.
+ */
+public class ResourceUsage {
+    private final long wallMillis;
+    private final long userMillis;
+    private final long systemMillis;
+    private final long peakRssBytes;
+    private final long readBytes;
+    private final long writeBytes;
+
+    /**
+     * @param wallMillis - how long the step ran
+     * @param userMillis - CPU time in user mode of the step and every process it started
+     * @param systemMillis - CPU time in system mode of the step and every process it started
+     * @param peakRssBytes - highest resident memory of the step's processes together
+     * @param readBytes - bytes read from storage
+     * @param writeBytes - bytes written to storage
+     */
+    public ResourceUsage(long wallMillis, long userMillis, long systemMillis, long peakRssBytes, long readBytes, long writeBytes) {
+        this.wallMillis = wallMillis;
+        this.userMillis = userMillis;
+        this.systemMillis = systemMillis;
+        this.peakRssBytes = peakRssBytes;
+        this.readBytes = readBytes;
+        this.writeBytes = writeBytes;
+    }
+
+    /**
+     * Reads usage stored with a step.
+     * @param json - the usage as written by toJSON
+     */
+    public ResourceUsage(JSONObject json) {
+        this(json.optLong("wallMillis"), json.optLong("userMillis"), json.optLong("systemMillis"),
+                json.optLong("peakRssBytes"), json.optLong("readBytes"), json.optLong("writeBytes"));
+    }
+
+    /**
+     * @return no usage, to add to
+     */
+    public static ResourceUsage none() {
+        return new ResourceUsage(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Adds up the usage of steps. Times and bytes are summed, the peak
+     * memory is the higher of the two, as the steps may have run one
+     * after the other.
+     * @param other - usage to add
+     * @return the total
+     */
+    public ResourceUsage plus(ResourceUsage other) {
+        return new ResourceUsage(wallMillis + other.wallMillis, userMillis + other.userMillis,
+                systemMillis + other.systemMillis, Math.max(peakRssBytes, other.peakRssBytes),
+                readBytes + other.readBytes, writeBytes + other.writeBytes);
+    }
+
+    public long getWallMillis() {
+        return wallMillis;
+    }
+
+    public long getUserMillis() {
+        return userMillis;
+    }
+
+    public long getSystemMillis() {
+        return systemMillis;
+    }
+
+    public long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+
+    /**
+     * @return the usage as stored with a step
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("wallMillis", wallMillis);
+        json.put("userMillis", userMillis);
+        json.put("systemMillis", systemMillis);
+        json.put("peakRssBytes", peakRssBytes);
+        json.put("readBytes", readBytes);
+        json.put("writeBytes", writeBytes);
+        return json;
+    }
+}
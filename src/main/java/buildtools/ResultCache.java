@@ -0,0 +1,250 @@
+package buildtools;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Results of earlier builds, keyed by what decides the outcome of a
+ * build: the git tree of the commit, its build configuration and the
+ * environment it runs with. A push of a tree that was already built
+ * with the same configuration, e.g. a revert or a new branch from a
+ * built commit, reuses that result instead of building again.
+ *
+ * Only successes and failures are remembered, for TTL_MILLIS, at most
+ * MAX_ENTRIES of them; the oldest are evicted first. A failure because a
+ * step ran out of time or CPU time is not remembered, as it depends on
+ * the host rather than the tree, and a new push is the only way to retry. A build opts out
+ * with a "cache: false" line in its .dd.yml.
+ */
+public class ResultCache {
+    public static String CACHE_DIRECTORY = "db/results";
+    public static boolean ENABLED = true;
+    public static long TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static int MAX_ENTRIES = 10000;
+
+    private static final Pattern OPT_OUT = Pattern.compile("(?m)^cache:\\s*(false|no|off)\\s*$");
+
+    /**
+     * A remembered result.
+     */
+    public static class Entry {
+        private final Build.Result status;
+        private final String jobID;
+        private final String logFile;
+        private final long storedAt;
+
+        Entry(Build.Result status, String jobID, String logFile, long storedAt) {
+            this.status = status;
+            this.jobID = jobID;
+            this.logFile = logFile;
+            this.storedAt = storedAt;
+        }
+
+        public Build.Result getStatus() {
+            return status;
+        }
+
+        /**
+         * @return jobID of the build that produced the result
+         */
+        public String getJobID() {
+            return jobID;
+        }
+
+        /**
+         * @return path of that build's full output, or null
+         */
+        public String getLogFile() {
+            return logFile;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+
+    private final SegmentStore store;
+    private final long ttlMillis;
+    private final int maxEntries;
+    // Keys in the order they were stored, oldest first
+    private final LinkedHashMap<String, Long> storedAt = new LinkedHashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens the cache in CACHE_DIRECTORY.
+     */
+    public ResultCache() {
+        this(new File(CACHE_DIRECTORY), TTL_MILLIS, MAX_ENTRIES);
+    }
+
+    /**
+     * Opens the cache, dropping expired results. If it cannot be opened
+     * nothing is cached.
+     * @param directory - directory of the cache's store
+     * @param ttlMillis - how long a result is reused
+     * @param maxEntries - number of results kept
+     */
+    public ResultCache(File directory, long ttlMillis, int maxEntries) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        SegmentStore opened = null;
+        try {
+            opened = SegmentStore.open(directory);
+            List<Map.Entry<String, JSONObject>> byAge = new ArrayList<>(opened.getAll().entrySet());
+            byAge.sort(Comparator.comparingLong(entry -> entry.getValue().optLong("storedAt")));
+            for (Map.Entry<String, JSONObject> entry : byAge) {
+                storedAt.put(entry.getKey(), entry.getValue().optLong("storedAt"));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.store = opened;
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * @param buildConfig - content of a .dd.yml
+     * @return false if the build opted out of the cache
+     */
+    public static boolean enabledFor(String buildConfig) {
+        return ENABLED && !OPT_OUT.matcher(buildConfig).find();
+    }
+
+    /**
+     * @param treeHash - hash of the commit's git tree
+     * @param buildConfig - content of the build configuration
+     * @param env - environment variables the build runs with
+     * @return the cache key of a build
+     */
+    public static String keyOf(String treeHash, String buildConfig, Map<String, String> env) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(treeHash.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(buildConfig.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, String> entry : new TreeMap<>(env).entrySet()) {
+            digest.update((byte) 0);
+            digest.update((entry.getKey() + "=" + entry.getValue()).getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @param key - cache key of the build
+     * @return the remembered result, or null if there is none or it expired
+     */
+    public Entry get(String key) {
+        if (store == null) {
+            return null;
+        }
+        JSONObject json = null;
+        synchronized (this) {
+            evict(System.currentTimeMillis());
+            if (storedAt.containsKey(key)) {
+                try {
+                    json = store.get(key);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (json == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        return new Entry(json.getEnum(Build.Result.class, "status"), json.getString("jobID"),
+                json.optString("logFile", null), json.optLong("storedAt"));
+    }
+
+    /**
+     * Remembers the result of a build. Only successes and failures are
+     * remembered, other results say nothing about the tree.
+     * @param key - cache key of the build
+     * @param status - result of the build
+     * @param jobID - the build's jobID
+     * @param logFile - path of the build's full output, or null
+     */
+    public synchronized void put(String key, Build.Result status, String jobID, String logFile) {
+        put(key, status, jobID, logFile, null);
+    }
+
+    /**
+     * Remembers the result of a build, unless a step was killed for a
+     * timeout or the CPU limit.
+     * @param key - cache key of the build
+     * @param status - result of the build
+     * @param jobID - the build's jobID
+     * @param logFile - path of the build's full output, or null
+     * @param limit - the first limit a step was killed for, see Build.getLimit(), or null
+     */
+    public synchronized void put(String key, Build.Result status, String jobID, String logFile, String limit) {
+        if (store == null || (status != Build.Result.success && status != Build.Result.failure)) {
+            return;
+        }
+        if (StepResult.STEP_TIMEOUT.equals(limit) || StepResult.JOB_TIMEOUT.equals(limit) || RunBash.CPU.equals(limit)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        JSONObject json = new JSONObject();
+        json.put("status", status);
+        json.put("jobID", jobID);
+        json.put("logFile", logFile);
+        json.put("storedAt", now);
+        try {
+            store.put(key, json);
+        } catch (IOException e) {
+            System.err.println("Could not cache the result of job " + jobID + ": " + e.getMessage());
+            return;
+        }
+        storedAt.remove(key);
+        storedAt.put(key, now);
+        evict(now);
+    }
+
+    /**
+     * Removes results that expired and the oldest results over the limit.
+     */
+    private synchronized void evict(long now) {
+        while (!storedAt.isEmpty()) {
+            Map.Entry<String, Long> oldest = storedAt.entrySet().iterator().next();
+            if (storedAt.size() <= maxEntries && now - oldest.getValue() < ttlMillis) {
+                return;
+            }
+            storedAt.remove(oldest.getKey());
+            try {
+                store.remove(oldest.getKey());
+            } catch (IOException e) {
+                System.err.println("Could not evict cached result " + oldest.getKey() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return {hits, misses} since the cache was opened
+     */
+    public synchronized long[] stats() {
+        return new long[]{hits, misses};
+    }
+}
@@ -5,15 +5,66 @@ import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.FileReader;
 
 import java.io.File;
 
+import java.nio.charset.Charset;
+
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class RunBash {
+    /**
+     * Output a step may write before it is killed, 0 for no limit.
+     */
+    public static long MAX_OUTPUT_BYTES = 64L * 1024 * 1024;
+    /**
+     * CPU time of every process of a step, set with ulimit -t, 0 for no
+     * limit. A process that ignores SIGXCPU is killed 5 s later. Gradle
+     * daemons are not kept warm while it is set, see GradleDaemons.
+     */
+    public static long MAX_CPU_SECONDS = 0;
+    /**
+     * Virtual memory of every process of a step, set with ulimit -v, 0 for
+     * no limit. JVMs reserve much more than they use, so this is only
+     * useful for builds without Java. Gradle daemons are not kept warm
+     * while it is set.
+     */
+    public static long MAX_MEMORY_BYTES = 0;
+    /**
+     * Time between samples of the memory a step uses.
+     */
+    public static long USAGE_SAMPLE_MILLIS = 1000;
+
+    /** A step was killed because it ran too long. */
+    public static final String TIMEOUT = "timeout";
+    /** A step was killed because it wrote more than MAX_OUTPUT_BYTES. */
+    public static final String OUTPUT = "output";
+    /** A process of a step was killed by the kernel for using more than MAX_CPU_SECONDS. */
+    public static final String CPU = "cpu";
+
+    // 128 + SIGXCPU, the exit value of a process that ran out of CPU time
+    private static final int EXIT_CPU_LIMIT = 152;
+
+    private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "step-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    private static final Map<String, Set<Process>> processes = new ConcurrentHashMap<>();
+    private static final Set<String> killed = ConcurrentHashMap.newKeySet();
 
     /**
      * Extract commands from dd.yml and runs the commands found there in bash
@@ -25,7 +76,13 @@ public class RunBash {
     public static ArrayList<ArrayList<String>> run(String buildDirectoryPath, String buildConfigPath) {
         ArrayList<ArrayList<String>> commands = new ArrayList<ArrayList<String>>();
         try {
-            commands = readThis(buildDirectoryPath, buildConfigPath);
+            for (StepResult step : Pipeline.read(new File(buildConfigPath)).run(buildDirectoryPath, null)) {
+                if (step.status() != StepResult.Status.skipped) {
+                    ArrayList<String> command = new ArrayList<String>(step.output());
+                    command.add(Integer.toString(step.getExitValue()));
+                    commands.add(command);
+                }
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -33,32 +90,25 @@ public class RunBash {
     }
 
     /**
-     * reads through a file and searches for key words, then executes command line
-     * below match and returns output of them all
-     * @throws Exception
+     * Reads the paths listed on the line after the Paths keyword of a
+     * build configuration. Only these paths are checked out for a build.
+     * @param buildConfig - content of the build configuration file
+     * @return the paths, empty if the whole tree should be checked out
      */
-    private static ArrayList<ArrayList<String>> readThis(String buildDirectoryPath, String buildConfigPath) throws Exception {
-        BufferedReader reader;
-        ArrayList<ArrayList<String>> commands = new ArrayList<ArrayList<String>>();
-        try {
-            reader = new BufferedReader(new FileReader(buildConfigPath));
-            String line = reader.readLine();
-            while (line != null) {
-                if (exactMatch(line, "Build") || exactMatch(line, "Test") ) {
-                    line = reader.readLine();
-                    if (line != null) {
-                        commands.add(runCommand(line, buildDirectoryPath));
+    public static List<String> readPaths(String buildConfig) {
+        List<String> paths = new ArrayList<String>();
+        String[] lines = buildConfig.split("\r?\n");
+        for (int i = 0; i + 1 < lines.length; i++) {
+            if (exactMatch(lines[i], "Paths")) {
+                for (String path : lines[i + 1].trim().split("\\s+")) {
+                    path = path.replaceAll("^\\./|/+$", "");
+                    if (!path.isEmpty()) {
+                        paths.add(path);
                     }
-                    // read next line
                 }
-                line = reader.readLine();
-
             }
-            reader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return commands;
+        return paths;
     }
 
     /**
@@ -100,14 +150,219 @@ public class RunBash {
         pb.redirectErrorStream(true);
         pb.directory(new File(buildDirectoryPath));
         Process p = pb.start();
+        ScheduledFuture<?> timer = watch(p, Pipeline.STEP_TIMEOUT_MILLIS, new AtomicReference<>());
 
-        ArrayList<String> cmdOutput = output(p.getInputStream());
-        cmdOutput.addAll(output(p.getErrorStream()));
-        p.waitFor();
+        ArrayList<String> cmdOutput;
+        try {
+            cmdOutput = output(p.getInputStream());
+            cmdOutput.addAll(output(p.getErrorStream()));
+            p.waitFor();
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
         int eValue = p.exitValue();
         cmdOutput.add(Integer.toString(eValue));
 
         return cmdOutput;
 
     }
+
+    /**
+     * Runs one step of a pipeline. Steps may run at the same time, so
+     * every line written to the job log is prefixed with the step name
+     * and the tail of the step's own output is kept separately. The step
+     * is killed with every process it started when it runs for longer
+     * than timeoutMillis or writes more than MAX_OUTPUT_BYTES. What the
+     * step used of the host is measured with a UsageMeter.
+     * @param jobID - the job the step belongs to, its processes are killed with it
+     * @param name - name of the step
+     * @param argv - the command and its arguments
+     * @param line - the command as written in the build configuration
+     * @param buildDirectoryPath - the directory the command is run in
+     * @param env - variables added to the command's environment
+     * @param log - the job log to stream output to, or null to keep all output in memory
+     * @param cancelled - set when the step should be killed, e.g. because another step failed
+     * @param timeoutMillis - how long the step may run, 0 or less for no limit
+     * @param limit - set to TIMEOUT, OUTPUT or CPU if the step ran into that limit
+     * @param usage - set to what the step used of the host
+     * @return tail of the output, exit value
+     * @throws Exception
+     */
+    public static ArrayList<String> runStep(String jobID, String name, List<String> argv, String line, String buildDirectoryPath,
+                                            Map<String, String> env, JobLog log, AtomicBoolean cancelled,
+                                            long timeoutMillis, AtomicReference<String> limit,
+                                            AtomicReference<ResourceUsage> usage) throws Exception {
+        String prefix = "[" + name + "] ";
+        UsageMeter meter = new UsageMeter(env.get("GRADLE_USER_HOME"));
+        ProcessBuilder pb = new ProcessBuilder(meter.wrap(argv, ulimits()));
+        pb.redirectErrorStream(true);
+        pb.directory(new File(buildDirectoryPath));
+        pb.environment().putAll(env);
+        if (log != null) {
+            log.println(prefix + "$ " + line);
+        }
+        Process p;
+        try {
+            p = pb.start();
+        } catch (IOException e) {
+            meter.finish();
+            throw e;
+        }
+        meter.start(p, watchdog, USAGE_SAMPLE_MILLIS);
+        register(jobID, p);
+        // Checked after registering, so a cancel either sees the process or is seen here
+        if (cancelled.get() || wasKilled(jobID)) {
+            ProcessTree.kill(p);
+        }
+        ScheduledFuture<?> timer = watch(p, timeoutMillis, limit);
+
+        ArrayDeque<String> tail = new ArrayDeque<String>();
+        long omitted = 0;
+        long written = 0;
+        String ln;
+        int eValue;
+        Charset charset = Charset.defaultCharset();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), charset))) {
+            try {
+                while ((ln = reader.readLine()) != null) {
+                    // The bytes the step wrote, not the decoded chars, plus the newline
+                    written += ln.getBytes(charset).length + 1;
+                    if (MAX_OUTPUT_BYTES > 0 && written > MAX_OUTPUT_BYTES && limit.compareAndSet(null, OUTPUT)) {
+                        ProcessTree.kill(p);
+                        break;
+                    }
+                    if (log != null) {
+                        log.println(prefix + ln);
+                        if (tail.size() == JobLog.TAIL_LINES) {
+                            tail.removeFirst();
+                            omitted++;
+                        }
+                    }
+                    tail.addLast(ln);
+                }
+            } catch (IOException e) {
+                // Killing a process closes its output, which is expected here
+                if (limit.get() == null && !cancelled.get() && !wasKilled(jobID)) {
+                    throw e;
+                }
+            }
+            eValue = p.waitFor();
+        } finally {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            unregister(jobID, p);
+            usage.set(meter.finish());
+        }
+        if (eValue == EXIT_CPU_LIMIT && MAX_CPU_SECONDS > 0) {
+            limit.compareAndSet(null, CPU);
+        }
+        if (limit.get() != null) {
+            String reason = limit.get().equals(TIMEOUT) ? "it ran for more than " + timeoutMillis / 1000 + " s"
+                    : limit.get().equals(OUTPUT) ? "its output went over " + MAX_OUTPUT_BYTES + " bytes"
+                    : "it used more than " + MAX_CPU_SECONDS + " s of CPU time";
+            tail.addLast("Killed because " + reason);
+            if (log != null) {
+                log.println(prefix + "Killed because " + reason);
+            }
+        }
+        if (log != null) {
+            log.flush();
+        }
+
+        ArrayList<String> cmdOutput = new ArrayList<String>(tail);
+        if (omitted > 0) {
+            cmdOutput.add(0, "... " + omitted + " lines omitted, see " + log.getFile().getPath());
+        }
+        cmdOutput.add(Integer.toString(eValue));
+        return cmdOutput;
+    }
+
+    /**
+     * Kills a process and everything it started once it has run for
+     * timeoutMillis, unless the returned timer is cancelled first.
+     * @return the timer, null without a timeout
+     */
+    private static ScheduledFuture<?> watch(Process p, long timeoutMillis, AtomicReference<String> limit) {
+        if (timeoutMillis <= 0) {
+            return null;
+        }
+        return watchdog.schedule(() -> {
+            if (p.isAlive() && limit.compareAndSet(null, TIMEOUT)) {
+                ProcessTree.kill(p);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The ulimit settings for MAX_CPU_SECONDS and MAX_MEMORY_BYTES, to run
+     * before a step's command. The limits hold for every process of the
+     * step on its own.
+     * @return shell commands ending in "&& ", or "" without limits
+     */
+    static String ulimits() {
+        StringBuilder script = new StringBuilder();
+        if (MAX_CPU_SECONDS > 0) {
+            // SIGXCPU at the soft limit tells a CPU limit apart from other kills
+            script.append("ulimit -S -t ").append(MAX_CPU_SECONDS).append(" && ");
+            script.append("ulimit -H -t ").append(MAX_CPU_SECONDS + 5).append(" && ");
+        }
+        if (MAX_MEMORY_BYTES > 0) {
+            script.append("ulimit -v ").append(MAX_MEMORY_BYTES / 1024).append(" && ");
+        }
+        return script.toString();
+    }
+
+    private static void register(String jobID, Process p) {
+        processes.computeIfAbsent(jobID, id -> ConcurrentHashMap.newKeySet()).add(p);
+    }
+
+    private static void unregister(String jobID, Process p) {
+        processes.computeIfPresent(jobID, (id, running) -> {
+            running.remove(p);
+            return running.isEmpty() ? null : running;
+        });
+    }
+
+    /**
+     * Kills the commands a job is running right now, with every process
+     * they started, without stopping the job.
+     * @param jobID - the unique ID of the job
+     */
+    static void killRunning(String jobID) {
+        Set<Process> running = processes.get(jobID);
+        if (running != null) {
+            for (Process p : running) {
+                ProcessTree.kill(p);
+            }
+        }
+    }
+
+    /**
+     * Kills the command a job is running, with every process it started,
+     * and keeps the job from running any further commands.
+     * @param jobID - the unique ID of the job
+     */
+    public static void kill(String jobID) {
+        killed.add(jobID);
+        killRunning(jobID);
+    }
+
+    /**
+     * @param jobID - the unique ID of the job
+     * @return true if kill was called for the job
+     */
+    public static boolean wasKilled(String jobID) {
+        return killed.contains(jobID);
+    }
+
+    /**
+     * Forgets that a job was killed, once it has finished.
+     * @param jobID - the unique ID of the job
+     */
+    public static void forget(String jobID) {
+        killed.remove(jobID);
+    }
 }
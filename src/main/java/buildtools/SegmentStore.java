@@ -0,0 +1,811 @@
+package buildtools;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only, log-structured key/value store used by Storage.
+ *
+ * Every put appends one JSON record line to the active segment file
+ * and remembers where it was written in an in-memory index, so a write
+ * costs O(record) instead of O(database). When the active segment grows
+ * past SEGMENT_MAX_BYTES a new one is started, and sealed segments that
+ * mostly contain overwritten records are compacted in the background.
+ *
+ * Puts from many threads do not wait on each other. A put serializes its
+ * record on the calling thread and parks it in a concurrent map of dirty
+ * entries, replacing an older unwritten record for the same key. A single
+ * writer thread drains that map, appends the whole batch with one write
+ * (group commit) and then releases every put that the batch covered.
+ *
+ * Segment files are named segment-NNNNNNNN.log and replayed in id order
+ * on startup, later records overriding earlier ones. A removed key is
+ * written as a tombstone record, {"id":key,"deleted":true}. Compaction
+ * keeps a tombstone until it lands in the oldest segment, so a crash
+ * that leaves an older segment behind cannot bring a removed key back.
+ */
+public class SegmentStore {
+    public static long SEGMENT_MAX_BYTES = 4 * 1024 * 1024;
+    public static int COMPACT_MIN_SEGMENTS = 4;
+    public static double COMPACT_GARBAGE_RATIO = 0.5;
+    public static boolean SYNC_ON_COMMIT = false;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private static final Map<String, SegmentStore> open = new HashMap<>();
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "segment-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Where the latest record for a key lives.
+     */
+    private static class Location {
+        final long segment;
+        final long offset;
+        final int length;
+
+        Location(long segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A serialized record waiting for the writer thread. The value is
+     * null for a tombstone.
+     */
+    private static class Pending {
+        final JSONObject value;
+        final byte[] line;
+        final long seq;
+
+        Pending(JSONObject value, byte[] line, long seq) {
+            this.value = value;
+            this.line = line;
+            this.seq = seq;
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Pending> dirty = new ConcurrentHashMap<>();
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+
+    // Puts share it while publishing a dirty entry, the writer takes it
+    // exclusively for the instant it snapshots a batch.
+    private final ReentrantReadWriteLock enqueueLock = new ReentrantReadWriteLock();
+    // Guards segment files: reads and appends share it, clear and compaction
+    // need it exclusively since they delete files.
+    private final ReentrantReadWriteLock filesLock = new ReentrantReadWriteLock();
+    // segment id -> {total bytes, live bytes}, guarded by itself
+    private final TreeMap<Long, long[]> segments = new TreeMap<>();
+    // Latest tombstone of every removed key, guarded by the segments monitor
+    private final Map<String, Location> tombstones = new HashMap<>();
+    private volatile long activeSegment;
+    private RandomAccessFile activeFile;
+    private boolean compacting = false;
+    private volatile long generation = 0;
+
+    // Group commit bookkeeping, guarded by commitMonitor
+    private final Object commitMonitor = new Object();
+    private final AtomicLong enqueued = new AtomicLong();
+    private long committed = 0;
+    private long failedFrom = 0;
+    private long failedTo = 0;
+    private IOException failure;
+    private volatile boolean closed = false;
+    private final Thread writer;
+
+    /**
+     * Opens the store kept in the given directory. Stores are shared per
+     * directory so that every Storage instance sees the same index.
+     * @param directory - directory holding the segment files
+     * @return the store for that directory
+     * @throws IOException - if the directory cannot be created or read
+     */
+    public static SegmentStore open(File directory) throws IOException {
+        String key = directory.getCanonicalPath();
+        synchronized (open) {
+            SegmentStore store = open.get(key);
+            if (store == null) {
+                store = new SegmentStore(directory);
+                open.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    private SegmentStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create database directory " + directory);
+        }
+        recover();
+        writer = new Thread(this::writeLoop, "segment-writer-" + directory.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record for the key, replacing any earlier value. Returns
+     * once the record has been written to the segment file.
+     * @param key - the record key
+     * @param value - the record value
+     * @throws IOException - if the record could not be written
+     */
+    public void put(String key, JSONObject value) throws IOException {
+        JSONObject record = new JSONObject();
+        record.put("id", key);
+        record.put("value", value);
+        enqueue(key, value, record);
+    }
+
+    /**
+     * Removes the key. Returns once the tombstone has been written to the
+     * segment file.
+     * @param key - the record key
+     * @throws IOException - if the tombstone could not be written
+     */
+    public void remove(String key) throws IOException {
+        JSONObject record = new JSONObject();
+        record.put("id", key);
+        record.put("deleted", true);
+        enqueue(key, null, record);
+    }
+
+    /**
+     * Parks a record for the writer and waits until it is committed.
+     */
+    private void enqueue(String key, JSONObject value, JSONObject record) throws IOException {
+        byte[] line = (record.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        Pending pending;
+        enqueueLock.readLock().lock();
+        try {
+            pending = dirty.compute(key, (k, old) -> {
+                // Under the key's lock, so known and order agree with the latest record
+                if (value == null) {
+                    if (known.remove(key)) {
+                        order.remove(key);
+                    }
+                } else if (known.add(key)) {
+                    order.add(key);
+                }
+                return new Pending(value, line, enqueued.incrementAndGet());
+            });
+        } finally {
+            enqueueLock.readLock().unlock();
+        }
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+            awaitCommit(pending.seq);
+        }
+    }
+
+    /**
+     * Blocks until the writer has committed every record up to seq.
+     * Must be called while holding commitMonitor.
+     */
+    private void awaitCommit(long seq) throws IOException {
+        boolean interrupted = false;
+        while (committed < seq && !closed) {
+            try {
+                commitMonitor.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (closed && committed < seq) {
+            throw new IOException("Database closed");
+        }
+        if (failure != null && seq >= failedFrom && seq <= failedTo) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads the latest value stored for the key.
+     * @param key - the record key
+     * @return the value, or null if the key is unknown
+     * @throws IOException - if the segment could not be read
+     */
+    public JSONObject get(String key) throws IOException {
+        Pending pending = dirty.get(key);
+        if (pending != null) {
+            return pending.value == null ? null : new JSONObject(pending.value.toString());
+        }
+        filesLock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(location.segment), "r")) {
+                return read(file, location);
+            }
+        } finally {
+            filesLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads every live value, in the order the keys were first written.
+     * @return map from key to value
+     * @throws IOException - if a segment could not be read
+     */
+    public Map<String, JSONObject> getAll() throws IOException {
+        Map<String, JSONObject> all = new LinkedHashMap<>();
+        Map<Long, RandomAccessFile> files = new HashMap<>();
+        filesLock.readLock().lock();
+        try {
+            for (String key : order) {
+                Pending pending = dirty.get(key);
+                if (pending != null) {
+                    if (pending.value != null) {
+                        all.put(key, new JSONObject(pending.value.toString()));
+                    }
+                    continue;
+                }
+                Location location = index.get(key);
+                if (location == null) {
+                    continue;
+                }
+                RandomAccessFile file = files.get(location.segment);
+                if (file == null) {
+                    file = new RandomAccessFile(segmentFile(location.segment), "r");
+                    files.put(location.segment, file);
+                }
+                all.put(key, read(file, location));
+            }
+        } finally {
+            filesLock.readLock().unlock();
+            for (RandomAccessFile file : files.values()) {
+                file.close();
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return the keys currently stored, in the order they were first written
+     */
+    public List<String> keys() {
+        return new ArrayList<>(order);
+    }
+
+    /**
+     * @return the number of keys currently stored
+     */
+    public int size() {
+        return known.size();
+    }
+
+    /**
+     * Removes every record and segment file. Puts that were still waiting
+     * for the writer are dropped.
+     * @throws IOException - if a fresh segment could not be created
+     */
+    public void clear() throws IOException {
+        filesLock.writeLock().lock();
+        try {
+            dirty.clear();
+            known.clear();
+            order.clear();
+            index.clear();
+            activeFile.close();
+            synchronized (segments) {
+                for (long id : segments.keySet()) {
+                    segmentFile(id).delete();
+                }
+                segments.clear();
+                tombstones.clear();
+                generation++;
+                openActive(1);
+            }
+        } finally {
+            filesLock.writeLock().unlock();
+        }
+        synchronized (commitMonitor) {
+            committed = Math.max(committed, enqueued.get());
+            commitMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Body of the writer thread. Waits for dirty entries and commits them
+     * in batches until the store is closed.
+     */
+    private void writeLoop() {
+        while (!closed) {
+            synchronized (commitMonitor) {
+                while (dirty.isEmpty() && !closed) {
+                    try {
+                        commitMonitor.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (closed) {
+                return;
+            }
+
+            // Every put numbered up to upTo is visible in the snapshot, either
+            // itself or through a newer record for the same key.
+            long upTo;
+            long batchGeneration;
+            List<Map.Entry<String, Pending>> batch = new ArrayList<>();
+            enqueueLock.writeLock().lock();
+            try {
+                upTo = enqueued.get();
+                batchGeneration = generation;
+                for (Map.Entry<String, Pending> entry : dirty.entrySet()) {
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                }
+            } finally {
+                enqueueLock.writeLock().unlock();
+            }
+
+            IOException error = null;
+            try {
+                commitBatch(batch, batchGeneration);
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = e;
+            }
+
+            synchronized (commitMonitor) {
+                if (error != null) {
+                    failure = error;
+                    failedFrom = committed + 1;
+                    failedTo = upTo;
+                }
+                committed = Math.max(committed, upTo);
+                commitMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Appends a batch of dirty entries to the active segment with a single
+     * write, then publishes the new locations in the index. Entries are
+     * removed from the dirty map only if no newer record replaced them
+     * meanwhile. A batch taken before the store was cleared is dropped.
+     */
+    private void commitBatch(List<Map.Entry<String, Pending>> batch, long batchGeneration) throws IOException {
+        boolean roll = false;
+        filesLock.readLock().lock();
+        try {
+            if (batch.isEmpty() || batchGeneration != generation) {
+                return;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            for (Map.Entry<String, Pending> entry : batch) {
+                buffer.write(entry.getValue().line);
+            }
+
+            long offset = activeFile.length();
+            activeFile.seek(offset);
+            activeFile.write(buffer.toByteArray());
+            if (SYNC_ON_COMMIT) {
+                activeFile.getFD().sync();
+            }
+
+            synchronized (segments) {
+                for (Map.Entry<String, Pending> entry : batch) {
+                    int length = entry.getValue().line.length;
+                    if (entry.getValue().value == null) {
+                        untrack(entry.getKey(), new Location(activeSegment, offset, length));
+                    } else {
+                        track(entry.getKey(), new Location(activeSegment, offset, length));
+                    }
+                    offset += length;
+                }
+            }
+            for (Map.Entry<String, Pending> entry : batch) {
+                dirty.remove(entry.getKey(), entry.getValue());
+            }
+            roll = activeFile.length() >= SEGMENT_MAX_BYTES;
+        } finally {
+            filesLock.readLock().unlock();
+        }
+        if (roll) {
+            roll();
+        }
+    }
+
+    /**
+     * Rewrites the live records of all sealed segments into a single segment,
+     * dropping overwritten ones. Copying happens without blocking readers or
+     * the writer since sealed segments are never modified.
+     *
+     * The compacted segment takes the id of the newest sealed one and the
+     * older ones are deleted after it is in place. Until then a crash
+     * replays them first, so the tombstones of removed keys are copied too,
+     * and only dropped once they are in the oldest segment.
+     * @throws IOException - if the compacted segment could not be written
+     */
+    public void compact() throws IOException {
+        List<Long> sealed;
+        Map<String, Location> live = new LinkedHashMap<>();
+        Map<String, Location> removed = new LinkedHashMap<>();
+        long startGeneration;
+        synchronized (segments) {
+            if (compacting) {
+                return;
+            }
+            sealed = new ArrayList<>(segments.headMap(activeSegment).keySet());
+            if (sealed.size() < 2) {
+                return;
+            }
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment < activeSegment) {
+                    live.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Location> entry : tombstones.entrySet()) {
+                // Nothing is older than the oldest segment, its tombstones shadow nothing
+                if (entry.getValue().segment < activeSegment && entry.getValue().segment != sealed.get(0)) {
+                    removed.put(entry.getKey(), entry.getValue());
+                }
+            }
+            compacting = true;
+            startGeneration = generation;
+        }
+
+        try {
+            long target = sealed.get(sealed.size() - 1);
+            File tmp = new File(directory, SEGMENT_PREFIX + String.format("%08d", target) + COMPACTING_SUFFIX);
+            Map<String, Location> moved = new HashMap<>();
+            Map<String, Location> movedTombstones = new HashMap<>();
+            Map<Long, RandomAccessFile> files = new HashMap<>();
+            long offset = 0;
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                for (Map.Entry<String, Location> entry : live.entrySet()) {
+                    copy(entry.getValue(), files, out);
+                    moved.put(entry.getKey(), new Location(target, offset, entry.getValue().length));
+                    offset += entry.getValue().length;
+                }
+                for (Map.Entry<String, Location> entry : removed.entrySet()) {
+                    copy(entry.getValue(), files, out);
+                    movedTombstones.put(entry.getKey(), new Location(target, offset, entry.getValue().length));
+                    offset += entry.getValue().length;
+                }
+                out.getFD().sync();
+            } finally {
+                for (RandomAccessFile file : files.values()) {
+                    file.close();
+                }
+            }
+
+            filesLock.writeLock().lock();
+            try {
+                synchronized (segments) {
+                    if (generation != startGeneration) {
+                        // The store was cleared while copying
+                        tmp.delete();
+                        return;
+                    }
+                    long liveBytes = 0;
+                    for (Map.Entry<String, Location> entry : moved.entrySet()) {
+                        // Only swap keys that were not overwritten while copying
+                        if (index.replace(entry.getKey(), live.get(entry.getKey()), entry.getValue())) {
+                            liveBytes += entry.getValue().length;
+                        }
+                    }
+                    for (Map.Entry<String, Location> entry : movedTombstones.entrySet()) {
+                        if (tombstones.get(entry.getKey()) == removed.get(entry.getKey())) {
+                            tombstones.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                    // The tombstones left behind are all in the oldest segment
+                    tombstones.values().removeIf(tombstone -> tombstone.segment < target);
+                    if (!tmp.renameTo(segmentFile(target))) {
+                        throw new IOException("Could not replace segment " + target);
+                    }
+                    syncDirectory();
+                    for (long id : sealed) {
+                        if (id != target) {
+                            segmentFile(id).delete();
+                        }
+                        segments.remove(id);
+                    }
+                    segments.put(target, new long[]{offset, liveBytes});
+                }
+            } finally {
+                filesLock.writeLock().unlock();
+            }
+        } finally {
+            synchronized (segments) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void copy(Location from, Map<Long, RandomAccessFile> files, FileOutputStream out) throws IOException {
+        RandomAccessFile file = files.get(from.segment);
+        if (file == null) {
+            file = new RandomAccessFile(segmentFile(from.segment), "r");
+            files.put(from.segment, file);
+        }
+        byte[] bytes = new byte[from.length];
+        file.seek(from.offset);
+        file.readFully(bytes);
+        out.write(bytes);
+    }
+
+    /**
+     * Makes the rename of a compacted segment durable before the segments
+     * it replaces are deleted.
+     */
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened for syncing on every platform, e.g. Windows
+        }
+    }
+
+    /**
+     * Starts a new active segment and schedules compaction if the sealed
+     * segments carry enough overwritten data. Only called by the writer.
+     */
+    private void roll() throws IOException {
+        boolean compact;
+        filesLock.writeLock().lock();
+        try {
+            synchronized (segments) {
+                activeFile.close();
+                openActive(activeSegment + 1);
+
+                long total = 0;
+                long live = 0;
+                int sealed = 0;
+                for (Map.Entry<Long, long[]> entry : segments.headMap(activeSegment).entrySet()) {
+                    total += entry.getValue()[0];
+                    live += entry.getValue()[1];
+                    sealed++;
+                }
+                boolean garbage = total > 0 && (total - live) >= total * COMPACT_GARBAGE_RATIO;
+                compact = sealed >= 2 && (sealed >= COMPACT_MIN_SEGMENTS || garbage);
+            }
+        } finally {
+            filesLock.writeLock().unlock();
+        }
+        if (compact) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens the segment with the given id for appending.
+     * Must be called while holding the segments monitor.
+     */
+    private void openActive(long id) throws IOException {
+        activeSegment = id;
+        activeFile = new RandomAccessFile(segmentFile(id), "rw");
+        long length = activeFile.length();
+        long[] stats = segments.get(id);
+        if (stats == null) {
+            segments.put(id, new long[]{length, 0});
+        }
+    }
+
+    /**
+     * Points the key at a new location and updates the byte accounting of
+     * the segment it used to live in.
+     * Must be called while holding the segments monitor.
+     */
+    private void track(String key, Location location) {
+        tombstones.remove(key);
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            long[] old = segments.get(previous.segment);
+            if (old != null) {
+                old[1] -= previous.length;
+            }
+        }
+        long[] stats = segments.get(location.segment);
+        if (stats == null) {
+            stats = new long[]{0, 0};
+            segments.put(location.segment, stats);
+        }
+        stats[0] = Math.max(stats[0], location.offset + location.length);
+        stats[1] += location.length;
+    }
+
+    /**
+     * Drops the key from the index for a tombstone written at the given
+     * location. The tombstone itself is never live, compaction drops it
+     * once nothing older than its segment is left.
+     * Must be called while holding the segments monitor.
+     */
+    private void untrack(String key, Location tombstone) {
+        tombstones.put(key, tombstone);
+        Location previous = index.remove(key);
+        if (previous != null) {
+            long[] old = segments.get(previous.segment);
+            if (old != null) {
+                old[1] -= previous.length;
+            }
+        }
+        long[] stats = segments.get(tombstone.segment);
+        if (stats == null) {
+            stats = new long[]{0, 0};
+            segments.put(tombstone.segment, stats);
+        }
+        stats[0] = Math.max(stats[0], tombstone.offset + tombstone.length);
+    }
+
+    private JSONObject read(RandomAccessFile file, Location location) throws IOException {
+        byte[] bytes = new byte[location.length];
+        file.seek(location.offset);
+        file.readFully(bytes);
+        try {
+            return new JSONObject(new String(bytes, StandardCharsets.UTF_8)).getJSONObject("value");
+        } catch (JSONException e) {
+            throw new IOException("Corrupt record in segment " + location.segment, e);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Rebuilds the index by replaying all segments in order. A record that
+     * was only partially written when the process died is cut off.
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, File> files = new TreeMap<>();
+        File[] listing = directory.listFiles();
+        if (listing != null) {
+            for (File f : listing) {
+                String name = f.getName();
+                if (name.endsWith(COMPACTING_SUFFIX)) {
+                    // Unfinished compaction, the original segments are still intact
+                    f.delete();
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                        files.put(id, f);
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+        }
+
+        synchronized (segments) {
+            for (Map.Entry<Long, File> entry : files.entrySet()) {
+                long id = entry.getKey();
+                long valid = replay(id, entry.getValue());
+                if (valid < entry.getValue().length()) {
+                    System.err.println("Truncating torn record at end of " + entry.getValue());
+                    try (RandomAccessFile file = new RandomAccessFile(entry.getValue(), "rw")) {
+                        file.setLength(valid);
+                    }
+                }
+                long[] stats = segments.get(id);
+                if (stats == null) {
+                    segments.put(id, new long[]{valid, 0});
+                } else {
+                    stats[0] = valid;
+                }
+            }
+
+            openActive(files.isEmpty() ? 1 : files.lastKey());
+        }
+    }
+
+    /**
+     * Replays one segment into the index.
+     * @return the number of bytes that contained complete records
+     */
+    private long replay(long id, File file) throws IOException {
+        long offset = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                line.write(b);
+                if (b != '\n') {
+                    continue;
+                }
+                byte[] bytes = line.toByteArray();
+                line.reset();
+                try {
+                    JSONObject record = new JSONObject(new String(bytes, StandardCharsets.UTF_8));
+                    String key = record.getString("id");
+                    if (record.optBoolean("deleted")) {
+                        untrack(key, new Location(id, offset, bytes.length));
+                        if (known.remove(key)) {
+                            order.remove(key);
+                        }
+                    } else {
+                        track(key, new Location(id, offset, bytes.length));
+                        if (known.add(key)) {
+                            order.add(key);
+                        }
+                    }
+                } catch (JSONException e) {
+                    System.err.println("Skipping corrupt record in " + file + " at offset " + offset);
+                }
+                offset += bytes.length;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Closes the store kept in the given directory, after the writer has
+     * committed everything it accepted. Only intended for tests and
+     * benchmarks that need to reopen a directory from disk.
+     * @param directory - directory holding the segment files
+     */
+    static void close(File directory) throws IOException {
+        SegmentStore store;
+        synchronized (open) {
+            store = open.remove(directory.getCanonicalPath());
+        }
+        if (store == null) {
+            return;
+        }
+        synchronized (store.commitMonitor) {
+            store.awaitCommit(store.enqueued.get());
+            store.closed = true;
+            store.commitMonitor.notifyAll();
+        }
+        try {
+            store.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.filesLock.writeLock().lock();
+        try {
+            store.activeFile.close();
+        } finally {
+            store.filesLock.writeLock().unlock();
+        }
+    }
+}
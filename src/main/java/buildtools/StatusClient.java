@@ -0,0 +1,563 @@
+package buildtools;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends commit statuses to GitHub in the background so builds never wait
+ * on GitHub. Updates go through a bounded queue with one slot per commit:
+ * an update that is still queued when a newer one for the same commit
+ * arrives is replaced, so e.g. a pending status never goes out after the
+ * final one. A few sender threads share one pooled, keep-alive HTTP
+ * client, and updates for the same commit are never sent concurrently.
+ *
+ * Updates that fail because of the network, a server error or a rate
+ * limit are retried with exponential backoff and jitter, unless a newer
+ * update for the commit is queued by then. Requests are paced by a token
+ * bucket which also stops all sending while GitHub says we are out of
+ * quota. With an outbox directory every queued update is also written to
+ * a SegmentStore, so updates not sent before a restart are sent after it.
+ */
+public class StatusClient {
+    public static String API_URL = "https://api.github.com";
+    public static String OUTBOX_DIRECTORY = "db/outbox";
+    public static int SENDERS = 2;
+    public static int MAX_QUEUED = 1000;
+    public static int MAX_ATTEMPTS = 8;
+    public static long BACKOFF_MILLIS = 1000;
+    public static long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    public static int BURST = 10;
+    public static double REQUESTS_PER_SECOND = 1;
+
+    private static final Metrics.Histogram SEND_SECONDS =
+            Metrics.histogram("ci_status_update_seconds", "Round trip time of commit status requests to GitHub");
+
+    /**
+     * A commit status waiting to be sent.
+     */
+    public static class Update {
+        private final String owner;
+        private final String repo;
+        private final String sha;
+        private final Build.Result status;
+        private final String jobID;
+
+        public Update(String owner, String repo, String sha, Build.Result status, String jobID) {
+            this.owner = owner;
+            this.repo = repo;
+            this.sha = sha;
+            this.status = status;
+            this.jobID = jobID;
+        }
+
+        /**
+         * Reads an update written to the outbox.
+         * @param json - the update as written by toJSON
+         * @throws JSONException - if a field is missing or the status is unknown
+         */
+        public Update(JSONObject json) {
+            this(json.getString("owner"), json.getString("repo"), json.getString("sha"),
+                    json.getEnum(Build.Result.class, "status"), json.getString("jobID"));
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getRepo() {
+            return repo;
+        }
+
+        public String getSha() {
+            return sha;
+        }
+
+        public Build.Result getStatus() {
+            return status;
+        }
+
+        public String getJobID() {
+            return jobID;
+        }
+
+        /**
+         * @return the commit the update is for, as "owner/repo@sha"
+         */
+        public String getKey() {
+            return owner + "/" + repo + "@" + sha;
+        }
+
+        /**
+         * @return the update as written to the outbox
+         */
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("owner", owner);
+            json.put("repo", repo);
+            json.put("sha", sha);
+            json.put("status", status);
+            json.put("jobID", jobID);
+            return json;
+        }
+    }
+
+    /**
+     * How sending an update went.
+     */
+    enum Outcome {
+        /** GitHub accepted the update */
+        sent,
+        /** the update may be accepted if sent again later */
+        retry,
+        /** GitHub will not accept the update */
+        rejected
+    }
+
+    /**
+     * An update in the queue with its delivery state.
+     */
+    private static class Entry {
+        final Update update;
+        final String outboxKey;
+        int attempts = 0;
+        long notBefore = 0;
+
+        Entry(Update update, String outboxKey) {
+            this.update = update;
+            this.outboxKey = outboxKey;
+        }
+    }
+
+    private final String apiUrl;
+    private final File tokenFile;
+    private final int maxQueued;
+    private final SegmentStore outbox;
+    private final TokenBucket limiter = new TokenBucket(BURST, REQUESTS_PER_SECOND);
+    private final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    private final CloseableHttpClient client;
+    private final List<Thread> senders = new ArrayList<>();
+
+    private final LinkedHashMap<String, Entry> queue = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private boolean closed = false;
+    private long outboxSeq = 0;
+
+    private String token;
+    private long tokenModified = -1;
+
+    private long sent = 0;
+    private long coalesced = 0;
+    private long dropped = 0;
+    private long failed = 0;
+    private long retried = 0;
+
+    /**
+     * Creates a client for API_URL reading the token from the token file,
+     * with its outbox in OUTBOX_DIRECTORY.
+     */
+    public StatusClient() {
+        this(API_URL, new File("token"), SENDERS, MAX_QUEUED, new File(OUTBOX_DIRECTORY));
+    }
+
+    /**
+     * Creates a client without an outbox, queued updates are lost on restart.
+     * @param apiUrl - base url of the GitHub API
+     * @param tokenFile - file holding the OAuth token on its first line
+     * @param senders - number of threads sending updates
+     * @param maxQueued - number of commits that may have an update queued
+     */
+    public StatusClient(String apiUrl, File tokenFile, int senders, int maxQueued) {
+        this(apiUrl, tokenFile, senders, maxQueued, null);
+    }
+
+    /**
+     * Creates a client, queueing again every update left in the outbox.
+     * @param apiUrl - base url of the GitHub API
+     * @param tokenFile - file holding the OAuth token on its first line
+     * @param senders - number of threads sending updates
+     * @param maxQueued - number of commits that may have an update queued
+     * @param outboxDirectory - directory of the outbox store, or null for none
+     */
+    public StatusClient(String apiUrl, File tokenFile, int senders, int maxQueued, File outboxDirectory) {
+        this.apiUrl = apiUrl;
+        this.tokenFile = tokenFile;
+        this.maxQueued = maxQueued;
+        this.outbox = openOutbox(outboxDirectory);
+        connections.setMaxTotal(Math.max(2, senders));
+        connections.setDefaultMaxPerRoute(Math.max(2, senders));
+        this.client = HttpClients.custom().setConnectionManager(connections).build();
+        for (int i = 0; i < senders; i++) {
+            Thread sender = new Thread(this::sendLoop, "status-sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            this.senders.add(sender);
+        }
+    }
+
+    /**
+     * Opens the outbox and queues its updates in the order they were
+     * written. Of several updates for one commit only the newest is kept.
+     * @return the outbox, or null if there is none or it cannot be opened
+     */
+    private SegmentStore openOutbox(File directory) {
+        if (directory == null) {
+            return null;
+        }
+        SegmentStore store;
+        TreeMap<String, JSONObject> records;
+        try {
+            store = SegmentStore.open(directory);
+            records = new TreeMap<>(store.getAll());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, JSONObject> record : records.entrySet()) {
+            outboxSeq = Math.max(outboxSeq, Long.parseLong(record.getKey()));
+            Update update;
+            try {
+                update = new Update(record.getValue());
+            } catch (JSONException e) {
+                System.err.println("Dropping invalid status update " + record.getKey() + " from the outbox");
+                stale.add(record.getKey());
+                continue;
+            }
+            Entry previous = queue.put(update.getKey(), new Entry(update, record.getKey()));
+            if (previous != null) {
+                stale.add(previous.outboxKey);
+            }
+        }
+        for (String key : stale) {
+            removeFromOutbox(store, key);
+        }
+        if (!queue.isEmpty()) {
+            System.out.println("Resending " + queue.size() + " status updates from the outbox");
+        }
+        return store;
+    }
+
+    /**
+     * Queues a status update without waiting for it to be sent. A queued
+     * update for the same commit is replaced.
+     * @param update - the status to send
+     * @return false if the queue was full or the client closed and the update was dropped
+     */
+    public boolean submit(Update update) {
+        String outboxKey = writeToOutbox(update);
+        Entry replaced;
+        boolean accepted = false;
+        synchronized (this) {
+            if (closed) {
+                // Sent on the next start if it made it to the outbox
+                dropped++;
+                return false;
+            }
+            replaced = queue.get(update.getKey());
+            if (replaced == null && queue.size() >= maxQueued) {
+                dropped++;
+                System.err.println("Status queue full, dropping " + update.getStatus() + " for " + update.getKey());
+            } else {
+                accepted = true;
+                if (replaced != null) {
+                    coalesced++;
+                }
+                // Replacing keeps the commit's place in the queue
+                queue.put(update.getKey(), new Entry(update, outboxKey));
+                notifyAll();
+            }
+        }
+        if (!accepted) {
+            removeFromOutbox(outbox, outboxKey);
+            return false;
+        }
+        removeFromOutbox(outbox, replaced == null ? null : replaced.outboxKey);
+        return true;
+    }
+
+    /**
+     * Takes the oldest queued update that is due and whose commit has no
+     * update being sent.
+     * @return the entry, or null if none is ready yet
+     */
+    private Entry next(long now) {
+        Iterator<Map.Entry<String, Entry>> it = queue.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (entry.getValue().notBefore <= now && !inFlight.contains(entry.getKey())) {
+                it.remove();
+                inFlight.add(entry.getKey());
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return milliseconds until the first queued update is due, 0 if there is none
+     */
+    private long untilDue(long now) {
+        long first = Long.MAX_VALUE;
+        for (Entry entry : queue.values()) {
+            first = Math.min(first, entry.notBefore);
+        }
+        return first == Long.MAX_VALUE ? 0 : Math.max(1, first - now);
+    }
+
+    private void sendLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                while ((entry = next(System.currentTimeMillis())) == null) {
+                    // Retries not due yet stay in the outbox for the next start
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait(untilDue(System.currentTimeMillis()));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            Outcome outcome = Outcome.retry;
+            try {
+                limiter.acquire();
+                outcome = send(entry.update);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                delivered(entry, outcome);
+            }
+        }
+    }
+
+    /**
+     * Records how sending went and queues the update again if it should
+     * be retried.
+     */
+    private void delivered(Entry entry, Outcome outcome) {
+        String key = entry.update.getKey();
+        boolean done = true;
+        synchronized (this) {
+            inFlight.remove(key);
+            if (outcome == Outcome.sent) {
+                sent++;
+            } else if (outcome == Outcome.rejected) {
+                failed++;
+            } else if (queue.containsKey(key)) {
+                // A newer update for the commit makes this one obsolete
+                coalesced++;
+            } else if (++entry.attempts >= MAX_ATTEMPTS) {
+                failed++;
+                System.err.println("Giving up on status " + entry.update.getStatus() + " for " + key
+                        + " after " + entry.attempts + " attempts");
+            } else {
+                retried++;
+                entry.notBefore = System.currentTimeMillis() + backoff(entry.attempts);
+                queue.put(key, entry);
+                done = false;
+            }
+            notifyAll();
+        }
+        if (done) {
+            removeFromOutbox(outbox, entry.outboxKey);
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and
+     * all of BACKOFF_MILLIS doubled per failed attempt, at most
+     * MAX_BACKOFF_MILLIS.
+     * @param attempts - number of failed attempts so far
+     * @return milliseconds to wait before the next attempt
+     */
+    static long backoff(int attempts) {
+        long max = Math.min(MAX_BACKOFF_MILLIS, BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    /**
+     * Posts one update, always consuming the response so the connection
+     * goes back to the pool. Rate limit headers of the response pause
+     * the token bucket.
+     * @return how sending went
+     */
+    Outcome send(Update update) {
+        String token = getToken();
+        if (token == null) {
+            return Outcome.rejected;
+        }
+        long start = System.nanoTime();
+        Outcome outcome;
+        try (Trace.Span span = Trace.of(update.getJobID()).span("status " + update.getStatus())) {
+            outcome = post(update, token);
+            span.set("outcome", outcome);
+        }
+        SEND_SECONDS.observeSince(start);
+        Metrics.counter("ci_status_updates_total", "Commit status requests sent to GitHub, by outcome",
+                "outcome", outcome.toString()).inc();
+        return outcome;
+    }
+
+    private Outcome post(Update update, String token) {
+        HttpPost post = StatusUpdater.createHttpPost(apiUrl, update.getOwner(), update.getRepo(), update.getSha(),
+                update.getStatus(), token, update.getJobID());
+        try (CloseableHttpResponse response = client.execute(post)) {
+            EntityUtils.consume(response.getEntity());
+            int code = response.getStatusLine().getStatusCode();
+            boolean limited = rateLimit(response);
+            if (code / 100 == 2) {
+                return Outcome.sent;
+            }
+            System.err.println("Status " + update.getStatus() + " for " + update.getKey() + " rejected with " + code);
+            if (code / 100 == 5 || code == 429 || (code == 403 && limited)) {
+                return Outcome.retry;
+            }
+            return Outcome.rejected;
+        } catch (IOException e) {
+            System.err.println("Could not send status for " + update.getKey() + ": " + e.getMessage());
+            return Outcome.retry;
+        }
+    }
+
+    /**
+     * Pauses sending as long as the response asks: for Retry-After
+     * seconds, or until X-RateLimit-Reset when no requests remain.
+     * @return true if the response says we are rate limited
+     */
+    private boolean rateLimit(CloseableHttpResponse response) {
+        long now = System.currentTimeMillis();
+        long until = 0;
+        try {
+            Header retryAfter = response.getFirstHeader("Retry-After");
+            if (retryAfter != null) {
+                until = now + Long.parseLong(retryAfter.getValue().trim()) * 1000;
+            }
+            Header remaining = response.getFirstHeader("X-RateLimit-Remaining");
+            Header reset = response.getFirstHeader("X-RateLimit-Reset");
+            if (remaining != null && reset != null && Long.parseLong(remaining.getValue().trim()) == 0) {
+                until = Math.max(until, Long.parseLong(reset.getValue().trim()) * 1000);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring malformed rate limit header: " + e.getMessage());
+        }
+        if (until <= now) {
+            return false;
+        }
+        limiter.pauseUntil(Math.min(until, now + MAX_BACKOFF_MILLIS));
+        return true;
+    }
+
+    /**
+     * Writes an update to the outbox under the next sequence number, so
+     * the outbox replays in submit order.
+     * @return the outbox key, or null if there is no outbox or writing failed
+     */
+    private String writeToOutbox(Update update) {
+        if (outbox == null) {
+            return null;
+        }
+        String key;
+        synchronized (this) {
+            key = String.format("%019d", ++outboxSeq);
+        }
+        try {
+            outbox.put(key, update.toJSON());
+            return key;
+        } catch (IOException e) {
+            System.err.println("Could not write status for " + update.getKey() + " to the outbox: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void removeFromOutbox(SegmentStore outbox, String key) {
+        if (outbox == null || key == null) {
+            return;
+        }
+        try {
+            outbox.remove(key);
+        } catch (IOException e) {
+            System.err.println("Could not remove status " + key + " from the outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the token file, only again when it has changed.
+     * @return the token, or null if there is no token file
+     */
+    synchronized String getToken() {
+        long modified = tokenFile.lastModified();
+        if (modified != tokenModified) {
+            tokenModified = modified;
+            token = null;
+            if (modified != 0) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(tokenFile))) {
+                    token = reader.readLine();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (token == null) {
+                System.err.println("Authorization token not found.");
+            }
+        }
+        return token;
+    }
+
+    /**
+     * @return number of updates waiting to be sent, including those waiting for a retry
+     */
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return {sent, coalesced, dropped, failed, retried} since the client was created
+     */
+    public synchronized long[] stats() {
+        return new long[]{sent, coalesced, dropped, failed, retried};
+    }
+
+    /**
+     * Sends what is queued and due, then stops the senders and closes the
+     * connections. Updates waiting for a retry stay in the outbox.
+     * @param millis - maximum time to wait per sender
+     * @throws InterruptedException - if the waiting thread is interrupted
+     */
+    public void close(long millis) throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Thread sender : senders) {
+            sender.join(millis);
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
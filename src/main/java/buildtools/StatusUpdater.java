@@ -1,10 +1,13 @@
 package buildtools;
 
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONObject;
+import server.ContinuousIntegrationServer;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -15,16 +18,15 @@ public class StatusUpdater {
 
     /**
      * Sets commit status. OAuth authorization using /token file in root folder.
+     * The update is queued on the shared StatusClient and sent in the
+     * background, so this never waits on GitHub.
      * @param owner - name of repo owners account
      * @param repo - name of repo
      * @param sha - sha value of commit
-     * @param status - pending, success, failure, error
+     * @param status - pending, success, failure, error, superseded
      */
     public static void updateStatus(String owner, String repo, String sha, Build.Result status, String jobID) {
-        String token = getToken();
-        if (token !=  null) {
-            sendHttpPost(createHttpPost(owner, repo, sha, status, token, jobID));
-        }
+        ContinuousIntegrationServer.statusClient.submit(new StatusClient.Update(owner, repo, sha, status, jobID));
     }
 
     /**
@@ -42,13 +44,33 @@ public class StatusUpdater {
                                           Build.Result status,
                                           String token,
                                           String jobID) {
-        String url = "https://api.github.com/repos/" + owner + "/" + repo + "/statuses/" + sha;
+        return createHttpPost(StatusClient.API_URL, owner, repo, sha, status, token, jobID);
+    }
+
+    /**
+     * Creates a HTTP POST request to a commit status API.
+     * @param apiUrl - base url of the GitHub API
+     * @param owner - name of repository owner
+     * @param repo - name of repository
+     * @param sha - commit sha value
+     * @param status - commit status
+     * @param token - repository owner's OAuth authorization token
+     * @return HttpPost object configured for the commit status API
+     */
+    public static HttpPost createHttpPost(String apiUrl,
+                                          String owner,
+                                          String repo,
+                                          String sha,
+                                          Build.Result status,
+                                          String token,
+                                          String jobID) {
+        String url = apiUrl + "/repos/" + owner + "/" + repo + "/statuses/" + sha;
         HttpPost httpPost = new HttpPost(url);
 
         String description = getStatusDescription(status);
 
         JSONObject json = new JSONObject();
-        json.put("state", status);
+        json.put("state", getState(status));
         json.put("target_url", "http://localhost:3000/build/" + jobID);
         json.put("description", description);
         json.put("context", "mobergliuslefors");
@@ -68,10 +90,9 @@ public class StatusUpdater {
      * @param httpPost - a http POST request to be sent
      */
     public static void sendHttpPost(HttpPost httpPost) {
-        CloseableHttpClient client = HttpClients.createDefault();
-        try {
-            client.execute(httpPost);
-            client.close();
+        try (CloseableHttpClient client = HttpClients.createDefault();
+             CloseableHttpResponse response = client.execute(httpPost)) {
+            EntityUtils.consume(response.getEntity());
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -92,6 +113,19 @@ public class StatusUpdater {
         return token;
     }
 
+    /**
+     * Gets the GitHub commit state of a build status. GitHub only knows
+     * pending, success, failure and error.
+     * @param status - the build status
+     * @return commit state string
+     */
+    public static String getState(Build.Result status) {
+        if (status == Build.Result.superseded) {
+            return Build.Result.error.toString();
+        }
+        return status.toString();
+    }
+
     /**
      * Gets the commit status description depending on build status.
      * @param status - the build status
@@ -109,6 +143,9 @@ public class StatusUpdater {
             case failure:
                 description = "Failure";
                 break;
+            case superseded:
+                description = "Superseded by a newer push";
+                break;
             default:
                 description = "Error";
 
@@ -0,0 +1,158 @@
+package buildtools;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How one step of a build's pipeline went, with its timing. Times are in
+ * milliseconds, startedAt counting from the start of the pipeline. A step
+ * killed for running into one of its limits names that limit, and a
+ * step that ran has the ResourceUsage it was measured with.
+ */
+public class StepResult {
+    /** the step ran longer than its own timeout */
+    public static final String STEP_TIMEOUT = "stepTimeout";
+    /** the build ran longer than its timeout while the step ran */
+    public static final String JOB_TIMEOUT = "jobTimeout";
+
+    public enum Status {
+        /** the command exited with 0 */
+        success,
+        /** the command exited with another value */
+        failure,
+        /** killed because another step failed or the build was superseded */
+        cancelled,
+        /** never started because a step it depends on did not succeed */
+        skipped
+    }
+
+    private final String name;
+    private final Status status;
+    private final int exitValue;
+    private final long startedAt;
+    private final long millis;
+    private final List<String> output;
+    private final String limit;
+    private final ResourceUsage usage;
+
+    /**
+     * @param name - name of the step
+     * @param status - how the step went
+     * @param exitValue - exit value of the command, -1 if it never ran
+     * @param startedAt - when the step started, counted from the start of the pipeline
+     * @param millis - how long the step ran
+     * @param output - tail of the command's output
+     */
+    public StepResult(String name, Status status, int exitValue, long startedAt, long millis, List<String> output) {
+        this(name, status, exitValue, startedAt, millis, output, null, null);
+    }
+
+    /**
+     * @param name - name of the step
+     * @param status - how the step went
+     * @param exitValue - exit value of the command, -1 if it never ran
+     * @param startedAt - when the step started, counted from the start of the pipeline
+     * @param millis - how long the step ran
+     * @param output - tail of the command's output
+     * @param limit - STEP_TIMEOUT, JOB_TIMEOUT, RunBash.OUTPUT or RunBash.CPU if the step was killed for it, or null
+     * @param usage - what the step used of the host, or null if it was not measured
+     */
+    public StepResult(String name, Status status, int exitValue, long startedAt, long millis, List<String> output,
+                      String limit, ResourceUsage usage) {
+        this.name = name;
+        this.status = status;
+        this.exitValue = exitValue;
+        this.startedAt = startedAt;
+        this.millis = millis;
+        this.output = output;
+        this.limit = limit;
+        this.usage = usage;
+    }
+
+    /**
+     * Reads a step result stored with a build. The output is not stored
+     * with it, it is part of the build's log.
+     * @param json - the step as written by toJSON
+     */
+    public StepResult(JSONObject json) {
+        this(json.getString("name"), json.getEnum(Status.class, "status"), json.optInt("exitValue", -1),
+                json.optLong("startedAt"), json.optLong("millis"), new ArrayList<>(), json.optString("limit", null),
+                json.has("usage") ? new ResourceUsage(json.getJSONObject("usage")) : null);
+    }
+
+    /**
+     * @return a skipped step
+     */
+    static StepResult skipped(String name) {
+        return new StepResult(name, Status.skipped, -1, 0, 0, new ArrayList<>());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getStatus() {
+        return status.toString();
+    }
+
+    public int getExitValue() {
+        return exitValue;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return the limit the step was killed for, or null if it ran into none
+     */
+    public String getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return what the step used of the host, or null if it was not measured
+     */
+    public ResourceUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * Not a getter, so the output is not sent twice with a build.
+     * @return tail of the command's output
+     */
+    List<String> output() {
+        return output;
+    }
+
+    boolean succeeded() {
+        return status == Status.success;
+    }
+
+    Status status() {
+        return status;
+    }
+
+    /**
+     * @return the step as stored with a build, without its output
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("name", name);
+        json.put("status", status);
+        json.put("exitValue", exitValue);
+        json.put("startedAt", startedAt);
+        json.put("millis", millis);
+        json.put("limit", limit);
+        if (usage != null) {
+            json.put("usage", usage.toJSON());
+        }
+        return json;
+    }
+}
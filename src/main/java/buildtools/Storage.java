@@ -1,39 +1,167 @@
 package buildtools;
 
-import java.io.FileWriter;
-import java.io.IOException;
 import java.io.File;
+import java.io.IOException;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Stores and fetches data from a json file regarding build info
+ * Stores and fetches data regarding build info. Builds are kept in an
+ * append-only SegmentStore, one record per post, instead of rewriting a
+ * single json file on every change. Logs are kept in a second store in
+ * the logs subdirectory so listing builds never reads them, and the
+ * trace of every build in a third one in the traces subdirectory. Recently
+ * used builds are also kept deserialized in a BuildCache shared by all
+ * Storage instances on the same directory.
  */
 public class Storage {
+    public static int CACHE_MAX_BUILDS = 1000;
+    public static long CACHE_MAX_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * State shared by every Storage instance on the same directory.
+     */
+    private static class Database {
+        final SegmentStore store;
+        final SegmentStore logStore;
+        final SegmentStore traceStore;
+        final BuildCache cache = new BuildCache(CACHE_MAX_BUILDS, CACHE_MAX_BYTES);
+        final BuildIndex index = new BuildIndex();
+
+        Database(SegmentStore store, SegmentStore logStore, SegmentStore traceStore) {
+            this.store = store;
+            this.logStore = logStore;
+            this.traceStore = traceStore;
+        }
+    }
+
+    private static final Map<String, Database> databases = new HashMap<>();
+    private static final Metrics.Histogram POST_SECONDS =
+            Metrics.histogram("ci_storage_seconds", "Time to write or read builds", "operation", "post");
+    private static final Metrics.Histogram GET_ALL_SECONDS =
+            Metrics.histogram("ci_storage_seconds", "Time to write or read builds", "operation", "getAll");
+
     String fileName = "db.json";
+    String directory = "db";
+    private SegmentStore store;
+    private SegmentStore logStore;
+    private SegmentStore traceStore;
+    private BuildCache cache;
+    private BuildIndex index;
+
     /**
-     * Creates a new json data object if none exists already
+     * Opens the default database directory, importing an existing
+     * db.json file on first use.
      */
     public Storage() {
-        // Check if database already exists
-        File db = new File("db.json");
-        if (!db.exists()) {
-            JSONObject data = new JSONObject();
-
-            // Write to JSON file
-            try (FileWriter file = new FileWriter(fileName)) {
-                file.write(data.toString());
-                file.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+        this("db", "db.json");
+    }
+
+    /**
+     * Opens the database kept in the given directory.
+     * @param directory - directory holding the segment files
+     * @param fileName - legacy json database to import if the directory is empty
+     */
+    public Storage(String directory, String fileName) {
+        this.directory = directory;
+        this.fileName = fileName;
+        try {
+            SegmentStore segments = SegmentStore.open(new File(directory));
+            SegmentStore logSegments = SegmentStore.open(new File(directory, "logs"));
+            SegmentStore traceSegments = SegmentStore.open(new File(directory, "traces"));
+            Database db;
+            synchronized (databases) {
+                String key = new File(directory).getCanonicalPath();
+                db = databases.get(key);
+                if (db == null || db.store != segments || db.logStore != logSegments || db.traceStore != traceSegments) {
+                    db = new Database(segments, logSegments, traceSegments);
+                    store = segments;
+                    logStore = logSegments;
+                    importLegacy();
+                    buildIndex(db);
+                    databases.put(key, db);
+                }
             }
+            store = db.store;
+            logStore = db.logStore;
+            traceStore = db.traceStore;
+            cache = db.cache;
+            index = db.index;
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    /**
+     * Fills the secondary indexes from every stored build. Only done
+     * once per directory, when it is first opened.
+     */
+    private void buildIndex(Database db) throws IOException {
+        for (Map.Entry<String, JSONObject> entry : db.store.getAll().entrySet()) {
+            try {
+                db.index.update(summaryOf(entry.getKey(), entry.getValue()));
+            } catch (JSONException e) {
+                System.err.println("Not indexing invalid build " + entry.getKey());
+            }
+        }
+    }
+
+    private static BuildSummary summaryOf(String jobID, JSONObject data) {
+        return new BuildSummary(jobID,
+                data.getString("status"),
+                data.getString("commitSha"),
+                data.getString("url"),
+                data.getString("date"));
+    }
+
+    /**
+     * Joins a build record with its log, which is either in the log store
+     * or, for builds stored before logs were split out, in the record.
+     */
+    private JSONObject withLog(JSONObject data, JSONObject log) {
+        if (log != null) {
+            data.put("log", log.getJSONArray("log"));
+        } else if (!data.has("log")) {
+            data.put("log", new JSONArray());
+        }
+        return data;
+    }
+
+    /**
+     * Copies the builds of an old single-file database into the segment
+     * store and renames the file so it is only imported once.
+     */
+    private void importLegacy() throws IOException {
+        File legacy = new File(fileName);
+        if (!legacy.exists() || store.size() > 0) {
+            return;
+        }
+        JSONObject dbJSON = parseJSON(fileName);
+        for (String key : dbJSON.keySet()) {
+            JSONObject data = dbJSON.getJSONObject(key);
+            if (data.has("log")) {
+                JSONObject log = new JSONObject();
+                log.put("log", data.remove("log"));
+                logStore.put(key, log);
+            }
+            store.put(key, data);
+        }
+        if (!legacy.renameTo(new File(fileName + ".imported"))) {
+            System.err.println("Could not rename imported database " + fileName);
+        }
+        System.out.println("Imported " + dbJSON.length() + " builds from " + fileName);
+    }
+
     /**
      * Taken from https://stackoverflow.com/questions/7463414/what-s-the-best-way-to-load-a-jsonobject-from-a-json-text-file
      * @param file name of file name
@@ -47,83 +175,252 @@ public class Storage {
     }
 
     /**
-     * Writes a build to the database file in JSON format.
+     * Checks that the segment store could be opened.
+     * @throws IOException - if the database is not available
+     */
+    private void checkOpen() throws IOException {
+        if (store == null) {
+            throw new IOException("Database not found");
+        }
+    }
+
+    /**
+     * Writes a build to the database in JSON format, and through to the
+     * cache. The log is written to the log store before the build record
+     * so a stored build never lacks its log.
      * @param build - the Build object to be stored.
-     * @throws IOException - if db file is not found.
+     * @throws IOException - if the database is not available.
      */
     public void post(Build build) throws IOException {
-        File db = new File(fileName);
-        if (!db.exists()) {
-            throw new IOException("Database file not found");
-        } else {
-            JSONObject dbJSON = parseJSON(fileName);
-            JSONObject data = new JSONObject();
-            data.put("status", build.getStatus());
-            data.put("commitSha", build.getCommitSha());
-            data.put("url", build.getUrl());
-            data.put("log", build.getLog());
-            data.put("date", build.getDate());
-            dbJSON.put(build.getJobID(), data);
-
-            // Write to JSON file
-            try (FileWriter file = new FileWriter(fileName)) {
-                file.write(dbJSON.toString());
-                file.flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+        checkOpen();
+        long start = System.nanoTime();
+        JSONObject log = new JSONObject();
+        log.put("log", build.getLog());
+        logStore.put(build.getJobID(), log);
+
+        JSONObject data = new JSONObject();
+        data.put("status", build.getStatus());
+        data.put("commitSha", build.getCommitSha());
+        data.put("url", build.getUrl());
+        data.put("date", build.getDate());
+        data.put("logFile", build.getLogFile());
+        if (build.getSteps() != null) {
+            JSONArray steps = new JSONArray();
+            for (StepResult step : build.getSteps()) {
+                steps.put(step.toJSON());
+            }
+            data.put("steps", steps);
+        }
+        if (build.getCells() != null) {
+            JSONArray cells = new JSONArray();
+            for (CellResult cell : build.getCells()) {
+                cells.put(cell.toJSON());
             }
+            data.put("cells", cells);
         }
+        store.put(build.getJobID(), data);
+
+        // Cache a copy, callers keep appending to their log after posting
+        Build stored = new Build(build.getJobID(), withLog(new JSONObject(data.toString()), log));
+        cache.put(stored);
+        index.update(stored);
+        POST_SECONDS.observeSince(start);
     }
 
     /**
-     * Reads a build from the database.
+     * Reads a build, from the cache if possible. A cache miss only loads
+     * the one build from disk.
      * @param jobID - the build's jobID.
-     * @return build as Build object
-     * @throws IOException - if db file is not found
+     * @return the build, or null if there is no such build
+     * @throws IOException - if the database is not available or the record is invalid
      */
-    public JSONObject get(String jobID) throws IOException {
-        File db = new File(fileName);
-        if (!db.exists()) {
-            throw new IOException("Database file not found");
-        } else {
-            JSONObject dbJSON = parseJSON(fileName);
-
-            // Try to get object, if it doesn't exist then return empty
-            JSONObject rv;
-            try {
-                rv = dbJSON.getJSONObject(jobID);
-            } catch (JSONException e) {
-                rv = new JSONObject();
+    public Build getBuild(String jobID) throws IOException {
+        checkOpen();
+        Build build = cache.get(jobID);
+        if (build == null) {
+            JSONObject data = store.get(jobID);
+            if (data == null) {
+                return null;
             }
+            build = cache.putIfAbsent(new Build(jobID, withLog(data, logStore.get(jobID))));
+        }
+        return build;
+    }
+
+    /**
+     * Lists every build without its log, newest first. Served from the
+     * in-memory index without touching disk.
+     * @return list of build summaries
+     * @throws IOException - if the database is not available
+     */
+    public List<BuildSummary> getSummaries() throws IOException {
+        checkOpen();
+        return index.summaries();
+    }
+
+    /**
+     * Reads every build, in the order they were first stored. Like
+     * getAll() the records and logs are read in one pass over each store,
+     * and the builds are not put in the cache, which would only push out
+     * the recent builds it is meant to keep.
+     * @return list of builds
+     * @throws IOException - if the database is not available or a record is invalid
+     */
+    public List<Build> getBuilds() throws IOException {
+        checkOpen();
+        List<Build> builds = new ArrayList<>();
+        Map<String, JSONObject> logs = logStore.getAll();
+        for (Map.Entry<String, JSONObject> entry : store.getAll().entrySet()) {
+            builds.add(new Build(entry.getKey(), withLog(entry.getValue(), logs.get(entry.getKey()))));
+        }
+        return builds;
+    }
 
-            return rv;
+    /**
+     * Finds one page of build summaries using the secondary indexes,
+     * newest first.
+     * @param query - filters, cursor and page size
+     * @return the page of summaries and the cursor of the next one
+     * @throws IOException - if the database is not available
+     * @throws IllegalArgumentException - if the query cursor is malformed
+     */
+    public BuildPage query(BuildQuery query) throws IOException {
+        checkOpen();
+        BuildIndex.Page page = index.query(query);
+        List<BuildSummary> builds = new ArrayList<>();
+        for (String jobID : page.jobIDs) {
+            BuildSummary summary = index.summary(jobID);
+            if (summary != null) {
+                builds.add(summary);
+            }
         }
+        return new BuildPage(builds, page.nextCursor);
+    }
+
+    /**
+     * Adds up the measured resource usage of the builds matching a query,
+     * grouped by repository, day or step name. Only the build records are
+     * read, not their logs, and they are not put in the cache.
+     * @param query - filters of the builds to count; cursor and page size are ignored
+     * @param groupBy - "repo", "day" or "step"
+     * @return one group per key, in the order first seen, newest builds first
+     * @throws IOException - if the database is not available
+     * @throws IllegalArgumentException - if groupBy is not known
+     */
+    public List<UsageGroup> usage(BuildQuery query, String groupBy) throws IOException {
+        checkOpen();
+        if (!groupBy.equals("repo") && !groupBy.equals("day") && !groupBy.equals("step")) {
+            throw new IllegalArgumentException("Unknown groupBy " + groupBy + ", expected repo, day or step");
+        }
+        Map<String, UsageGroup> groups = new LinkedHashMap<>();
+        String cursor = null;
+        do {
+            BuildIndex.Page page = index.query(new BuildQuery(query.getStatus(), query.getRepo(), query.getCommitSha(),
+                    query.getFrom(), query.getTo(), cursor, BuildQuery.MAX_LIMIT));
+            for (String jobID : page.jobIDs) {
+                JSONObject data = store.get(jobID);
+                if (data != null) {
+                    Build build = new Build(jobID, withLog(data, null));
+                    count(groups, build, groupBy);
+                }
+            }
+            cursor = page.nextCursor;
+        } while (cursor != null);
+        return new ArrayList<>(groups.values());
+    }
+
+    private static void count(Map<String, UsageGroup> groups, Build build, String groupBy) {
+        List<StepResult> steps = new ArrayList<>();
+        if (build.getSteps() != null) {
+            steps.addAll(build.getSteps());
+        }
+        if (build.getCells() != null) {
+            for (CellResult cell : build.getCells()) {
+                if (cell.getSteps() != null) {
+                    steps.addAll(cell.getSteps());
+                }
+            }
+        }
+        List<UsageGroup> counted = new ArrayList<>();
+        for (StepResult step : steps) {
+            if (step.getUsage() == null) {
+                continue;
+            }
+            String key = groupBy.equals("repo") ? build.getUrl()
+                    : groupBy.equals("day") ? build.getDate().substring(0, Math.min(10, build.getDate().length()))
+                    : step.getName();
+            UsageGroup group = groups.computeIfAbsent(key, UsageGroup::new);
+            if (!counted.contains(group)) {
+                group.addBuild();
+                counted.add(group);
+            }
+            group.addStep(step.getUsage());
+        }
+    }
+
+    /**
+     * Writes the trace of a build, replacing an earlier one.
+     * @param trace - the build's trace
+     * @throws IOException - if the database is not available
+     */
+    public void postTrace(Trace trace) throws IOException {
+        checkOpen();
+        traceStore.put(trace.getJobID(), trace.toJSON());
+    }
+
+    /**
+     * Reads the trace of a build.
+     * @param jobID - the build's jobID
+     * @return the trace, or null if none was stored
+     * @throws IOException - if the database is not available
+     */
+    public Trace getTrace(String jobID) throws IOException {
+        checkOpen();
+        JSONObject data = traceStore.get(jobID);
+        return data == null ? null : new Trace(jobID, data);
+    }
+
+    /**
+     * Reads a build from the database.
+     * @param jobID - the build's jobID.
+     * @return build as JSONObject, empty if there is no such build
+     * @throws IOException - if the database is not available
+     */
+    public JSONObject get(String jobID) throws IOException {
+        checkOpen();
+        JSONObject rv = store.get(jobID);
+        if (rv == null) {
+            return new JSONObject();
+        }
+        return withLog(rv, logStore.get(jobID));
     }
 
     /**
      * Gets all build from the database.
      * @return all builds as a JSONObject.
-     * @throws IOException if database file was not found
+     * @throws IOException if the database is not available
      */
     public JSONObject getAll() throws IOException {
-        File db = new File(fileName);
-        if (!db.exists()) {
-            throw new IOException("Database file not found");
-        } else {
-            return parseJSON(fileName);
+        checkOpen();
+        long start = System.nanoTime();
+        JSONObject all = new JSONObject();
+        Map<String, JSONObject> logs = logStore.getAll();
+        for (Map.Entry<String, JSONObject> entry : store.getAll().entrySet()) {
+            all.put(entry.getKey(), withLog(entry.getValue(), logs.get(entry.getKey())));
         }
+        GET_ALL_SECONDS.observeSince(start);
+        return all;
     }
 
     /**
      * Clears database
      */
     public void clear() throws IOException {
-        JSONObject data = new JSONObject();
-        try (FileWriter file = new FileWriter(fileName)) {
-            file.write(data.toString());
-            file.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        checkOpen();
+        store.clear();
+        logStore.clear();
+        traceStore.clear();
+        cache.clear();
+        index.clear();
     }
-}
\ No newline at end of file
+}
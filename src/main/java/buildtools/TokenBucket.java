@@ -0,0 +1,66 @@
+package buildtools;
+
+/**
+ * Limits how often requests are made to a remote API. Tokens are added
+ * at a fixed rate up to a burst size and every request takes one. The
+ * remote can also ask us to stop for a while, e.g. through GitHub's
+ * rate limit headers, which pauses every caller until then.
+ */
+public class TokenBucket {
+    private final int capacity;
+    private final double perMilli;
+    private double tokens;
+    private long refilled;
+    private long pausedUntil = 0;
+
+    /**
+     * @param capacity - number of requests that may be made at once after being idle
+     * @param perSecond - number of requests per second in the long run
+     */
+    public TokenBucket(int capacity, double perSecond) {
+        this.capacity = capacity;
+        this.perMilli = perSecond / 1000;
+        this.tokens = capacity;
+        this.refilled = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until a request may be made and takes its token.
+     * @throws InterruptedException - if the waiting thread is interrupted
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now < pausedUntil) {
+                wait(pausedUntil - now);
+                continue;
+            }
+            tokens = Math.min(capacity, tokens + (now - refilled) * perMilli);
+            refilled = now;
+            if (tokens >= 1) {
+                tokens--;
+                return;
+            }
+            wait(Math.max(1, (long) Math.ceil((1 - tokens) / perMilli)));
+        }
+    }
+
+    /**
+     * Makes no requests until the given time. An earlier pause than the
+     * current one is ignored.
+     * @param millis - time in milliseconds since the epoch
+     */
+    public synchronized void pauseUntil(long millis) {
+        if (millis > pausedUntil) {
+            pausedUntil = millis;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return time in milliseconds since the epoch until which no requests are made
+     */
+    public synchronized long getPausedUntil() {
+        return pausedUntil;
+    }
+}
@@ -0,0 +1,336 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The phases of one build as spans with start and end times and a few
+ * attributes, e.g. queued, fetch, checkout, every step and the final
+ * status and store, so it can be seen where a slow build spent its time.
+ * The traces of running and recent builds are kept in memory, at most
+ * MAX_TRACES of them, and BuildJob stores every trace with its build
+ * once the build has finished. A matrix cell adds its spans to the trace
+ * of its build, marked with the cell.
+ */
+public class Trace {
+    public static boolean ENABLED = true;
+    public static int MAX_TRACES = 1000;
+    public static int MAX_SPANS = 500;
+
+    // Spans of unknown builds, or with tracing off, go nowhere
+    private static final Trace NONE = new Trace(null);
+
+    private static final Map<String, Trace> recent = new LinkedHashMap<String, Trace>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Trace> eldest) {
+            return size() > MAX_TRACES;
+        }
+    };
+
+    private final String jobID;
+    // The trace spans are added to, this one unless it is a cell's view of its build
+    private final Trace root;
+    private final String cell;
+    private final List<Span> spans = new ArrayList<>();
+    private int dropped = 0;
+    private Sink sink;
+
+    /**
+     * Stores a trace, see finish().
+     */
+    public interface Sink {
+        void store(Trace trace);
+    }
+
+    /**
+     * One phase of a build. Closing the span ends it.
+     */
+    public static class Span implements AutoCloseable {
+        private final String name;
+        private final long start;
+        private volatile long end;
+        private final Map<String, String> attributes = new LinkedHashMap<>();
+        private final Trace trace;
+
+        Span(String name, long start, long end, Trace trace) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.trace = trace;
+        }
+
+        /**
+         * @param key - attribute name, e.g. exitValue
+         * @param value - attribute value
+         * @return the span
+         */
+        public Span set(String key, Object value) {
+            synchronized (attributes) {
+                attributes.put(key, String.valueOf(value));
+            }
+            return this;
+        }
+
+        /**
+         * Ends the span, unless it has already ended.
+         */
+        @Override
+        public void close() {
+            if (end < 0) {
+                end = System.currentTimeMillis();
+                if (trace != null) {
+                    trace.ended();
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return when the span started, in milliseconds since the epoch
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return when the span ended, in milliseconds since the epoch, or -1 while it runs
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return how long the span took, or has taken so far while it runs
+         */
+        public long getDurationMillis() {
+            return (end < 0 ? System.currentTimeMillis() : end) - start;
+        }
+
+        public Map<String, String> getAttributes() {
+            synchronized (attributes) {
+                return new LinkedHashMap<>(attributes);
+            }
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("start", start);
+            json.put("end", end);
+            json.put("attributes", new JSONObject(getAttributes()));
+            return json;
+        }
+    }
+
+    private Trace(String jobID) {
+        this.jobID = jobID;
+        this.root = this;
+        this.cell = null;
+    }
+
+    private Trace(String jobID, Trace root, String cell) {
+        this.jobID = jobID;
+        this.root = root;
+        this.cell = cell;
+    }
+
+    /**
+     * Reads a stored trace.
+     * @param jobID - the build's jobID
+     * @param json - the trace as written by toJSON
+     */
+    public Trace(String jobID, JSONObject json) {
+        this(jobID);
+        JSONArray stored = json.getJSONArray("spans");
+        for (int i = 0; i < stored.length(); i++) {
+            JSONObject span = stored.getJSONObject(i);
+            Span read = new Span(span.getString("name"), span.getLong("start"), span.getLong("end"), null);
+            JSONObject attributes = span.optJSONObject("attributes");
+            if (attributes != null) {
+                for (String key : attributes.keySet()) {
+                    read.set(key, attributes.getString(key));
+                }
+            }
+            spans.add(read);
+        }
+        dropped = json.optInt("dropped");
+    }
+
+    /**
+     * Starts the trace of a build, replacing an earlier one of the same
+     * build.
+     * @param jobID - the build's jobID
+     * @return the trace, which does nothing with ENABLED false
+     */
+    public static Trace start(String jobID) {
+        if (!ENABLED) {
+            return NONE;
+        }
+        Trace trace = new Trace(jobID);
+        synchronized (recent) {
+            recent.put(jobID, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Lets a matrix cell add its spans to the trace of its build, until
+     * forget() is called.
+     * @param cellID - the cell's jobID
+     * @param parentID - the jobID of the cell's build
+     * @param cell - name of the cell, added to all of its spans
+     */
+    public static void join(String cellID, String parentID, String cell) {
+        synchronized (recent) {
+            Trace parent = recent.get(parentID);
+            if (parent != null) {
+                recent.put(cellID, new Trace(cellID, parent.root, cell));
+            }
+        }
+    }
+
+    /**
+     * @param jobID - a build's or matrix cell's jobID
+     * @return the trace of a running or recent build, or one that keeps nothing
+     */
+    public static Trace of(String jobID) {
+        synchronized (recent) {
+            Trace trace = recent.get(jobID);
+            return trace == null ? NONE : trace;
+        }
+    }
+
+    /**
+     * @param jobID - a build's jobID
+     * @return the trace of a running or recent build, or null if it is not in memory
+     */
+    public static Trace recent(String jobID) {
+        synchronized (recent) {
+            Trace trace = recent.get(jobID);
+            return trace == null ? null : trace.root;
+        }
+    }
+
+    /**
+     * Stops keeping a matrix cell's view of its build's trace.
+     * @param cellID - the cell's jobID
+     */
+    public static void forget(String cellID) {
+        synchronized (recent) {
+            recent.remove(cellID);
+        }
+    }
+
+    /**
+     * Starts a span, to be closed when the phase is done.
+     * @param name - the phase, e.g. checkout
+     * @return the span
+     */
+    public Span span(String name) {
+        Span span = new Span(name, System.currentTimeMillis(), -1, root);
+        add(span);
+        return span;
+    }
+
+    /**
+     * Adds a span of a phase that has already ended.
+     * @param name - the phase, e.g. queued
+     * @param start - when it started, in milliseconds since the epoch
+     * @param end - when it ended, in milliseconds since the epoch
+     * @return the span
+     */
+    public Span record(String name, long start, long end) {
+        Span span = new Span(name, start, end, null);
+        add(span);
+        root.ended();
+        return span;
+    }
+
+    private void add(Span span) {
+        if (cell != null) {
+            span.set("cell", cell);
+        }
+        if (this == NONE) {
+            return;
+        }
+        synchronized (root) {
+            if (root.spans.size() < MAX_SPANS) {
+                root.spans.add(span);
+            } else {
+                root.dropped++;
+            }
+        }
+    }
+
+    /**
+     * Stores the trace now, and again whenever a span ends later, e.g.
+     * when the final commit status has been sent.
+     * @param sink - where to store it
+     */
+    public void finish(Sink sink) {
+        if (this == NONE) {
+            return;
+        }
+        synchronized (root) {
+            root.sink = sink;
+        }
+        sink.store(root);
+    }
+
+    private void ended() {
+        Sink finished;
+        synchronized (this) {
+            finished = sink;
+        }
+        if (finished != null) {
+            finished.store(this);
+        }
+    }
+
+    public String getJobID() {
+        return root.jobID;
+    }
+
+    /**
+     * @return the spans in the order they started
+     */
+    public List<Span> getSpans() {
+        synchronized (root) {
+            List<Span> sorted = new ArrayList<>(root.spans);
+            sorted.sort((a, b) -> Long.compare(a.start, b.start));
+            return Collections.unmodifiableList(sorted);
+        }
+    }
+
+    /**
+     * @return number of spans left out because the trace had MAX_SPANS
+     */
+    public int getDropped() {
+        synchronized (root) {
+            return root.dropped;
+        }
+    }
+
+    /**
+     * @return the trace as stored with its build
+     */
+    public JSONObject toJSON() {
+        JSONArray stored = new JSONArray();
+        for (Span span : getSpans()) {
+            stored.put(span.toJSON());
+        }
+        JSONObject json = new JSONObject();
+        json.put("spans", stored);
+        json.put("dropped", getDropped());
+        return json;
+    }
+}
@@ -0,0 +1,61 @@
+package buildtools;
+
+/**
+ * What a group of builds used of the host together, e.g. all builds of a
+ * repository or all runs of a step, for capacity planning and for
+ * spotting builds that got more expensive.
+ */
+public class UsageGroup {
+    private final String key;
+    private long builds = 0;
+    private long steps = 0;
+    private ResourceUsage usage = ResourceUsage.none();
+
+    /**
+     * @param key - the repository, day or step name the group is for
+     */
+    public UsageGroup(String key) {
+        this.key = key;
+    }
+
+    void addBuild() {
+        builds++;
+    }
+
+    void addStep(ResourceUsage step) {
+        steps++;
+        usage = usage.plus(step);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return number of builds with measured steps in the group
+     */
+    public long getBuilds() {
+        return builds;
+    }
+
+    /**
+     * @return number of measured steps in the group
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return the usage of all steps together, with the highest peak memory of any step
+     */
+    public ResourceUsage getUsage() {
+        return usage;
+    }
+
+    /**
+     * @return mean CPU time of a build in the group, user and system together
+     */
+    public long getCpuMillisPerBuild() {
+        return builds == 0 ? 0 : (usage.getUserMillis() + usage.getSystemMillis()) / builds;
+    }
+}
@@ -0,0 +1,243 @@
+package buildtools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the ResourceUsage of one step. The step's command runs under
+ * a small sh wrapper that, once the command has exited, writes the CPU
+ * time of everything it waited for (the times builtin) and its own
+ * /proc/[pid]/io, which includes the I/O of every process it reaped, to
+ * a file. Peak memory cannot be read after the fact, so the RSS of the
+ * whole process tree is sampled while the step runs. When the step is
+ * killed the wrapper never writes its file, and the CPU time and I/O of
+ * the samples are used instead.
+ *
+ * A Gradle step hands its work to a warm daemon that is not part of its
+ * process tree. The CPU time and I/O the daemons of the step's
+ * GRADLE_USER_HOME gained while the step ran are added to its usage,
+ * and their memory to every sample. Steps of one build that run at the
+ * same time share those daemons, and each of them is charged with all
+ * of their work.
+ */
+class UsageMeter {
+    // "0m1.250000s 0m0.040000s" in dash, "0m1.250s 0m0.040s" in bash
+    private static final Pattern TIME = Pattern.compile("(\\d+)m([\\d.]+)s");
+    private static final Pattern RSS = Pattern.compile("(?m)^VmRSS:\\s*(\\d+)\\s*kB");
+    private static final Pattern IO = Pattern.compile("(?m)^(read_bytes|write_bytes):\\s*(\\d+)");
+    private static final String WRAPPER =
+            "f=$1; shift; \"$@\"; rc=$?; { times; cat /proc/$$/io; } > \"$f\" 2>/dev/null; exit $rc";
+
+    private final File file;
+    private final File gradleUserHome;
+    // CPU ticks and I/O of every daemon when the step started, by pid and start time
+    private final Map<String, long[]> daemonsBefore;
+    private final long started = System.currentTimeMillis();
+    private long pid = -1;
+    private ScheduledFuture<?> sampler;
+    // Highest CPU ticks seen of every process, for a step that was killed
+    private final Map<Long, Long> ticks = new HashMap<>();
+    private long peakRssBytes = 0;
+    private long readBytes = 0;
+    private long writeBytes = 0;
+
+    /**
+     * @param gradleUserHome - the GRADLE_USER_HOME of the step, whose daemons do part of its work, or null
+     * @throws IOException - if the file for the wrapper cannot be created
+     */
+    UsageMeter(String gradleUserHome) throws IOException {
+        this.gradleUserHome = gradleUserHome == null ? null : new File(gradleUserHome);
+        this.daemonsBefore = daemonUsage();
+        file = File.createTempFile("usage", ".txt");
+    }
+
+    /**
+     * @param argv - the step's command and its arguments
+     * @param prefix - shell commands to run first, e.g. ulimit settings, or ""
+     * @return the command wrapped so that it reports its usage
+     */
+    List<String> wrap(List<String> argv, String prefix) {
+        List<String> wrapped = new ArrayList<>(Arrays.asList("sh", "-c", prefix + WRAPPER, "sh", file.getAbsolutePath()));
+        wrapped.addAll(argv);
+        return wrapped;
+    }
+
+    /**
+     * Starts sampling the memory of a started step.
+     * @param process - the wrapped command
+     * @param executor - runs the samples
+     * @param sampleMillis - time between samples
+     */
+    void start(Process process, ScheduledExecutorService executor, long sampleMillis) {
+        pid = ProcessTree.pid(process);
+        if (pid >= 0 && new File("/proc").isDirectory()) {
+            sampler = executor.scheduleWithFixedDelay(this::sample, 0, sampleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops sampling and reads what the wrapper wrote.
+     * @return the usage of the step
+     */
+    ResourceUsage finish() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
+        long wallMillis = System.currentTimeMillis() - started;
+        String report = null;
+        try {
+            report = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Killed before the wrapper could write it
+        } finally {
+            file.delete();
+        }
+        // Read before taking the lock, the sampler may be waiting for it
+        Map<String, long[]> daemonsAfter = daemonUsage();
+        synchronized (this) {
+            long userMillis = 0;
+            long systemMillis = 0;
+            long read = readBytes;
+            long write = writeBytes;
+            Matcher time = report == null ? null : TIME.matcher(report);
+            // The second line of times is the CPU time of the children
+            if (time != null && time.find() && time.find() && time.find()) {
+                userMillis = millisOf(time);
+                if (time.find()) {
+                    systemMillis = millisOf(time);
+                }
+                Matcher io = IO.matcher(report);
+                while (io.find()) {
+                    if (io.group(1).equals("read_bytes")) {
+                        read = Long.parseLong(io.group(2));
+                    } else {
+                        write = Long.parseLong(io.group(2));
+                    }
+                }
+            } else {
+                long total = 0;
+                for (long t : ticks.values()) {
+                    total += t;
+                }
+                // Without the split, count it all as user time
+                userMillis = total * 1000 / ProcessTree.CLOCK_TICKS;
+            }
+            for (Map.Entry<String, long[]> daemon : daemonsAfter.entrySet()) {
+                // A daemon started during the step did all its work for it
+                long[] before = daemonsBefore.getOrDefault(daemon.getKey(), new long[4]);
+                long[] after = daemon.getValue();
+                userMillis += Math.max(0, after[0] - before[0]) * 1000 / ProcessTree.CLOCK_TICKS;
+                systemMillis += Math.max(0, after[1] - before[1]) * 1000 / ProcessTree.CLOCK_TICKS;
+                read += Math.max(0, after[2] - before[2]);
+                write += Math.max(0, after[3] - before[3]);
+            }
+            return new ResourceUsage(wallMillis, userMillis, systemMillis, peakRssBytes, read, write);
+        }
+    }
+
+    /**
+     * Adds up the resident memory of the step's processes and keeps the
+     * highest CPU time seen of each, and the I/O of the wrapper.
+     */
+    private void sample() {
+        List<Long> tree = new ArrayList<>(ProcessTree.descendants(pid));
+        tree.add(pid);
+        long rss = 0;
+        Map<Long, Long> sampled = new HashMap<>();
+        for (long p : tree) {
+            File proc = new File("/proc/" + p);
+            try {
+                Matcher vmRss = RSS.matcher(read(new File(proc, "status")));
+                if (vmRss.find()) {
+                    rss += Long.parseLong(vmRss.group(1)) * 1024;
+                }
+                String stat = read(new File(proc, "stat"));
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                sampled.put(p, Long.parseLong(fields[11]) + Long.parseLong(fields[12]));
+            } catch (IOException | RuntimeException e) {
+                // Exited while sampling
+            }
+        }
+        if (gradleUserHome != null) {
+            for (GradleDaemons.Daemon daemon : GradleDaemons.find(gradleUserHome)) {
+                if (!tree.contains(daemon.getPid())) {
+                    rss += Math.max(0, daemon.getRssBytes());
+                }
+            }
+        }
+        long read = -1;
+        long write = -1;
+        try {
+            Matcher io = IO.matcher(read(new File("/proc/" + pid + "/io")));
+            while (io.find()) {
+                if (io.group(1).equals("read_bytes")) {
+                    read = Long.parseLong(io.group(2));
+                } else {
+                    write = Long.parseLong(io.group(2));
+                }
+            }
+        } catch (IOException e) {
+            // Not readable, or exited
+        }
+        synchronized (this) {
+            peakRssBytes = Math.max(peakRssBytes, rss);
+            for (Map.Entry<Long, Long> entry : sampled.entrySet()) {
+                ticks.merge(entry.getKey(), entry.getValue(), Math::max);
+            }
+            readBytes = Math.max(readBytes, read);
+            writeBytes = Math.max(writeBytes, write);
+        }
+    }
+
+    /**
+     * Reads the user and system CPU ticks and the storage I/O of the
+     * running daemons of the step's GRADLE_USER_HOME.
+     * @return user ticks, system ticks, bytes read and bytes written, by pid and start time
+     */
+    private Map<String, long[]> daemonUsage() {
+        Map<String, long[]> usage = new HashMap<>();
+        if (gradleUserHome == null) {
+            return usage;
+        }
+        for (GradleDaemons.Daemon daemon : GradleDaemons.find(gradleUserHome)) {
+            File proc = new File("/proc/" + daemon.getPid());
+            try {
+                String stat = read(new File(proc, "stat"));
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                long[] daemonUsage = {Long.parseLong(fields[11]), Long.parseLong(fields[12]), 0, 0};
+                try {
+                    Matcher io = IO.matcher(read(new File(proc, "io")));
+                    while (io.find()) {
+                        daemonUsage[io.group(1).equals("read_bytes") ? 2 : 3] = Long.parseLong(io.group(2));
+                    }
+                } catch (IOException e) {
+                    // Not readable, count its CPU time only
+                }
+                usage.put(daemon.getPid() + ":" + daemon.getStartedAt(), daemonUsage);
+            } catch (IOException | RuntimeException e) {
+                // Exited while reading
+            }
+        }
+        return usage;
+    }
+
+    private static long millisOf(Matcher time) {
+        return Long.parseLong(time.group(1)) * 60000 + Math.round(Double.parseDouble(time.group(2)) * 1000);
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,378 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes in GitHub webhooks without parsing them on the request thread.
+ * A webhook is only written as it came to a SegmentStore inbox, so it
+ * can be acknowledged right away. A single parser thread then takes the
+ * webhooks in the order they came, drops redeliveries of a delivery id
+ * it has already handled, and turns pushes into builds on the scheduler.
+ * Parsing only begins once the inbox is started. A webhook is removed from the inbox once handled, so webhooks that
+ * were not handled before a restart are handled after it.
+ *
+ * The handled delivery ids are kept in the same store, so redeliveries
+ * are also dropped after a restart. At most MAX_DELIVERIES of them are
+ * kept, none for longer than DELIVERY_TTL_MILLIS.
+ */
+public class WebhookInbox {
+    public static String INBOX_DIRECTORY = "db/inbox";
+    public static int MAX_PENDING = 10000;
+    public static int MAX_DELIVERIES = 10000;
+    public static long DELIVERY_TTL_MILLIS = 3L * 24 * 60 * 60 * 1000;
+    public static long RETRY_MILLIS = 1000;
+    public static String DO_NOT_BUILD = "testing_mobergliuslefors_do_not_build";
+
+    // Keys of handled deliveries; webhooks are keyed by their sequence number
+    private static final String DELIVERY = "delivery:";
+
+    private static final Metrics.Counter ACCEPTED =
+            Metrics.counter("ci_webhooks_total", "Webhooks received, by whether they were stored", "result", "accepted");
+    private static final Metrics.Counter REJECTED =
+            Metrics.counter("ci_webhooks_total", "Webhooks received, by whether they were stored", "result", "rejected");
+    private static final Metrics.Histogram ACCEPT_SECONDS =
+            Metrics.histogram("ci_webhook_accept_seconds", "Time to store a webhook before answering GitHub");
+
+    /**
+     * Where builds found in webhooks go.
+     */
+    public interface Sink {
+        BuildScheduler.Admission submit(BuildRequest request);
+    }
+
+    /**
+     * A webhook waiting to be parsed.
+     */
+    private static class Entry {
+        final String key;
+        final String delivery;
+        final String event;
+        final String payload;
+
+        Entry(String key, String delivery, String event, String payload) {
+            this.key = key;
+            this.delivery = delivery;
+            this.event = event;
+            this.payload = payload;
+        }
+    }
+
+    private final SegmentStore store;
+    private final TreeMap<String, JSONObject> left = new TreeMap<>();
+    private final Sink sink;
+    private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final AtomicLong seq = new AtomicLong();
+    private final Thread parser;
+
+    // Handled delivery ids and when, oldest first. Only used by the parser thread
+    private final LinkedHashMap<String, Long> deliveries = new LinkedHashMap<>();
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong ignored = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+
+    /**
+     * Opens the inbox in INBOX_DIRECTORY, sending builds to the server's
+     * scheduler through the job journal.
+     */
+    public WebhookInbox() {
+        this(new File(INBOX_DIRECTORY), BuildJob::submit);
+    }
+
+    /**
+     * Opens the inbox. If it cannot be opened every webhook is rejected.
+     * @param directory - directory of the inbox store
+     * @param sink - where builds found in webhooks go
+     */
+    public WebhookInbox(File directory, Sink sink) {
+        this.sink = sink;
+        SegmentStore opened = null;
+        try {
+            opened = SegmentStore.open(directory);
+            List<Map.Entry<String, Long>> handled = new ArrayList<>();
+            for (Map.Entry<String, JSONObject> record : opened.getAll().entrySet()) {
+                if (record.getKey().startsWith(DELIVERY)) {
+                    handled.add(new AbstractMap.SimpleEntry<>(record.getKey().substring(DELIVERY.length()),
+                            record.getValue().optLong("handled")));
+                } else {
+                    left.put(record.getKey(), record.getValue());
+                }
+            }
+            handled.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<String, Long> delivery : handled) {
+                deliveries.put(delivery.getKey(), delivery.getValue());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.store = opened;
+        forgetDeliveries(System.currentTimeMillis());
+        this.parser = new Thread(this::parseLoop, "webhook-parser");
+        parser.setDaemon(true);
+        if (!left.isEmpty()) {
+            seq.set(Long.parseLong(left.lastKey()));
+        }
+    }
+
+    /**
+     * Starts parsing, first the webhooks left in the inbox, in the order
+     * they came.
+     */
+    public void start() {
+        parser.start();
+        if (!left.isEmpty()) {
+            System.out.println("Handling " + left.size() + " webhooks left in the inbox");
+        }
+        for (Map.Entry<String, JSONObject> record : left.entrySet()) {
+            JSONObject value = record.getValue();
+            try {
+                pending.put(new Entry(record.getKey(), value.optString("delivery", null),
+                        value.optString("event", null), value.optString("payload", "")));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        left.clear();
+    }
+
+    /**
+     * Writes a webhook to the inbox to be parsed later. Only returns once
+     * the webhook is stored.
+     * @param delivery - the X-GitHub-Delivery header, or null
+     * @param event - the X-GitHub-Event header, or null
+     * @param payload - the webhook body
+     * @return false if the inbox is full or cannot be written
+     */
+    public boolean accept(String delivery, String event, String payload) {
+        long start = System.nanoTime();
+        boolean stored = write(delivery, event, payload);
+        (stored ? ACCEPTED : REJECTED).inc();
+        ACCEPT_SECONDS.observeSince(start);
+        return stored;
+    }
+
+    private boolean write(String delivery, String event, String payload) {
+        if (store == null || pending.remainingCapacity() == 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        String key = String.format("%019d", seq.incrementAndGet());
+        JSONObject record = new JSONObject();
+        record.put("delivery", delivery);
+        record.put("event", event);
+        record.put("payload", payload);
+        try {
+            store.put(key, record);
+        } catch (IOException e) {
+            System.err.println("Could not store webhook " + delivery + ": " + e.getMessage());
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (!pending.offer(new Entry(key, delivery, event, payload))) {
+            remove(key);
+            rejected.incrementAndGet();
+            return false;
+        }
+        accepted.incrementAndGet();
+        return true;
+    }
+
+    private void parseLoop() {
+        while (true) {
+            Entry entry;
+            try {
+                entry = pending.take();
+                if (!handle(entry)) {
+                    // The scheduler is shut down, the webhook stays in the inbox
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            remove(entry.key);
+        }
+    }
+
+    /**
+     * Parses one webhook and submits its build, waiting while the
+     * scheduler's queue is full.
+     * @return false if the scheduler is shut down
+     */
+    private boolean handle(Entry entry) throws InterruptedException {
+        if (entry.delivery != null && deliveries.containsKey(entry.delivery)) {
+            duplicates.incrementAndGet();
+            return true;
+        }
+        if (!submit(entry)) {
+            return false;
+        }
+        // Only once handled, a webhook left in the inbox must not look like a redelivery
+        if (entry.delivery != null) {
+            remember(entry.delivery);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the scheduler is shut down
+     */
+    private boolean submit(Entry entry) throws InterruptedException {
+        BuildRequest request;
+        try {
+            request = parse(entry.event, new JSONObject(entry.payload));
+        } catch (JSONException e) {
+            System.err.println("Ignoring invalid webhook " + entry.delivery + ": " + e.getMessage());
+            invalid.incrementAndGet();
+            return true;
+        }
+        if (request == null) {
+            ignored.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            switch (sink.submit(request)) {
+                case accepted:
+                    builds.incrementAndGet();
+                    return true;
+                case shutdown:
+                    return false;
+                default:
+                    Thread.sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Finds the build a webhook asks for. Only pushes that leave a commit
+     * on the branch are built; pings, branch deletions and other events
+     * are not.
+     * @param event - the X-GitHub-Event header, or null if unknown
+     * @param json - the webhook payload
+     * @return the build, or null if there is nothing to build
+     * @throws JSONException - if a push lacks the repository fields
+     */
+    public static BuildRequest parse(String event, JSONObject json) {
+        JSONObject repository = json.getJSONObject("repository");
+        if ("ping".equals(event) || json.has("hook")) {
+            System.out.println("New webhook: " + repository.getString("full_name"));
+            return null;
+        }
+        if (event != null && !event.equals("push")) {
+            return null;
+        }
+        String commitSha = headOf(json);
+        if (json.optBoolean("deleted") || commitSha == null) {
+            return null;
+        }
+        String owner = repository.getJSONObject("owner").getString("name");
+        String repo = repository.getString("name");
+        if (repo.equals(DO_NOT_BUILD)) {
+            return null;
+        }
+        String branchRef = json.getString("ref");
+        String cloneUrl = repository.getString("clone_url");
+        boolean defaultBranch = branchRef.equals("refs/heads/" + repository.optString("default_branch", "master"));
+        return new BuildRequest(UUID.randomUUID().toString(), cloneUrl, branchRef, owner, repo, commitSha, defaultBranch);
+    }
+
+    /**
+     * @return the commit the push leaves the branch at, or null if there is none
+     */
+    private static String headOf(JSONObject json) {
+        String after = json.optString("after", "");
+        if (!after.isEmpty() && !after.matches("0+")) {
+            return after;
+        }
+        JSONObject head = json.optJSONObject("head_commit");
+        if (head != null && head.has("id")) {
+            return head.getString("id");
+        }
+        JSONArray commits = json.optJSONArray("commits");
+        if (commits != null && commits.length() > 0) {
+            return commits.getJSONObject(commits.length() - 1).optString("id", null);
+        }
+        return null;
+    }
+
+    /**
+     * Stores a handled delivery id, forgetting the oldest ones beyond
+     * MAX_DELIVERIES or DELIVERY_TTL_MILLIS.
+     */
+    private void remember(String delivery) {
+        long now = System.currentTimeMillis();
+        deliveries.put(delivery, now);
+        if (store != null) {
+            try {
+                store.put(DELIVERY + delivery, new JSONObject().put("handled", now));
+            } catch (IOException e) {
+                System.err.println("Could not store delivery " + delivery + ": " + e.getMessage());
+            }
+        }
+        forgetDeliveries(now);
+    }
+
+    private void forgetDeliveries(long now) {
+        Iterator<Map.Entry<String, Long>> it = deliveries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (deliveries.size() <= MAX_DELIVERIES && now - eldest.getValue() <= DELIVERY_TTL_MILLIS) {
+                return;
+            }
+            it.remove();
+            if (store != null) {
+                remove(DELIVERY + eldest.getKey());
+            }
+        }
+    }
+
+    private void remove(String key) {
+        try {
+            store.remove(key);
+        } catch (IOException e) {
+            System.err.println("Could not remove webhook " + key + " from the inbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of webhooks waiting to be parsed
+     */
+    public int queued() {
+        return pending.size();
+    }
+
+    /**
+     * @return {accepted, rejected, duplicates, ignored, invalid, builds} since the inbox was opened
+     */
+    public long[] stats() {
+        return new long[]{accepted.get(), rejected.get(), duplicates.get(), ignored.get(), invalid.get(), builds.get()};
+    }
+
+    /**
+     * Stops the parser. Webhooks not parsed yet stay in the inbox.
+     * @param millis - maximum time to wait for the parser
+     * @throws InterruptedException - if the waiting thread is interrupted
+     */
+    public void close(long millis) throws InterruptedException {
+        parser.interrupt();
+        parser.join(millis);
+    }
+}
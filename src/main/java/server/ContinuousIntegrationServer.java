@@ -1,6 +1,15 @@
 package server;
 
+import buildtools.BuildJob;
+import buildtools.BuildScheduler;
+import buildtools.DependencyCache;
+import buildtools.JobJournal;
+import buildtools.Metrics;
+import buildtools.MirrorCache;
+import buildtools.ResultCache;
+import buildtools.StatusClient;
 import buildtools.Storage;
+import buildtools.WebhookInbox;
 import org.eclipse.jetty.server.Server;
 
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -22,6 +31,25 @@ public class ContinuousIntegrationServer {
 
     private static final Logger logger = LoggerFactory.getLogger(ContinuousIntegrationServer.class);
     public static Storage storage = new Storage();
+    public static BuildScheduler scheduler = new BuildScheduler();
+    public static MirrorCache mirrors = new MirrorCache();
+    public static StatusClient statusClient = new StatusClient();
+    public static JobJournal journal = new JobJournal();
+    public static ResultCache results = new ResultCache();
+    public static DependencyCache dependencies = new DependencyCache();
+    public static WebhookInbox inbox = new WebhookInbox();
+
+    static {
+        // Read when /metrics is scraped, from whichever instances are current then
+        Metrics.gauge("ci_queue_depth", "Builds waiting to run", () -> scheduler.queued());
+        Metrics.gauge("ci_builds_running", "Builds running", () -> scheduler.running());
+        Metrics.gauge("ci_webhooks_pending", "Webhooks stored but not parsed yet", () -> inbox.queued());
+        Metrics.gauge("ci_status_updates_queued", "Commit statuses waiting to be sent", () -> statusClient.queued());
+        Metrics.gauge("ci_result_cache_lookups", "Result cache lookups since start, by outcome",
+                () -> results.stats()[0], "outcome", "hit");
+        Metrics.gauge("ci_result_cache_lookups", "Result cache lookups since start, by outcome",
+                () -> results.stats()[1], "outcome", "miss");
+    }
 
     public static void main(String[] args) {
 
@@ -39,11 +67,17 @@ public class ContinuousIntegrationServer {
 
         ServletHolder servletHolder = servletContextHandler.addServlet(ServletContainer.class, "/*");
         servletHolder.setInitOrder(0);
+        // Log streams hand their connection to LogStream's pushers
+        servletHolder.setAsyncSupported(true);
         servletHolder.setInitParameter("jersey.config.server.provider.packages", "server/resources");
 
 
         //printBash(commands);
 
+        // Interrupted builds go first, so they never supersede newer pushes
+        BuildJob.recover();
+        inbox.start();
+
         try {
             server.start();
             server.join();
@@ -53,6 +87,15 @@ public class ContinuousIntegrationServer {
         }
 
         finally {
+            try {
+                inbox.close(1000);
+            } catch (InterruptedException ignored) {
+            }
+            scheduler.shutdown();
+            try {
+                statusClient.close(10000);
+            } catch (InterruptedException ignored) {
+            }
             server.destroy();
         }
     }
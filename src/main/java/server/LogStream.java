@@ -0,0 +1,179 @@
+package server;
+
+import buildtools.JobLog;
+import buildtools.LogRing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+/**
+ * Sends the log of a build as Server-Sent Events, one event per line
+ * with the line number as event id. Lines of a running build are read
+ * from its in-memory LogRing as they arrive; lines that have already
+ * left the ring, and all lines of a finished build, are read from its
+ * log file. The stream ends with an "end" event.
+ *
+ * No request thread waits on a stream: every open stream is polled by
+ * one of the THREADS shared pushers every POLL_MILLIS, which sends the
+ * new lines and goes on to the next stream.
+ */
+public class LogStream {
+    public static long HEARTBEAT_MILLIS = 15000;
+    public static long POLL_MILLIS = 100;
+    public static int THREADS = 2;
+
+    private static final ScheduledExecutorService pushers = Executors.newScheduledThreadPool(THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "log-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String jobID;
+    private final File logFile;
+    private final SseEventSink sink;
+    private final Sse sse;
+    private long next;
+    private long lastSent = System.currentTimeMillis();
+
+    /**
+     * @param jobID - the build's jobID
+     * @param logFile - the build's log file, read once the build is no longer running
+     * @param from - number of the first line to send
+     * @param sink - where the events go
+     * @param sse - creates the events
+     */
+    public LogStream(String jobID, File logFile, long from, SseEventSink sink, Sse sse) {
+        this.jobID = jobID;
+        this.logFile = logFile;
+        this.next = Math.max(0, from);
+        this.sink = sink;
+        this.sse = sse;
+    }
+
+    /**
+     * Starts sending, returns at once.
+     */
+    public void start() {
+        pushers.execute(this::push);
+    }
+
+    /**
+     * Sends what is new since the last poll, then polls again later
+     * unless the stream has ended.
+     */
+    private void push() {
+        try {
+            if (sink.isClosed()) {
+                return;
+            }
+            JobLog log = JobLog.running(jobID);
+            if (log == null) {
+                // Not running (any more), whatever was not sent is in the file
+                next = sendFile(logFile, next, Long.MAX_VALUE);
+                end();
+                return;
+            }
+            LogRing ring = log.getRing();
+            // Read before the lines, so no line written after it is missed
+            boolean closed = ring.isClosed();
+            next = sendRing(log, next);
+            if (closed && next >= ring.total()) {
+                end();
+                return;
+            }
+            if (System.currentTimeMillis() - lastSent >= HEARTBEAT_MILLIS) {
+                // Comment line, keeps proxies from closing an idle stream
+                send(sse.newEventBuilder().comment("keep-alive").build());
+            }
+            if (!sink.isClosed()) {
+                pushers.schedule(this::push, POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            sink.close();
+        }
+    }
+
+    /**
+     * Sends the lines the ring has from the given line onwards. Lines that
+     * have already left the ring are sent from the log file first.
+     * @return number of the next line to send
+     */
+    private long sendRing(JobLog log, long next) throws IOException {
+        LogRing ring = log.getRing();
+        List<String> lines = new ArrayList<>();
+        while (true) {
+            lines.clear();
+            long start = ring.read(next, lines);
+            if (start <= next) {
+                for (String line : lines) {
+                    send(event(start++, line));
+                }
+                return start;
+            }
+            // Lines written before the flush are all in the file
+            long written = ring.total();
+            log.flush();
+            long sent = sendFile(log.getFile(), next, written);
+            // Never spin on a file that lacks the lines, skip to the ring
+            next = sent > next ? sent : start;
+        }
+    }
+
+    /**
+     * Sends the lines of a log file from the given line up to, but not
+     * including, the given end.
+     * @return number of the next line to send
+     */
+    private long sendFile(File file, long next, long end) throws IOException {
+        if (file == null || !file.isFile()) {
+            return next;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            long number = 0;
+            String line;
+            while (number < end && !sink.isClosed() && (line = reader.readLine()) != null) {
+                if (number >= next) {
+                    send(event(number, line));
+                }
+                number++;
+            }
+            return Math.max(next, number);
+        }
+    }
+
+    private OutboundSseEvent event(long id, String line) {
+        return sse.newEventBuilder().id(Long.toString(id)).data(String.class, line.replace("\r", "")).build();
+    }
+
+    private void end() {
+        send(sse.newEventBuilder().name("end").data(String.class, Long.toString(next)).build());
+        sink.close();
+    }
+
+    private void send(OutboundSseEvent event) {
+        if (sink.isClosed()) {
+            return;
+        }
+        sink.send(event).whenComplete((sent, e) -> {
+            if (e != null) {
+                // The client went away
+                sink.close();
+            }
+        });
+        lastSent = System.currentTimeMillis();
+    }
+}
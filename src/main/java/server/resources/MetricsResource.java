@@ -0,0 +1,22 @@
+package server.resources;
+
+import buildtools.Metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+@Path("metrics")
+public class MetricsResource {
+
+    /**
+     * Serves the server's metrics to Prometheus.
+     * path: /metrics
+     * @return - every counter, histogram and gauge in the Prometheus text format
+     */
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public String getMetrics() {
+        return Metrics.render();
+    }
+}
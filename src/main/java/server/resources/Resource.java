@@ -1,80 +1,283 @@
 package server.resources;
 
 import buildtools.Build;
-import buildtools.BuildJob;
+import buildtools.BuildPage;
+import buildtools.BuildQuery;
+import buildtools.BuildScheduler;
+import buildtools.BuildSummary;
+import buildtools.JobLog;
+import buildtools.Trace;
+import buildtools.UsageGroup;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import server.ContinuousIntegrationServer;
+import server.LogStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
 
 @Path("ci")
 public class Resource {
 
-    ExecutorService jobsQueue = Executors.newFixedThreadPool(10);
-
     /**
      * Fetches all builds from local database
      * path: /ci/get
      * @return - ArrayList with all build as Build objects.
-     * @throws IOException - Storage.getAll() throws IOException
+     * @throws IOException - Storage.getBuilds() throws IOException
      */
     @GET
     @Path("get")
     @Produces("application/json")
     public ArrayList<Build> getBuilds() throws IOException {
-        JSONObject dbJSON = ContinuousIntegrationServer.storage.getAll();
-        ArrayList<Build> l = new ArrayList<>();
+        // one bulk read of the database, the build cache is left alone
+        return new ArrayList<>(ContinuousIntegrationServer.storage.getBuilds());
+    }
 
-        // go through every job
-        for (String key : dbJSON.keySet()) {
-            Build b = new Build(key, dbJSON.getJSONObject(key));
-            l.add(b);
-        }
+    /**
+     * Lists all builds without their logs, newest first. Served from
+     * memory, for the build list page.
+     * path: /ci/summaries
+     * @return - list of build summaries
+     * @throws IOException - Storage.getSummaries() throws IOException
+     */
+    @GET
+    @Path("summaries")
+    @Produces("application/json")
+    public List<BuildSummary> getSummaries() throws IOException {
+        return ContinuousIntegrationServer.storage.getSummaries();
+    }
 
-        return l;
+    /**
+     * Fetches a single build including its log, for the build detail page.
+     * path: /ci/builds/{id}
+     * @param jobID - the build's jobID
+     * @return - the build
+     * @throws IOException - Storage.getBuild() throws IOException
+     */
+    @GET
+    @Path("builds/{id}")
+    @Produces("application/json")
+    public Build getBuild(@PathParam("id") String jobID) throws IOException {
+        Build build = ContinuousIntegrationServer.storage.getBuild(jobID);
+        if (build == null) {
+            throw new NotFoundException("No build with id " + jobID);
+        }
+        return build;
     }
 
-    // EXAMPLE POST REQUEST HANDLER
-    @POST
-    @Path("push")
-    @Consumes("application/x-www-form-urlencoded")
-    public Response push(@FormParam("payload") String payload) {
+    /**
+     * Downloads the full output of a build, which is only kept on disk.
+     * path: /ci/builds/{id}/log
+     * @param jobID - the build's jobID
+     * @return - the log file as plain text
+     * @throws IOException - Storage.getBuild() throws IOException
+     */
+    @GET
+    @Path("builds/{id}/log")
+    @Produces("text/plain")
+    public File getBuildLog(@PathParam("id") String jobID) throws IOException {
+        Build build = ContinuousIntegrationServer.storage.getBuild(jobID);
+        if (build == null || build.getLogFile() == null || !new File(build.getLogFile()).isFile()) {
+            throw new NotFoundException("No log for build with id " + jobID);
+        }
+        return new File(build.getLogFile());
+    }
 
-        String jobID = UUID.randomUUID().toString();
+    /**
+     * Shows where a build spent its time: a span for every phase, e.g.
+     * queued, fetch, checkout, each step and the commit status updates,
+     * with start and end times and attributes. Spans of a running build
+     * have an end of -1.
+     * path: /ci/builds/{id}/timeline
+     * @param jobID - the build's jobID
+     * @return - the build's trace
+     * @throws IOException - Storage.getTrace() throws IOException
+     */
+    @GET
+    @Path("builds/{id}/timeline")
+    @Produces("application/json")
+    public Trace getTimeline(@PathParam("id") String jobID) throws IOException {
+        Trace trace = Trace.recent(jobID);
+        if (trace == null) {
+            trace = ContinuousIntegrationServer.storage.getTrace(jobID);
+        }
+        if (trace == null) {
+            throw new NotFoundException("No timeline for build with id " + jobID);
+        }
+        return trace;
+    }
 
+    /**
+     * Streams the log of a build as Server-Sent Events while it runs, one
+     * event per output line with the line number as id. Reconnecting
+     * clients resume after the Last-Event-ID header, or from the line
+     * given as "from". Finished builds are streamed from their log file.
+     * The events are sent by LogStream's pushers, the request thread
+     * returns at once.
+     * path: /ci/builds/{id}/log/stream?from=
+     * @param jobID - the build's jobID
+     * @param lastEventID - id of the last line the client received
+     * @param from - number of the first line to send
+     * @param sink - the event stream
+     * @param sse - creates the events
+     * @param response - gets the caching headers
+     * @throws IOException - Storage.getBuild() throws IOException
+     */
+    @GET
+    @Path("builds/{id}/log/stream")
+    @Produces("text/event-stream")
+    public void streamBuildLog(@PathParam("id") String jobID,
+                               @HeaderParam("Last-Event-ID") String lastEventID,
+                               @QueryParam("from") @DefaultValue("0") long from,
+                               @Context SseEventSink sink,
+                               @Context Sse sse,
+                               @Context HttpServletResponse response) throws IOException {
+        if (lastEventID != null) {
+            try {
+                from = Long.parseLong(lastEventID.trim()) + 1;
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("Invalid Last-Event-ID");
+            }
+        }
+        File logFile = JobLog.fileOf(jobID);
+        if (JobLog.running(jobID) == null) {
+            Build build = ContinuousIntegrationServer.storage.getBuild(jobID);
+            if (build == null) {
+                throw new NotFoundException("No build with id " + jobID);
+            }
+            if (build.getLogFile() != null) {
+                logFile = new File(build.getLogFile());
+            }
+        }
+        if (response != null) {
+            response.setHeader("Cache-Control", "no-cache");
+            response.setHeader("X-Accel-Buffering", "no");
+        }
+        new LogStream(jobID, logFile, from, sink, sse).start();
+    }
 
-        JSONObject json = new JSONObject(payload);
-        JSONObject repository = json.getJSONObject("repository");
+    /**
+     * Fetches one page of build summaries, newest first, filtered on any of the
+     * query parameters. Served from the storage's secondary indexes.
+     * path: /ci/builds?status=&repo=&sha=&from=&to=&cursor=&limit=
+     * @param status - pending, success, failure or error
+     * @param repo - repository as "owner/repo"
+     * @param sha - commit sha
+     * @param from - earliest build date, YYYY-MM-DD[ H:M:S]
+     * @param to - latest build date, YYYY-MM-DD[ H:M:S]
+     * @param cursor - nextCursor from the previous page
+     * @param limit - page size, at most 100
+     * @return - the page of build summaries and the cursor of the next page
+     * @throws IOException - Storage.query() throws IOException
+     */
+    @GET
+    @Path("builds")
+    @Produces("application/json")
+    public BuildPage queryBuilds(@QueryParam("status") String status,
+                                 @QueryParam("repo") String repo,
+                                 @QueryParam("sha") String sha,
+                                 @QueryParam("from") String from,
+                                 @QueryParam("to") String to,
+                                 @QueryParam("cursor") String cursor,
+                                 @QueryParam("limit") @DefaultValue("20") int limit) throws IOException {
+        try {
+            return ContinuousIntegrationServer.storage.query(new BuildQuery(status, repo, sha, from, to, cursor, limit));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
 
+    /**
+     * Adds up what builds used of the host, for capacity planning and to
+     * see builds getting more expensive over time.
+     * path: /ci/usage
+     * @param status - only builds with this status
+     * @param repo - only builds of this repository
+     * @param from - only builds on or after this date
+     * @param to - only builds on or before this date
+     * @param groupBy - repo, day or step
+     * @return - the usage of every group
+     * @throws IOException - Storage.usage() throws IOException
+     */
+    @GET
+    @Path("usage")
+    @Produces("application/json")
+    public List<UsageGroup> getUsage(@QueryParam("status") String status,
+                                     @QueryParam("repo") String repo,
+                                     @QueryParam("from") String from,
+                                     @QueryParam("to") String to,
+                                     @QueryParam("groupBy") @DefaultValue("repo") String groupBy) throws IOException {
         try {
-            json.getJSONObject("hook");
-            System.out.println("New webhook: " + repository.getString("full_name"));
-            return Response.status(200).build();
-        } catch (JSONException ignored) {}
-
-        String owner = repository.getJSONObject("owner").getString("name");
-        String repo = repository.getString("name");
-        String commitSha = json.getJSONArray("commits").getJSONObject(0).getString("id");
-
-        String branchRef = json.getString("ref");
-        String cloneUrl = repository.getString("clone_url");
-
-        if (!repo.equals("testing_mobergliuslefors_do_not_build")) {
-            // Run build jobs asynchronously
-            Runnable job = () -> BuildJob.run(jobID, cloneUrl, branchRef, owner, repo, commitSha);
-            jobsQueue.execute(job);
+            return ContinuousIntegrationServer.storage.usage(new BuildQuery(status, repo, null, from, to, null, 0), groupBy);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
         }
+    }
+
+    /**
+     * Shows the build queue: how many builds wait and run, and how long
+     * builds have waited before starting.
+     * path: /ci/scheduler
+     * @return - the scheduler's metrics
+     */
+    @GET
+    @Path("scheduler")
+    @Produces("application/json")
+    public BuildScheduler.Stats getSchedulerStats() {
+        return ContinuousIntegrationServer.scheduler.stats();
+    }
+
+    /**
+     * Receives a GitHub webhook sent as a form. The payload is only
+     * stored here and parsed later, off the request thread.
+     * path: /ci/push
+     * @param payload - the webhook payload
+     * @param delivery - unique id of the delivery, the same for redeliveries
+     * @param event - type of the webhook, e.g. push or ping
+     * @return - 202 once stored, 503 if the inbox is full
+     */
+    @POST
+    @Path("push")
+    @Consumes("application/x-www-form-urlencoded")
+    public Response push(@FormParam("payload") String payload,
+                         @HeaderParam("X-GitHub-Delivery") String delivery,
+                         @HeaderParam("X-GitHub-Event") String event) {
+        return accept(payload, delivery, event);
+    }
 
-        return Response.status(200).build();
+    /**
+     * Receives a GitHub webhook sent as json.
+     * path: /ci/push
+     * @param payload - the webhook payload
+     * @param delivery - unique id of the delivery, the same for redeliveries
+     * @param event - type of the webhook, e.g. push or ping
+     * @return - 202 once stored, 503 if the inbox is full
+     */
+    @POST
+    @Path("push")
+    @Consumes("application/json")
+    public Response pushJson(String payload,
+                             @HeaderParam("X-GitHub-Delivery") String delivery,
+                             @HeaderParam("X-GitHub-Event") String event) {
+        return accept(payload, delivery, event);
+    }
+
+    private Response accept(String payload, String delivery, String event) {
+        if (payload == null || payload.isEmpty()) {
+            return Response.status(400).build();
+        }
+        if (!ContinuousIntegrationServer.inbox.accept(delivery, event, payload)) {
+            return Response.status(503).header("Retry-After", "60").build();
+        }
+        return Response.status(202).build();
     }
 
 }
@@ -0,0 +1,68 @@
+package buildtools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BuildCacheTest {
+
+    private Build build(String jobID, int logLines) {
+        List<ArrayList<String>> log = new ArrayList<>();
+        ArrayList<String> entry = new ArrayList<>();
+        for (int i = 0; i < logLines; i++) {
+            entry.add("line " + i);
+        }
+        log.add(entry);
+        return new Build(jobID, Build.Result.success, "sha", "owner/repo", log, "2020-02-02 19:19:00");
+    }
+
+    /**
+     * Tests that the least recently used build is evicted first.
+     */
+    @Test
+    public void test0() {
+        BuildCache cache = new BuildCache(2, Long.MAX_VALUE);
+        cache.put(build("a", 1));
+        cache.put(build("b", 1));
+        assertNotNull(cache.get("a"));
+        cache.put(build("c", 1));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    /**
+     * Tests that builds are evicted to stay within the byte budget, and
+     * that a build larger than the whole budget is not cached at all.
+     */
+    @Test
+    public void test1() {
+        long oneBuild = BuildCache.estimateSize(build("a", 100));
+        BuildCache cache = new BuildCache(100, oneBuild * 2);
+        cache.put(build("a", 100));
+        cache.put(build("b", 100));
+        cache.put(build("c", 100));
+        assertEquals(2, cache.size());
+        assertTrue(cache.bytes() <= oneBuild * 2);
+
+        cache.put(build("huge", 10000));
+        assertNull(cache.get("huge"));
+    }
+
+    /**
+     * Tests that a loaded build does not replace one written through.
+     */
+    @Test
+    public void test2() {
+        BuildCache cache = new BuildCache(10, Long.MAX_VALUE);
+        Build written = build("a", 1);
+        cache.put(written);
+        assertSame(written, cache.putIfAbsent(build("a", 2)));
+        assertEquals(1, cache.get("a").getLog().get(0).size());
+    }
+}
@@ -0,0 +1,87 @@
+package buildtools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BuildIndexTest {
+
+    private BuildIndex index() {
+        BuildIndex index = new BuildIndex();
+        for (int i = 0; i < 10; i++) {
+            Build.Result status = i % 2 == 0 ? Build.Result.success : Build.Result.failure;
+            String repo = i < 5 ? "owner/a" : "owner/b";
+            String date = String.format("2020-02-%02d 12:00:00", i + 1);
+            index.update(new Build("job" + i, status, "sha" + i, repo, new ArrayList<>(), date));
+        }
+        return index;
+    }
+
+    private List<String> all(BuildIndex index, String status, String repo, String from, String to, int limit) {
+        List<String> jobIDs = new ArrayList<>();
+        String cursor = null;
+        do {
+            BuildIndex.Page page = index.query(new BuildQuery(status, repo, null, from, to, cursor, limit));
+            assertTrue(page.jobIDs.size() <= limit);
+            jobIDs.addAll(page.jobIDs);
+            cursor = page.nextCursor;
+        } while (cursor != null);
+        return jobIDs;
+    }
+
+    /**
+     * Tests that paging through all builds returns each once, newest first.
+     */
+    @Test
+    public void test0() {
+        List<String> jobIDs = all(index(), null, null, null, null, 3);
+        assertEquals(Arrays.asList("job9", "job8", "job7", "job6", "job5", "job4", "job3", "job2", "job1", "job0"), jobIDs);
+    }
+
+    /**
+     * Tests filtering on status and repo together.
+     */
+    @Test
+    public void test1() {
+        assertEquals(Arrays.asList("job8", "job6"), all(index(), "success", "owner/b", null, null, 1));
+        assertEquals(Arrays.asList("job3", "job1"), all(index(), "failure", "owner/a", null, null, 5));
+    }
+
+    /**
+     * Tests the date range, where a day without a time covers the whole day.
+     */
+    @Test
+    public void test2() {
+        assertEquals(Arrays.asList("job4", "job3", "job2"), all(index(), null, null, "2020-02-03", "2020-02-05", 2));
+    }
+
+    /**
+     * Tests that a status change moves the build between status indexes.
+     */
+    @Test
+    public void test3() {
+        BuildIndex index = index();
+        index.update(new Build("job9", Build.Result.success, "sha9", "owner/b", new ArrayList<>(), "2020-02-10 12:00:00"));
+        assertEquals(Arrays.asList("job9", "job8", "job6"), all(index, "success", "owner/b", null, null, 10));
+        assertEquals(Arrays.asList("job7", "job5"), all(index, "failure", "owner/b", null, null, 10));
+    }
+
+    /**
+     * Tests lookup by commit and rejection of a malformed cursor.
+     */
+    @Test
+    public void test4() {
+        BuildIndex index = index();
+        BuildIndex.Page page = index.query(new BuildQuery(null, null, "sha4", null, null, null, 0));
+        assertEquals(Arrays.asList("job4"), page.jobIDs);
+        assertNull(page.nextCursor);
+        try {
+            index.query(new BuildQuery(null, null, null, null, null, "not a cursor", 0));
+            fail("Expected malformed cursor to be rejected");
+        } catch (IllegalArgumentException expected) {}
+    }
+}
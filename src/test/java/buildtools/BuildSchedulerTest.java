@@ -0,0 +1,256 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BuildSchedulerTest {
+    private boolean supersede;
+
+    @Before
+    public void setUp() {
+        supersede = BuildScheduler.SUPERSEDE;
+    }
+
+    @After
+    public void tearDown() {
+        BuildScheduler.SUPERSEDE = supersede;
+    }
+
+    private BuildRequest request(String jobID, String repo, String branch, boolean defaultBranch) {
+        return new BuildRequest(jobID, "url", "refs/heads/" + branch, "owner", repo, "sha-" + jobID, defaultBranch);
+    }
+
+    /**
+     * Tests that builds are refused once the queue is full and after shutdown.
+     */
+    @Test
+    public void test0() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 2, 1, 1, r -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+        });
+        assertEquals(BuildScheduler.Admission.accepted, scheduler.submit(request("a", "repo", "a", false)));
+        while (scheduler.running() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(BuildScheduler.Admission.accepted, scheduler.submit(request("b", "repo", "b", false)));
+        assertEquals(BuildScheduler.Admission.accepted, scheduler.submit(request("c", "repo", "c", false)));
+        assertEquals(BuildScheduler.Admission.queueFull, scheduler.submit(request("d", "repo", "d", false)));
+        assertEquals(2, scheduler.stats().getQueued());
+        assertEquals(1, scheduler.stats().getRejected());
+
+        scheduler.shutdown();
+        assertEquals(BuildScheduler.Admission.shutdown, scheduler.submit(request("e", "repo", "e", false)));
+        release.countDown();
+        scheduler.awaitTermination(5000);
+        assertEquals(3, scheduler.stats().getStarted());
+    }
+
+    /**
+     * Tests that default branch builds run before older feature branch builds.
+     */
+    @Test
+    public void test1() throws Exception {
+        BuildScheduler.SUPERSEDE = false;
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(5);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        BuildScheduler scheduler = new BuildScheduler(1, 10, 10, 10, r -> {
+            order.add(r.getJobID());
+            if (r.getJobID().equals("blocker")) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+            }
+            done.countDown();
+        });
+        // Keep the only worker busy until everything is queued
+        scheduler.submit(request("blocker", "other", "blocker", false));
+        while (scheduler.running() == 0) {
+            Thread.sleep(10);
+        }
+        scheduler.submit(request("feature1", "repo", "feature", false));
+        scheduler.submit(request("main1", "repo", "master", true));
+        scheduler.submit(request("feature2", "repo", "feature", false));
+        scheduler.submit(request("main2", "repo", "master", true));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("blocker", "main1", "main2", "feature1", "feature2"), order);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Tests that builds of one branch never run at the same time, even
+     * with idle workers.
+     */
+    @Test
+    public void test2() throws Exception {
+        BuildScheduler.SUPERSEDE = false;
+        CountDownLatch done = new CountDownLatch(4);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        BuildScheduler scheduler = new BuildScheduler(4, 10, 10, 1, r -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {}
+            running.decrementAndGet();
+            done.countDown();
+        });
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(request("job" + i, "repo", "feature", false));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        assertEquals(4, scheduler.stats().getStarted());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Tests that a push to a branch drops its queued builds and cancels
+     * its running one, but leaves other branches alone.
+     */
+    @Test
+    public void test3() throws Exception {
+        CountDownLatch cancelled = new CountDownLatch(1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        List<String> superseded = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        BuildScheduler scheduler = new BuildScheduler(1, 10, 10, 1, new BuildScheduler.Runner() {
+            @Override
+            public void run(BuildRequest request) {
+                ran.add(request.getJobID());
+                if (request.getJobID().equals("old")) {
+                    try {
+                        cancelled.await();
+                    } catch (InterruptedException ignored) {}
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void superseded(BuildRequest request) {
+                superseded.add(request.getJobID());
+            }
+
+            @Override
+            public void cancel(BuildRequest request) {
+                assertTrue(request.isCancelled());
+                cancelled.countDown();
+            }
+        });
+        scheduler.submit(request("old", "repo", "feature", false));
+        while (scheduler.running() == 0) {
+            Thread.sleep(10);
+        }
+        // The single worker is busy, so these stay queued
+        synchronized (scheduler) {
+            scheduler.submit(request("other", "repo", "other", false));
+            scheduler.submit(request("middle", "repo", "feature", false));
+            scheduler.submit(request("newest", "repo", "feature", false));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("middle"), superseded);
+        assertEquals(Arrays.asList("old", "other", "newest"), ran);
+        assertEquals(2, scheduler.stats().getSuperseded());
+        scheduler.shutdown();
+    }
+
+    /**
+     * Tests that the cells of a build matrix run in parallel within the
+     * repository limit without superseding each other, and that a push
+     * to their branch drops the cells still queued.
+     */
+    @Test
+    public void test4() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<String> superseded = Collections.synchronizedList(new ArrayList<>());
+        BuildScheduler scheduler = new BuildScheduler(4, 10, 2, 1, new BuildScheduler.Runner() {
+            @Override
+            public void run(BuildRequest request) {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {}
+                running.decrementAndGet();
+            }
+
+            @Override
+            public void superseded(BuildRequest request) {
+                superseded.add(request.getJobID());
+            }
+
+            @Override
+            public void cancel(BuildRequest request) {
+                release.countDown();
+            }
+        });
+        BuildRequest parent = request("matrix", "repo", "feature", false);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(BuildScheduler.Admission.accepted,
+                    scheduler.submit(parent.cell(i, Collections.singletonMap("JDK", "" + (8 + i)))));
+        }
+        while (scheduler.running() < 2) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        assertEquals(2, scheduler.running());
+        assertEquals(1, scheduler.queued());
+        assertTrue(superseded.isEmpty());
+
+        scheduler.submit(request("newer", "repo", "feature", false));
+        assertEquals(Collections.singletonList("matrix-3"), superseded);
+        assertEquals(2, maxRunning.get());
+        scheduler.shutdown();
+        scheduler.awaitTermination(5000);
+    }
+
+    /**
+     * Tests that the cells of a matrix fanned out into a queue that fills
+     * up are refused like any other build, though they share a branch
+     * with the queued cells.
+     */
+    @Test
+    public void test5() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildScheduler scheduler = new BuildScheduler(1, 2, 1, 1, r -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {}
+        });
+        assertEquals(BuildScheduler.Admission.accepted, scheduler.submit(request("a", "repo", "a", false)));
+        while (scheduler.running() == 0) {
+            Thread.sleep(10);
+        }
+        BuildRequest parent = request("matrix", "repo", "feature", false);
+        List<BuildScheduler.Admission> admissions = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            admissions.add(scheduler.submit(parent.cell(i, Collections.singletonMap("JDK", "" + (8 + i)))));
+        }
+        assertEquals(Arrays.asList(BuildScheduler.Admission.accepted, BuildScheduler.Admission.accepted,
+                BuildScheduler.Admission.queueFull, BuildScheduler.Admission.queueFull), admissions);
+        assertEquals(2, scheduler.queued());
+        assertEquals(2, scheduler.stats().getRejected());
+
+        scheduler.shutdown();
+        release.countDown();
+        scheduler.awaitTermination(5000);
+    }
+}
@@ -0,0 +1,122 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class DependencyCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("dependencycache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    private File worktree(String name, String buildGradle) throws IOException {
+        File worktree = new File(dir, name);
+        new File(worktree, "src").mkdirs();
+        write(new File(worktree, "build.gradle"), buildGradle);
+        write(new File(worktree, "src/Main.java"), "class Main {}");
+        return worktree;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+    }
+
+    /**
+     * Tests that the key only depends on build files, and that builds
+     * of the same repository and key share a cache.
+     */
+    @Test
+    public void test0() throws IOException {
+        File a = worktree("a", "apply plugin: 'java'");
+        File b = worktree("b", "apply plugin: 'java'");
+        write(new File(b, "src/Main.java"), "class Main { int changed; }");
+        File c = worktree("c", "apply plugin: 'application'");
+        assertEquals(DependencyCache.keyOf(a), DependencyCache.keyOf(b));
+        assertNotEquals(DependencyCache.keyOf(a), DependencyCache.keyOf(c));
+
+        DependencyCache caches = new DependencyCache(new File(dir, "caches"), Long.MAX_VALUE, 2);
+        File first;
+        try (DependencyCache.Lease lease = caches.acquire("owner/repo", a)) {
+            first = lease.getDirectory();
+            assertTrue(lease.getEnv().get("GRADLE_USER_HOME").startsWith(first.getAbsolutePath()));
+            assertTrue(lease.getEnv().get("MAVEN_OPTS").contains("-Dmaven.repo.local=" + first.getAbsolutePath()));
+            write(new File(first, "downloaded.jar"), "jar");
+        }
+        try (DependencyCache.Lease lease = caches.acquire("owner/repo", b)) {
+            assertEquals(first, lease.getDirectory());
+        }
+    }
+
+    /**
+     * Tests that builds running at once get caches of their own, and
+     * that a cache for new build files starts as a copy of the last one.
+     */
+    @Test
+    public void test1() throws Exception {
+        File a = worktree("a", "apply plugin: 'java'");
+        File c = worktree("c", "apply plugin: 'application'");
+        DependencyCache caches = new DependencyCache(new File(dir, "caches"), Long.MAX_VALUE, 2);
+        try (DependencyCache.Lease first = caches.acquire("owner/repo", a)) {
+            write(new File(first.getDirectory(), "downloaded.jar"), "jar");
+            // Held by this thread, so it cannot be leased again until closed
+            File[] second = new File[1];
+            Thread other = new Thread(() -> {
+                try (DependencyCache.Lease lease = caches.acquire("owner/repo", a)) {
+                    second[0] = lease.getDirectory();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            other.start();
+            other.join();
+            assertNotNull(second[0]);
+            assertNotEquals(first.getDirectory(), second[0]);
+        }
+        try (DependencyCache.Lease lease = caches.acquire("owner/repo", c)) {
+            File jar = new File(lease.getDirectory(), "downloaded.jar");
+            assertTrue(jar.exists());
+            assertEquals("jar", new String(Files.readAllBytes(jar.toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Tests that the least recently used cache is deleted when the caches
+     * go over the disk budget, but not the one just used.
+     */
+    @Test
+    public void test2() throws Exception {
+        File a = worktree("a", "apply plugin: 'java'");
+        DependencyCache caches = new DependencyCache(new File(dir, "caches"), 150, 1);
+        File old;
+        try (DependencyCache.Lease lease = caches.acquire("owner/old", a)) {
+            old = lease.getDirectory();
+            write(new File(old, "dependency.jar"), new String(new char[100]));
+        }
+        Thread.sleep(1100);
+        File used;
+        try (DependencyCache.Lease lease = caches.acquire("owner/new", a)) {
+            used = lease.getDirectory();
+            write(new File(used, "dependency.jar"), new String(new char[100]));
+        }
+        assertFalse(old.exists());
+        assertTrue(used.exists());
+    }
+}
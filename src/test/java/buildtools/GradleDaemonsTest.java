@@ -0,0 +1,118 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GradleDaemonsTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("gradledaemons").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    /**
+     * Tests that the daemon settings are written into gradle.properties,
+     * replacing earlier ones and keeping other settings.
+     */
+    @Test
+    public void test0() throws IOException {
+        File properties = new File(dir, "gradle.properties");
+        try (FileWriter writer = new FileWriter(properties)) {
+            writer.write("org.gradle.caching=true\norg.gradle.daemon=false\n");
+        }
+        String jvmArgs = GradleDaemons.JVM_ARGS;
+        try {
+            GradleDaemons.JVM_ARGS = "-Xmx512m";
+            GradleDaemons.configure(dir);
+            GradleDaemons.configure(dir);
+        } finally {
+            GradleDaemons.JVM_ARGS = jvmArgs;
+        }
+        String content = new String(Files.readAllBytes(properties.toPath()), StandardCharsets.UTF_8);
+        assertTrue(content.contains("org.gradle.caching=true\n"));
+        assertTrue(content.contains("org.gradle.daemon=true\n"));
+        assertFalse(content.contains("org.gradle.daemon=false"));
+        assertTrue(content.contains("org.gradle.daemon.idletimeout=" + GradleDaemons.IDLE_TIMEOUT_MILLIS + "\n"));
+        assertEquals(content.indexOf("org.gradle.jvmargs=-Xmx512m"), content.lastIndexOf("org.gradle.jvmargs"));
+    }
+
+    /**
+     * Tests that a running daemon is found through its log file and that
+     * it is stopped once it has been running too long.
+     */
+    @Test
+    public void test1() throws Exception {
+        // A stand-in for a daemon, its command line names GradleDaemon
+        Process daemon = new ProcessBuilder("sh", "-c", "echo started; sleep 30; true", "GradleDaemon").start();
+        try {
+            daemon.getInputStream().read();
+            long pid = ProcessTree.pid(daemon);
+            File logs = new File(dir, "daemon/6.1.1");
+            logs.mkdirs();
+            new File(logs, "daemon-" + pid + ".out.log").createNewFile();
+            new File(logs, "daemon-999999999.out.log").createNewFile();
+
+            List<GradleDaemons.Daemon> daemons = GradleDaemons.find(dir);
+            assertEquals(1, daemons.size());
+            assertEquals(pid, daemons.get(0).getPid());
+            assertTrue(daemons.get(0).getRssBytes() > 0);
+            long now = System.currentTimeMillis();
+            assertTrue(Math.abs(now - daemons.get(0).getStartedAt()) < 60000);
+
+            assertEquals(0, GradleDaemons.check(dir, now, 60000, Long.MAX_VALUE));
+            assertTrue(daemon.isAlive());
+            assertEquals(1, GradleDaemons.check(dir, now + 120000, 60000, Long.MAX_VALUE));
+            assertTrue(daemon.waitFor(5, TimeUnit.SECONDS));
+        } finally {
+            daemon.destroyForcibly();
+        }
+    }
+
+    /**
+     * Tests that with a CPU limit on the steps daemons are turned off and
+     * a warm daemon of an earlier build is stopped, so no later build
+     * runs in a daemon carrying another step's limit.
+     */
+    @Test
+    public void test2() throws Exception {
+        Process daemon = new ProcessBuilder("sh", "-c", "echo started; sleep 30; true", "GradleDaemon").start();
+        long maxCpu = RunBash.MAX_CPU_SECONDS;
+        try {
+            daemon.getInputStream().read();
+            File logs = new File(dir, "daemon/6.1.1");
+            logs.mkdirs();
+            new File(logs, "daemon-" + ProcessTree.pid(daemon) + ".out.log").createNewFile();
+
+            GradleDaemons.configure(dir);
+            assertTrue(daemon.isAlive());
+
+            RunBash.MAX_CPU_SECONDS = 60;
+            assertFalse(GradleDaemons.enabled());
+            GradleDaemons.configure(dir);
+            String content = new String(Files.readAllBytes(new File(dir, "gradle.properties").toPath()), StandardCharsets.UTF_8);
+            assertTrue(content.contains("org.gradle.daemon=false\n"));
+            assertTrue(daemon.waitFor(5, TimeUnit.SECONDS));
+            assertTrue(GradleDaemons.find(dir).isEmpty());
+        } finally {
+            RunBash.MAX_CPU_SECONDS = maxCpu;
+            daemon.destroyForcibly();
+        }
+    }
+}
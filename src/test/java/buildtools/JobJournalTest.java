@@ -0,0 +1,81 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JobJournalTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SegmentStore.close(dir);
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    private BuildRequest request(String jobID) {
+        return new BuildRequest(jobID, "https://github.com/owner/repo.git", "refs/heads/master", "owner", "repo", "sha-" + jobID, true);
+    }
+
+    /**
+     * Tests that the latest state of unfinished builds survives reopening
+     * the journal, and that finished builds are gone.
+     */
+    @Test
+    public void test0() throws IOException {
+        JobJournal journal = new JobJournal(dir);
+        journal.queued(request("a"));
+        journal.queued(request("b"));
+        journal.queued(request("c"));
+        journal.update("a", JobJournal.State.cloning);
+        journal.update("a", JobJournal.State.running);
+        journal.update("b", JobJournal.State.reporting);
+        journal.finish("c");
+
+        SegmentStore.close(dir);
+        journal = new JobJournal(dir);
+        List<JobJournal.Entry> entries = journal.entries();
+        assertEquals(2, entries.size());
+        for (JobJournal.Entry entry : entries) {
+            BuildRequest request = entry.getRequest();
+            assertEquals("sha-" + request.getJobID(), request.getCommitSha());
+            assertEquals("owner/repo@refs/heads/master", request.getBranchKey());
+            assertTrue(request.isDefaultBranch());
+            if (request.getJobID().equals("a")) {
+                assertEquals(JobJournal.State.running, entry.getState());
+            } else {
+                assertEquals("b", request.getJobID());
+                assertEquals(JobJournal.State.reporting, entry.getState());
+            }
+        }
+
+        // Reopened jobs can still be finished
+        journal.finish("a");
+        journal.finish("b");
+        assertTrue(journal.entries().isEmpty());
+    }
+
+    /**
+     * Tests that state changes of builds that were never queued through
+     * the journal are ignored.
+     */
+    @Test
+    public void test1() {
+        JobJournal journal = new JobJournal(dir);
+        journal.update("unknown", JobJournal.State.running);
+        journal.finish("unknown");
+        assertTrue(journal.entries().isEmpty());
+    }
+}
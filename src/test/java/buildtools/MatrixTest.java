@@ -0,0 +1,70 @@
+package buildtools;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MatrixTest {
+
+    /**
+     * Tests that every combination of the matrix variables becomes a cell,
+     * with values given as a list on one line or as "- value" lines.
+     */
+    @Test
+    public void test0() {
+        List<Map<String, String>> cells = Matrix.parse(String.join("\n",
+                "matrix:",
+                "  JAVA_HOME: [/usr/lib/jvm/java-8, \"/usr/lib/jvm/java-11\"]",
+                "  # flags passed to gradle",
+                "  GRADLE_OPTS:",
+                "    - -Dfast=true",
+                "    - -Dfast=false",
+                "steps:",
+                "  build:",
+                "    run: ./gradlew build"));
+
+        assertEquals(4, cells.size());
+        assertEquals("/usr/lib/jvm/java-8", cells.get(0).get("JAVA_HOME"));
+        assertEquals("-Dfast=true", cells.get(0).get("GRADLE_OPTS"));
+        assertEquals("-Dfast=false", cells.get(1).get("GRADLE_OPTS"));
+        assertEquals("/usr/lib/jvm/java-11", cells.get(3).get("JAVA_HOME"));
+        assertEquals("JAVA_HOME=/usr/lib/jvm/java-8 GRADLE_OPTS=-Dfast=false", Matrix.nameOf(cells.get(1)));
+        assertEquals(1, Pipeline.parse("matrix:\n  JDK: [8, 11]\nsteps:\n  build:\n    run: true\n").getSteps().size());
+    }
+
+    /**
+     * Tests that a configuration without a matrix has no cells, and that
+     * the matrix lines are not read as Build or Test commands.
+     */
+    @Test
+    public void test1() {
+        String config = "matrix:\n  MODE: [Build, Test]\nBuild\n./gradlew assemble\nTest\n./gradlew test\n";
+        assertEquals(2, Matrix.parse(config).size());
+        assertEquals(2, Pipeline.parse(config).getSteps().size());
+        assertEquals("./gradlew assemble", Pipeline.parse(config).getSteps().get(0).getCommand());
+        assertTrue(Matrix.parse("Build\n./gradlew assemble\n").isEmpty());
+    }
+
+    /**
+     * Tests that variables without values and matrices with too many
+     * cells are rejected.
+     */
+    @Test
+    public void test2() {
+        try {
+            Matrix.parse("matrix:\n  JDK: []\n");
+            fail("variable without values accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("JDK"));
+        }
+        try {
+            Matrix.parse("matrix:\n  A: [1, 2, 3, 4, 5]\n  B: [1, 2, 3, 4, 5]\n");
+            fail("too many cells accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("more than " + Matrix.MAX_CELLS));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @After
+    public void tearDown() {
+        Metrics.ENABLED = true;
+    }
+
+    /**
+     * Tests that counters with labels are rendered with one HELP and TYPE
+     * line per name, and that registering one again returns the same.
+     */
+    @Test
+    public void test0() {
+        Metrics.Counter ok = Metrics.counter("test0_total", "Things counted", "outcome", "ok");
+        Metrics.Counter failed = Metrics.counter("test0_total", "Things counted", "outcome", "fail\"ed");
+        assertSame(ok, Metrics.counter("test0_total", "Things counted", "outcome", "ok"));
+        ok.inc();
+        ok.inc();
+        failed.inc();
+
+        String rendered = Metrics.render();
+        assertTrue(rendered.contains("# HELP test0_total Things counted\n# TYPE test0_total counter\n"));
+        assertTrue(rendered.contains("test0_total{outcome=\"ok\"} 2\n"));
+        assertTrue(rendered.contains("test0_total{outcome=\"fail\\\"ed\"} 1\n"));
+        assertEquals(rendered.indexOf("# TYPE test0_total"), rendered.lastIndexOf("# TYPE test0_total"));
+    }
+
+    /**
+     * Tests that histogram buckets are cumulative and that the sum is in
+     * seconds.
+     */
+    @Test
+    public void test1() {
+        Metrics.Histogram histogram = Metrics.histogram("test1_seconds", "Things timed");
+        histogram.observe(3_000_000L);
+        histogram.observe(40_000_000L);
+        histogram.observe(400_000_000_000L);
+        assertEquals(3, histogram.count());
+
+        String rendered = Metrics.render();
+        assertTrue(rendered.contains("# TYPE test1_seconds histogram\n"));
+        assertTrue(rendered.contains("test1_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(rendered.contains("test1_seconds_bucket{le=\"0.05\"} 2\n"));
+        assertTrue(rendered.contains("test1_seconds_bucket{le=\"300.0\"} 2\n"));
+        assertTrue(rendered.contains("test1_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(rendered.contains("test1_seconds_sum 400.043\n"));
+        assertTrue(rendered.contains("test1_seconds_count 3\n"));
+    }
+
+    /**
+     * Tests that gauges are read when rendered, that a failing gauge is
+     * left out, and that nothing is counted with ENABLED false.
+     */
+    @Test
+    public void test2() {
+        long[] value = {5};
+        Metrics.gauge("test2_depth", "Things waiting", () -> value[0]);
+        Metrics.gauge("test2_broken", "Never there", () -> {
+            throw new IllegalStateException();
+        });
+        value[0] = 7;
+        String rendered = Metrics.render();
+        assertTrue(rendered.contains("test2_depth 7\n"));
+        assertFalse(rendered.contains("\ntest2_broken "));
+
+        Metrics.ENABLED = false;
+        Metrics.Counter counter = Metrics.counter("test2_total", "Things counted");
+        Metrics.Histogram histogram = Metrics.histogram("test2_seconds", "Things timed");
+        counter.inc();
+        histogram.observe(1000);
+        assertEquals(0, counter.get());
+        assertEquals(0, histogram.count());
+    }
+}
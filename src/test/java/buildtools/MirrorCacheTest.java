@@ -0,0 +1,209 @@
+package buildtools;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MirrorCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mirrorcache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    private RevCommit commit(Git git, String path, String content) throws Exception {
+        File file = new File(git.getRepository().getWorkTree(), path);
+        file.getParentFile().mkdirs();
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(content);
+        }
+        git.add().addFilepattern(path).call();
+        return git.commit().setMessage("change " + path).call();
+    }
+
+    /**
+     * Runs git in a worktree.
+     * @return what git printed, trimmed
+     */
+    private String git(File worktree, String... args) throws Exception {
+        List<String> command = new ArrayList<>(Collections.singletonList("git"));
+        command.addAll(Arrays.asList(args));
+        Process git = new ProcessBuilder(command).directory(worktree).redirectErrorStream(true).start();
+        String output = new String(readAll(git.getInputStream()), StandardCharsets.UTF_8).trim();
+        assertEquals(output, 0, git.waitFor());
+        return output;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tests that commits are checked out from the mirror, that a newer
+     * commit is fetched into the same mirror, and that older commits
+     * are served without the remote.
+     */
+    @Test
+    public void test0() throws Exception {
+        Git remote = Git.init().setDirectory(new File(dir, "remote")).call();
+        try (FileWriter writer = new FileWriter(new File(dir, "remote/build.sh"))) {
+            writer.write("echo first");
+        }
+        new File(dir, "remote/build.sh").setExecutable(true);
+        remote.add().addFilepattern("build.sh").call();
+        RevCommit first = remote.commit().setMessage("executable").call();
+        commit(remote, "src/Main.java", "class Main {}");
+
+        MirrorCache mirrors = new MirrorCache(new File(dir, "mirrors"), Long.MAX_VALUE);
+        String url = new File(dir, "remote").toURI().toString();
+        mirrors.checkout(url, first.getName(), new File(dir, "job1"));
+        assertEquals("echo first", read(new File(dir, "job1/build.sh")));
+        assertTrue(new File(dir, "job1/build.sh").canExecute());
+        assertEquals(first.getName(), git(new File(dir, "job1"), "rev-parse", "HEAD"));
+        assertEquals("", git(new File(dir, "job1"), "status", "--porcelain"));
+
+        RevCommit second = commit(remote, "build.sh", "echo second");
+        mirrors.checkout(url, second.getName(), new File(dir, "job2"));
+        assertEquals("echo second", read(new File(dir, "job2/build.sh")));
+        assertEquals("class Main {}", read(new File(dir, "job2/src/Main.java")));
+        assertEquals(1, new File(dir, "mirrors").list().length);
+
+        MirrorCache.deleteRecursively(new File(dir, "remote"));
+        mirrors.checkout(url, first.getName(), new File(dir, "job3"));
+        assertEquals("echo first", read(new File(dir, "job3/build.sh")));
+    }
+
+    /**
+     * Tests that the least recently used mirror is deleted when the
+     * mirrors go over the disk budget, but not the one just used.
+     */
+    @Test
+    public void test1() throws Exception {
+        Git a = Git.init().setDirectory(new File(dir, "a")).call();
+        RevCommit commitA = commit(a, "file", "a");
+        Git b = Git.init().setDirectory(new File(dir, "b")).call();
+        RevCommit commitB = commit(b, "file", "b");
+
+        MirrorCache mirrors = new MirrorCache(new File(dir, "mirrors"), 1);
+        String urlA = new File(dir, "a").toURI().toString();
+        String urlB = new File(dir, "b").toURI().toString();
+        mirrors.checkout(urlA, commitA.getName(), new File(dir, "job1"));
+        new File(dir, "mirrors/" + MirrorCache.nameOf(urlA)).setLastModified(System.currentTimeMillis() - 60000);
+        mirrors.checkout(urlB, commitB.getName(), new File(dir, "job2"));
+
+        assertFalse(new File(dir, "mirrors/" + MirrorCache.nameOf(urlA)).exists());
+        assertTrue(new File(dir, "mirrors/" + MirrorCache.nameOf(urlB)).exists());
+        assertEquals("b", read(new File(dir, "job2/file")));
+    }
+
+    /**
+     * Tests that only the pushed branch is fetched and only the Paths
+     * listed in the build configuration are checked out.
+     */
+    @Test
+    public void test2() throws Exception {
+        Git remote = Git.init().setDirectory(new File(dir, "remote")).call();
+        commit(remote, "README", "master only");
+        remote.checkout().setCreateBranch(true).setName("feature").call();
+        commit(remote, "src/Main.java", "class Main {}");
+        commit(remote, "docs/big.txt", "not needed");
+        RevCommit head = commit(remote, ".dd.yml", "Paths\nsrc/\nBuild\nls\nTest\nls\n");
+        remote.checkout().setName("master").call();
+        commit(remote, "master.txt", "not fetched");
+
+        MirrorCache mirrors = new MirrorCache(new File(dir, "mirrors"), Long.MAX_VALUE);
+        String url = new File(dir, "remote").toURI().toString();
+        mirrors.checkout(url, "refs/heads/feature", head.getName(), new File(dir, "job"), ".dd.yml");
+
+        assertEquals("class Main {}", read(new File(dir, "job/src/Main.java")));
+        assertTrue(new File(dir, "job/.dd.yml").exists());
+        assertFalse(new File(dir, "job/docs").exists());
+        assertFalse(new File(dir, "job/README").exists());
+        assertEquals("", git(new File(dir, "job"), "status", "--porcelain"));
+        File refs = new File(dir, "mirrors/" + MirrorCache.nameOf(url) + "/refs/heads");
+        assertTrue(new File(refs, "feature").exists());
+        assertFalse(new File(refs, "master").exists());
+    }
+
+    /**
+     * Tests that a commit is identified by its tree and build
+     * configuration, so a revert to an earlier tree has the same identity.
+     */
+    @Test
+    public void test3() throws Exception {
+        Git remote = Git.init().setDirectory(new File(dir, "remote")).call();
+        RevCommit first = commit(remote, ".dd.yml", "Build\n./gradlew build\n");
+        RevCommit changed = commit(remote, "src/Main.java", "class Main {}");
+        remote.rm().addFilepattern("src/Main.java").call();
+        RevCommit reverted = remote.commit().setMessage("revert").call();
+
+        MirrorCache mirrors = new MirrorCache(new File(dir, "mirrors"), Long.MAX_VALUE);
+        String url = new File(dir, "remote").toURI().toString();
+        String[] identity = mirrors.identify(url, "refs/heads/master", first.getName(), ".dd.yml");
+        assertEquals(first.getTree().getName(), identity[0]);
+        assertEquals("Build\n./gradlew build\n", identity[1]);
+        assertNotEquals(identity[0], mirrors.identify(url, "refs/heads/master", changed.getName(), ".dd.yml")[0]);
+        assertEquals(identity[0], mirrors.identify(url, "refs/heads/master", reverted.getName(), ".dd.yml")[0]);
+        assertNull(mirrors.identify(url, "refs/heads/master", first.getName(), "missing.yml")[1]);
+    }
+
+    /**
+     * Tests that the worktree is a clone that finds the mirror's tags,
+     * and that it only has the files with GIT_DIRECTORY false.
+     */
+    @Test
+    public void test4() throws Exception {
+        Git remote = Git.init().setDirectory(new File(dir, "remote")).call();
+        commit(remote, "file", "tagged");
+        remote.tag().setName("v1.0").setAnnotated(false).call();
+        RevCommit head = commit(remote, "file", "after the tag");
+
+        MirrorCache mirrors = new MirrorCache(new File(dir, "mirrors"), Long.MAX_VALUE);
+        String url = new File(dir, "remote").toURI().toString();
+        mirrors.checkout(url, "refs/heads/master", head.getName(), new File(dir, "job1"), ".dd.yml");
+        assertTrue(git(new File(dir, "job1"), "describe", "--tags").startsWith("v1.0-1-g"));
+        assertEquals("after the tag", git(new File(dir, "job1"), "show", "HEAD:file"));
+
+        boolean gitDirectory = MirrorCache.GIT_DIRECTORY;
+        MirrorCache.GIT_DIRECTORY = false;
+        try {
+            mirrors.checkout(url, "refs/heads/master", head.getName(), new File(dir, "job2"), ".dd.yml");
+        } finally {
+            MirrorCache.GIT_DIRECTORY = gitDirectory;
+        }
+        assertEquals("after the tag", read(new File(dir, "job2/file")));
+        assertFalse(new File(dir, "job2/.git").exists());
+    }
+}
@@ -0,0 +1,236 @@
+package buildtools;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PipelineTest {
+
+    /**
+     * Tests that named steps with run and depends_on in their different
+     * forms are read.
+     */
+    @Test
+    public void test0() {
+        Pipeline pipeline = Pipeline.parse(String.join("\n",
+                "# build configuration",
+                "steps:",
+                "  build:",
+                "    run: ./gradlew assemble",
+                "  lint:",
+                "    run: \"./gradlew checkstyleMain\"",
+                "  test:",
+                "    run: ./gradlew test",
+                "    depends_on: [build, lint]",
+                "  deploy:",
+                "    run: echo done",
+                "    depends_on:",
+                "      - test",
+                "Paths",
+                "src"));
+
+        List<Pipeline.Step> steps = pipeline.getSteps();
+        assertEquals(4, steps.size());
+        assertEquals("build", steps.get(0).getName());
+        assertEquals("./gradlew checkstyleMain", steps.get(1).getCommand());
+        assertEquals(Arrays.asList("build", "lint"), steps.get(2).getDependsOn());
+        assertEquals(Arrays.asList("test"), steps.get(3).getDependsOn());
+        assertEquals(Arrays.asList("sh", "-c", "echo done"), steps.get(3).argv());
+    }
+
+    /**
+     * Tests that the Build and Test keywords become steps that run one
+     * after the other.
+     */
+    @Test
+    public void test1() {
+        Pipeline pipeline = Pipeline.parse(String.join("\n",
+                "Paths",
+                "src build.gradle",
+                "Build",
+                "./gradlew assemble",
+                "Test",
+                "./gradlew test"));
+
+        List<Pipeline.Step> steps = pipeline.getSteps();
+        assertEquals(2, steps.size());
+        assertEquals("build", steps.get(0).getName());
+        assertTrue(steps.get(0).getDependsOn().isEmpty());
+        assertEquals("test", steps.get(1).getName());
+        assertEquals(Arrays.asList("build"), steps.get(1).getDependsOn());
+        assertEquals(Arrays.asList("./gradlew", "test"), steps.get(1).argv());
+    }
+
+    /**
+     * Tests that unknown dependencies and cycles are rejected.
+     */
+    @Test
+    public void test2() {
+        try {
+            Pipeline.parse("steps:\n  a:\n    run: true\n    depends_on: b\n");
+            fail("unknown dependency accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("unknown step b"));
+        }
+        try {
+            Pipeline.parse("steps:\n  a:\n    run: true\n    depends_on: b\n  b:\n    run: true\n    depends_on: a\n");
+            fail("cycle accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("depend on each other"));
+        }
+    }
+
+    /**
+     * Tests that independent steps run at the same time and that a step
+     * waits for the steps it depends on.
+     */
+    @Test
+    public void test3() {
+        Pipeline pipeline = Pipeline.parse(String.join("\n",
+                "steps:",
+                "  a:",
+                "    run: sleep 1",
+                "  b:",
+                "    run: sleep 1",
+                "  c:",
+                "    run: echo c",
+                "    depends_on: [a, b]"));
+
+        long start = System.currentTimeMillis();
+        List<StepResult> results = pipeline.run(".", null);
+        long millis = System.currentTimeMillis() - start;
+
+        assertEquals(3, results.size());
+        for (StepResult result : results) {
+            assertEquals("success", result.getStatus());
+        }
+        assertTrue("steps did not overlap, took " + millis + " ms", millis < 1900);
+        assertTrue(results.get(2).getStartedAt() >= results.get(0).getStartedAt() + results.get(0).getMillis());
+        assertEquals(Arrays.asList("c"), results.get(2).output());
+    }
+
+    /**
+     * Tests that a failing step cancels the step running next to it and
+     * that the steps depending on them are skipped.
+     */
+    @Test
+    public void test4() {
+        Pipeline pipeline = Pipeline.parse(String.join("\n",
+                "steps:",
+                "  slow:",
+                "    run: sleep 10",
+                "  broken:",
+                "    run: sleep 0.2; exit 3",
+                "  after:",
+                "    run: echo after",
+                "    depends_on: [slow, broken]"));
+
+        long start = System.currentTimeMillis();
+        List<StepResult> results = pipeline.run(".", null);
+        long millis = System.currentTimeMillis() - start;
+
+        assertEquals("cancelled", results.get(0).getStatus());
+        assertEquals("failure", results.get(1).getStatus());
+        assertEquals(3, results.get(1).getExitValue());
+        assertEquals("skipped", results.get(2).getStatus());
+        assertTrue("sibling was not killed, took " + millis + " ms", millis < 5000);
+    }
+
+    /**
+     * Tests that consecutive Gradle steps with only task names are run as
+     * one invocation, and that other steps are left alone.
+     */
+    @Test
+    public void test5() {
+        List<Pipeline.Step> steps = Pipeline.combineGradle(Pipeline.parse(String.join("\n",
+                "Build",
+                "./gradlew assemble",
+                "Test",
+                "./gradlew test",
+                "Test",
+                "./gradlew integrationTest --info",
+                "Test",
+                "./gradlew check")).getSteps());
+
+        assertEquals(3, steps.size());
+        assertEquals("build+test", steps.get(0).getName());
+        assertEquals(Arrays.asList("./gradlew", "assemble", "test"), steps.get(0).argv());
+        assertEquals("test2", steps.get(1).getName());
+        assertEquals(Arrays.asList("build+test"), steps.get(1).getDependsOn());
+        assertEquals(Arrays.asList("test2"), steps.get(2).getDependsOn());
+    }
+
+    /**
+     * Tests that a step running past its timeout and the steps running
+     * when the build's timeout passes are killed and say which limit
+     * they ran into, and that a build can only lower the timeouts.
+     */
+    @Test
+    public void test6() {
+        Pipeline pipeline = Pipeline.parse(String.join("\n",
+                "timeout: 2",
+                "steps:",
+                "  hung:",
+                "    run: sleep 30",
+                "    timeout: 1s",
+                "  slow:",
+                "    run: sleep 30",
+                "  after:",
+                "    run: echo after",
+                "    depends_on: [slow]"));
+        assertEquals(2000, pipeline.getTimeoutMillis());
+        assertEquals(1000, pipeline.getSteps().get(0).getTimeoutMillis());
+        assertEquals(Pipeline.STEP_TIMEOUT_MILLIS, pipeline.getSteps().get(1).getTimeoutMillis());
+        assertEquals(Pipeline.JOB_TIMEOUT_MILLIS, Pipeline.parse("timeout: 1000h\nBuild\nls").getTimeoutMillis());
+
+        boolean failFast = Pipeline.FAIL_FAST;
+        List<StepResult> results;
+        long millis;
+        try {
+            Pipeline.FAIL_FAST = false;
+            long start = System.currentTimeMillis();
+            results = pipeline.run(".", null);
+            millis = System.currentTimeMillis() - start;
+        } finally {
+            Pipeline.FAIL_FAST = failFast;
+        }
+
+        assertEquals("failure", results.get(0).getStatus());
+        assertEquals(StepResult.STEP_TIMEOUT, results.get(0).getLimit());
+        assertEquals("failure", results.get(1).getStatus());
+        assertEquals(StepResult.JOB_TIMEOUT, results.get(1).getLimit());
+        assertEquals("skipped", results.get(2).getStatus());
+        assertTrue("timeouts were not enforced, took " + millis + " ms", millis < 10000);
+        assertEquals(StepResult.STEP_TIMEOUT, new StepResult(results.get(0).toJSON()).getLimit());
+
+        try {
+            Pipeline.parse("timeout: soon\nBuild\nls");
+            fail("invalid timeout accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Line 1"));
+        }
+    }
+
+    /**
+     * Tests that a step ending in an Error rather than an Exception is
+     * recorded as failed instead of leaving the pipeline waiting for it.
+     */
+    @Test(timeout = 10000)
+    public void test7() {
+        Map<String, String> env = new HashMap<String, String>() {
+            @Override
+            public Set<Map.Entry<String, String>> entrySet() {
+                throw new OutOfMemoryError("test7");
+            }
+        };
+        List<StepResult> results = Pipeline.parse("Build\necho build").run(".", env, null);
+        assertEquals(1, results.size());
+        assertEquals(StepResult.Status.failure, results.get(0).status());
+    }
+}
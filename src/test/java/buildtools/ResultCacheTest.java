@@ -0,0 +1,101 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("resultcache").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SegmentStore.close(dir);
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    /**
+     * Tests that the key changes with the tree, the configuration and the
+     * environment, and that a build can opt out.
+     */
+    @Test
+    public void test0() {
+        String key = ResultCache.keyOf("tree", "Build\n./gradlew build\n", Collections.emptyMap());
+        assertEquals(key, ResultCache.keyOf("tree", "Build\n./gradlew build\n", Collections.emptyMap()));
+        assertNotEquals(key, ResultCache.keyOf("other", "Build\n./gradlew build\n", Collections.emptyMap()));
+        assertNotEquals(key, ResultCache.keyOf("tree", "Build\n./gradlew test\n", Collections.emptyMap()));
+        assertNotEquals(key, ResultCache.keyOf("tree", "Build\n./gradlew build\n", Collections.singletonMap("JDK", "11")));
+
+        assertTrue(ResultCache.enabledFor("Build\n./gradlew build\n"));
+        assertFalse(ResultCache.enabledFor("cache: false\nBuild\n./gradlew build\n"));
+    }
+
+    /**
+     * Tests that successes and failures are remembered across a restart,
+     * and that errors are not.
+     */
+    @Test
+    public void test1() throws IOException {
+        ResultCache cache = new ResultCache(dir, 60000, 10);
+        cache.put("a", Build.Result.success, "job-a", "build-logs/job-a.log");
+        cache.put("b", Build.Result.failure, "job-b", null);
+        cache.put("c", Build.Result.error, "job-c", null);
+        assertNull(cache.get("c"));
+
+        SegmentStore.close(dir);
+        cache = new ResultCache(dir, 60000, 10);
+        ResultCache.Entry a = cache.get("a");
+        assertEquals(Build.Result.success, a.getStatus());
+        assertEquals("job-a", a.getJobID());
+        assertEquals("build-logs/job-a.log", a.getLogFile());
+        assertEquals(Build.Result.failure, cache.get("b").getStatus());
+        assertArrayEquals(new long[]{2, 0}, cache.stats());
+    }
+
+    /**
+     * Tests that results expire after the TTL and that the oldest result
+     * is evicted when there are too many.
+     */
+    @Test
+    public void test2() throws Exception {
+        ResultCache cache = new ResultCache(dir, 200, 2);
+        cache.put("a", Build.Result.success, "job-a", null);
+        cache.put("b", Build.Result.success, "job-b", null);
+        cache.put("c", Build.Result.success, "job-c", null);
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        assertEquals(2, SegmentStore.open(dir).size());
+
+        Thread.sleep(300);
+        assertNull(cache.get("c"));
+        assertEquals(0, SegmentStore.open(dir).size());
+    }
+
+    /**
+     * Tests that failures because a step ran out of time or CPU time are
+     * not remembered, while one because of too much output is.
+     */
+    @Test
+    public void test3() {
+        ResultCache cache = new ResultCache(dir, 60000, 10);
+        cache.put("step", Build.Result.failure, "job-step", null, StepResult.STEP_TIMEOUT);
+        cache.put("job", Build.Result.failure, "job-job", null, StepResult.JOB_TIMEOUT);
+        cache.put("cpu", Build.Result.failure, "job-cpu", null, RunBash.CPU);
+        cache.put("output", Build.Result.failure, "job-output", null, RunBash.OUTPUT);
+        assertNull(cache.get("step"));
+        assertNull(cache.get("job"));
+        assertNull(cache.get("cpu"));
+        assertEquals("job-output", cache.get("output").getJobID());
+    }
+}
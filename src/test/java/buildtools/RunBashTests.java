@@ -15,6 +15,8 @@ import org.junit.rules.ExpectedException;
 import static org.junit.Assert.*;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.IOException;
 import java.io.File;
 import java.io.FileWriter;
@@ -53,4 +55,122 @@ public class RunBashTests {
         }
     }
 
-}
\ No newline at end of file
+    /*
+    * Tests that killing a job also kills processes started by its command,
+    * which would otherwise keep the output open
+    */
+    @Test
+    public void test2() throws Exception {
+        String logDirectory = JobLog.LOG_DIRECTORY;
+        File dir = java.nio.file.Files.createTempDirectory("killjob").toFile();
+        File script = new File(dir, "sleep.sh");
+        JobLog.LOG_DIRECTORY = dir.getPath();
+        try {
+            FileWriter writer = new FileWriter(script);
+            writer.write("sleep 30 &\nsleep 30\n");
+            writer.close();
+            JobLog log = JobLog.open("killed");
+            new Thread(() -> {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ignored) {}
+                RunBash.kill("killed");
+            }).start();
+
+            long start = System.currentTimeMillis();
+            ArrayList<String> cmd = RunBash.runStep("killed", "sleep", Arrays.asList("sh", "sleep.sh"), "sh sleep.sh", dir.getPath(),
+                    new HashMap<>(), log, new AtomicBoolean(), 0, new AtomicReference<>(), new AtomicReference<>());
+            log.close();
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertNotEquals("0", cmd.get(cmd.size() - 1));
+            assertTrue(RunBash.wasKilled("killed"));
+        } finally {
+            RunBash.forget("killed");
+            script.delete();
+            JobLog.fileOf("killed").delete();
+            dir.delete();
+            JobLog.LOG_DIRECTORY = logDirectory;
+        }
+    }
+
+    /*
+    * Tests that a step writing too much output, counted in bytes, and a step using too much CPU time are killed and say why
+    */
+    @Test
+    public void test3() throws Exception {
+        long maxOutput = RunBash.MAX_OUTPUT_BYTES;
+        long maxCpu = RunBash.MAX_CPU_SECONDS;
+        try {
+            RunBash.MAX_OUTPUT_BYTES = 10000;
+            AtomicReference<String> limit = new AtomicReference<>();
+            long start = System.currentTimeMillis();
+            ArrayList<String> cmd = RunBash.runStep("limits", "chatty", Arrays.asList("yes"), "yes", ".",
+                    new HashMap<>(), null, new AtomicBoolean(), 0, limit, new AtomicReference<>());
+            assertTrue(System.currentTimeMillis() - start < 10000);
+            assertEquals(RunBash.OUTPUT, limit.get());
+            assertTrue(cmd.get(cmd.size() - 2).startsWith("Killed because its output"));
+
+            // 61 chars, but 121 bytes
+            RunBash.MAX_OUTPUT_BYTES = 100;
+            limit = new AtomicReference<>();
+            RunBash.runStep("limits", "wide", Arrays.asList("sh", "-c", "for i in $(seq 60); do printf '\\303\\251'; done; echo"),
+                    "wide chars", ".", new HashMap<>(), null, new AtomicBoolean(), 0, limit, new AtomicReference<>());
+            assertEquals(RunBash.OUTPUT, limit.get());
+
+            RunBash.MAX_OUTPUT_BYTES = 0;
+            RunBash.MAX_CPU_SECONDS = 1;
+            limit = new AtomicReference<>();
+            cmd = RunBash.runStep("limits", "busy", Arrays.asList("sh", "-c", "while :; do :; done"), "busy loop", ".",
+                    new HashMap<>(), null, new AtomicBoolean(), 20000, limit, new AtomicReference<>());
+            assertEquals(RunBash.CPU, limit.get());
+            assertEquals("152", cmd.get(cmd.size() - 1));
+        } finally {
+            RunBash.MAX_OUTPUT_BYTES = maxOutput;
+            RunBash.MAX_CPU_SECONDS = maxCpu;
+        }
+    }
+
+    /*
+    * Tests that the CPU time, memory and wall time of a step are measured
+    */
+    @Test
+    public void test4() throws Exception {
+        AtomicReference<ResourceUsage> usage = new AtomicReference<>();
+        RunBash.runStep("usage", "busy", Arrays.asList("sh", "-c", "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done; sleep 0.5"),
+                "busy loop", ".", new HashMap<>(), null, new AtomicBoolean(), 0, new AtomicReference<>(), usage);
+        assertNotNull(usage.get());
+        assertTrue(usage.get().getUserMillis() + usage.get().getSystemMillis() > 0);
+        assertTrue(usage.get().getPeakRssBytes() > 0);
+        assertTrue(usage.get().getWallMillis() >= 500);
+    }
+
+    /*
+    * Tests that the CPU time a warm Gradle daemon spends on a step is
+    * counted as the step's
+    */
+    @Test
+    public void test5() throws Exception {
+        File home = java.nio.file.Files.createTempDirectory("usagehome").toFile();
+        // Stand-in daemon, works once the step has created "go"
+        Process daemon = new ProcessBuilder("sh", "-c",
+                "echo started; while [ ! -f go ]; do sleep 0.05; done; "
+                        + "i=0; while [ $i -lt 300000 ]; do i=$((i+1)); done; touch done; sleep 30", "GradleDaemon")
+                .directory(home).start();
+        try {
+            daemon.getInputStream().read();
+            File logs = new File(home, "daemon/6.1.1");
+            logs.mkdirs();
+            new File(logs, "daemon-" + ProcessTree.pid(daemon) + ".out.log").createNewFile();
+
+            Map<String, String> env = new HashMap<>();
+            env.put("GRADLE_USER_HOME", home.getAbsolutePath());
+            AtomicReference<ResourceUsage> usage = new AtomicReference<>();
+            RunBash.runStep("daemonusage", "build", Arrays.asList("sh", "-c", "touch go; while [ ! -f done ]; do sleep 0.05; done"),
+                    "gradle build", home.getPath(), env, null, new AtomicBoolean(), 60000, new AtomicReference<>(), usage);
+            assertTrue(usage.get().getUserMillis() + usage.get().getSystemMillis() >= 100);
+        } finally {
+            daemon.destroyForcibly();
+            MirrorCache.deleteRecursively(home);
+        }
+    }
+}
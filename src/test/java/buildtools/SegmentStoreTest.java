@@ -0,0 +1,331 @@
+package buildtools;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class SegmentStoreTest {
+    private File dir;
+    private long segmentMaxBytes;
+    private int compactMinSegments;
+    private double compactGarbageRatio;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("segmentstore").toFile();
+        segmentMaxBytes = SegmentStore.SEGMENT_MAX_BYTES;
+        compactMinSegments = SegmentStore.COMPACT_MIN_SEGMENTS;
+        compactGarbageRatio = SegmentStore.COMPACT_GARBAGE_RATIO;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SegmentStore.SEGMENT_MAX_BYTES = segmentMaxBytes;
+        SegmentStore.COMPACT_MIN_SEGMENTS = compactMinSegments;
+        SegmentStore.COMPACT_GARBAGE_RATIO = compactGarbageRatio;
+        SegmentStore.close(new File(dir, "db"));
+        SegmentStore.close(new File(dir, "db/logs"));
+        SegmentStore.close(new File(dir, "db/traces"));
+        deleteRecursively(dir);
+    }
+
+    private void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                deleteRecursively(c);
+            }
+        }
+        f.delete();
+    }
+
+    private Build build(String jobID, Build.Result status) {
+        List<ArrayList<String>> log = new ArrayList<>();
+        ArrayList<String> entry = new ArrayList<>();
+        entry.add("log of " + jobID);
+        log.add(entry);
+        return new Build(jobID, status, "sha-" + jobID, "owner/repo", log, "2020-02-02 19:19:00");
+    }
+
+    /**
+     * Tests that builds survive reopening the store from disk and that
+     * the latest write for a job wins.
+     */
+    @Test
+    public void test0() throws IOException {
+        Storage s = new Storage(new File(dir, "db").getPath(), new File(dir, "db.json").getPath());
+        s.post(build("a", Build.Result.pending));
+        s.post(build("b", Build.Result.pending));
+        s.post(build("a", Build.Result.success));
+
+        SegmentStore.close(new File(dir, "db"));
+        SegmentStore.close(new File(dir, "db/logs"));
+        s = new Storage(new File(dir, "db").getPath(), new File(dir, "db.json").getPath());
+
+        assertEquals(2, s.getAll().length());
+        assertEquals("success", s.get("a").getString("status"));
+        assertEquals("pending", s.get("b").getString("status"));
+        assertEquals(0, s.get("missing").length());
+    }
+
+    /**
+     * Tests that an old single-file db.json is imported once.
+     */
+    @Test
+    public void test1() throws IOException {
+        File legacy = new File(dir, "db.json");
+        JSONObject old = new JSONObject();
+        JSONObject data = new JSONObject();
+        data.put("status", "failure");
+        data.put("commitSha", "oldsha");
+        data.put("url", "owner/repo");
+        data.put("log", new ArrayList<>());
+        data.put("date", "2020-01-01 00:00:00");
+        old.put("oldjob", data);
+        try (FileWriter w = new FileWriter(legacy)) {
+            w.write(old.toString());
+        }
+
+        Storage s = new Storage(new File(dir, "db").getPath(), legacy.getPath());
+        assertEquals("oldsha", s.get("oldjob").getString("commitSha"));
+        assertFalse(legacy.exists());
+        assertTrue(new File(dir, "db.json.imported").exists());
+    }
+
+    /**
+     * Tests that compaction drops overwritten records but keeps every live one.
+     */
+    @Test
+    public void test2() throws IOException {
+        SegmentStore.SEGMENT_MAX_BYTES = 512;
+        // Disable background compaction so the explicit one does all the work
+        SegmentStore.COMPACT_GARBAGE_RATIO = 2;
+        SegmentStore.COMPACT_MIN_SEGMENTS = Integer.MAX_VALUE;
+        SegmentStore store = SegmentStore.open(new File(dir, "db"));
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 5; i++) {
+                JSONObject value = new JSONObject();
+                value.put("round", round);
+                store.put("job" + i, value);
+            }
+        }
+        long before = directorySize(new File(dir, "db"));
+        store.compact();
+        long after = directorySize(new File(dir, "db"));
+        assertTrue(after < before);
+
+        SegmentStore.close(new File(dir, "db"));
+        store = SegmentStore.open(new File(dir, "db"));
+        assertEquals(5, store.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(19, store.get("job" + i).getInt("round"));
+        }
+    }
+
+    /**
+     * Tests that a record torn by a crash mid-write is dropped on recovery.
+     */
+    @Test
+    public void test3() throws IOException {
+        SegmentStore store = SegmentStore.open(new File(dir, "db"));
+        store.put("whole", new JSONObject().put("ok", true));
+        SegmentStore.close(new File(dir, "db"));
+
+        File segment = new File(dir, "db/segment-00000001.log");
+        try (RandomAccessFile f = new RandomAccessFile(segment, "rw")) {
+            f.seek(f.length());
+            f.write("{\"id\":\"torn\",\"val".getBytes());
+        }
+
+        store = SegmentStore.open(new File(dir, "db"));
+        assertEquals(1, store.size());
+        assertTrue(store.get("whole").getBoolean("ok"));
+        store.put("after", new JSONObject().put("ok", true));
+        assertTrue(store.get("after").getBoolean("ok"));
+    }
+
+    /**
+     * Stress test: many threads posting pending and final records for
+     * their own jobs at the same time must not lose any record, neither
+     * in memory nor on disk.
+     */
+    @Test
+    public void test4() throws Exception {
+        SegmentStore.SEGMENT_MAX_BYTES = 16 * 1024;
+        final String db = new File(dir, "db").getPath();
+        final String legacy = new File(dir, "db.json").getPath();
+        final int threads = 16;
+        final int jobsPerThread = 50;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(pool.submit(() -> {
+                Storage s = new Storage(db, legacy);
+                start.await();
+                for (int i = 0; i < jobsPerThread; i++) {
+                    String jobID = "job-" + thread + "-" + i;
+                    s.post(build(jobID, Build.Result.pending));
+                    s.post(build(jobID, Build.Result.success));
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+
+        Storage s = new Storage(db, legacy);
+        JSONObject all = s.getAll();
+        assertEquals(threads * jobsPerThread, all.length());
+        for (String key : all.keySet()) {
+            assertEquals("success", all.getJSONObject(key).getString("status"));
+        }
+
+        SegmentStore.close(new File(dir, "db"));
+        SegmentStore.close(new File(dir, "db/logs"));
+        s = new Storage(db, legacy);
+        all = s.getAll();
+        assertEquals(threads * jobsPerThread, all.length());
+        for (String key : all.keySet()) {
+            assertEquals("success", all.getJSONObject(key).getString("status"));
+        }
+    }
+
+    /**
+     * Tests that logs are kept out of the build records and summaries,
+     * but are joined back for a single build and the full dump.
+     */
+    @Test
+    public void test5() throws IOException {
+        Storage s = new Storage(new File(dir, "db").getPath(), new File(dir, "db.json").getPath());
+        s.post(build("a", Build.Result.success));
+
+        JSONObject record = SegmentStore.open(new File(dir, "db")).get("a");
+        assertFalse(record.has("log"));
+        assertEquals("log of a", SegmentStore.open(new File(dir, "db/logs")).get("a")
+                .getJSONArray("log").getJSONArray(0).getString(0));
+
+        List<BuildSummary> summaries = s.getSummaries();
+        assertEquals(1, summaries.size());
+        assertEquals("success", summaries.get(0).getStatus());
+
+        assertEquals("log of a", s.getBuild("a").getLog().get(0).get(0));
+        assertEquals("log of a", s.get("a").getJSONArray("log").getJSONArray(0).getString(0));
+        assertEquals("log of a", s.getAll().getJSONObject("a").getJSONArray("log").getJSONArray(0).getString(0));
+    }
+
+    /**
+     * Tests that a removed key stays removed after reopening and
+     * compacting, and can be written again.
+     */
+    @Test
+    public void test6() throws IOException {
+        SegmentStore store = SegmentStore.open(new File(dir, "db"));
+        store.put("a", new JSONObject().put("n", 1));
+        store.put("b", new JSONObject().put("n", 2));
+        store.remove("a");
+        assertNull(store.get("a"));
+        assertEquals(1, store.size());
+        assertFalse(store.getAll().containsKey("a"));
+
+        SegmentStore.close(new File(dir, "db"));
+        store = SegmentStore.open(new File(dir, "db"));
+        assertNull(store.get("a"));
+        assertEquals(2, store.get("b").getInt("n"));
+        store.compact();
+        assertEquals(1, store.size());
+
+        store.put("a", new JSONObject().put("n", 3));
+        SegmentStore.close(new File(dir, "db"));
+        store = SegmentStore.open(new File(dir, "db"));
+        assertEquals(3, store.get("a").getInt("n"));
+        assertEquals(2, store.size());
+    }
+
+    /**
+     * Tests that a removed key stays removed when a crash during
+     * compaction leaves an older segment behind, and that the tombstone is
+     * dropped once nothing older is left.
+     */
+    @Test
+    public void test7() throws IOException {
+        SegmentStore.SEGMENT_MAX_BYTES = 1;
+        SegmentStore.COMPACT_GARBAGE_RATIO = 2;
+        SegmentStore.COMPACT_MIN_SEGMENTS = Integer.MAX_VALUE;
+        File db = new File(dir, "db");
+        SegmentStore store = SegmentStore.open(db);
+        store.put("a", new JSONObject().put("n", 1));
+        store.put("b", new JSONObject().put("n", 2));
+        store.remove("a");
+        store.put("c", new JSONObject().put("n", 3));
+        File oldest = new File(db, "segment-00000001.log");
+        byte[] left = Files.readAllBytes(oldest.toPath());
+        store.compact();
+        assertFalse(oldest.exists());
+
+        // As if the process died before the old segments were deleted
+        Files.write(oldest.toPath(), left);
+        SegmentStore.close(db);
+        store = SegmentStore.open(db);
+        assertNull(store.get("a"));
+        assertEquals(2, store.size());
+
+        // The left-over segment is still older than the tombstone
+        store.put("d", new JSONObject().put("n", 4));
+        store.compact();
+        assertFalse(oldest.exists());
+        assertTrue(contents(db).contains("deleted"));
+        store.put("e", new JSONObject().put("n", 5));
+        store.compact();
+        assertFalse(contents(db).contains("deleted"));
+
+        SegmentStore.close(db);
+        store = SegmentStore.open(db);
+        assertNull(store.get("a"));
+        assertEquals(4, store.size());
+    }
+
+    private String contents(File f) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                if (c.isFile()) {
+                    contents.append(new String(Files.readAllBytes(c.toPath())));
+                }
+            }
+        }
+        return contents.toString();
+    }
+
+    private long directorySize(File f) {
+        long size = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) {
+                size += c.length();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,212 @@
+package buildtools;
+
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StatusClientTest {
+    private HttpServer server;
+    private File tokenFile;
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> tokens = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> times = Collections.synchronizedList(new ArrayList<>());
+    private final ConcurrentLinkedQueue<Integer> codes = new ConcurrentLinkedQueue<>();
+    private String retryAfter = null;
+    private CountDownLatch release = new CountDownLatch(0);
+    private long backoffMillis;
+
+    @Before
+    public void setUp() throws IOException {
+        backoffMillis = StatusClient.BACKOFF_MILLIS;
+        tokenFile = Files.createTempFile("token", "").toFile();
+        try (FileWriter writer = new FileWriter(tokenFile)) {
+            writer.write("secret\n");
+        }
+        // Stub of the commit status API recording path and state of every
+        // post, answering with the queued codes and then 201
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/repos", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                String body = new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+                String sha = exchange.getRequestURI().getPath().replaceAll(".*/", "");
+                received.add(sha + " " + new JSONObject(body).getString("state"));
+                tokens.add(exchange.getRequestHeaders().getFirst("Authorization"));
+                times.add(System.currentTimeMillis());
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            Integer code = codes.poll();
+            if (code != null && retryAfter != null) {
+                exchange.getResponseHeaders().add("Retry-After", retryAfter);
+            }
+            byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code == null ? 201 : code, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        StatusClient.BACKOFF_MILLIS = backoffMillis;
+        server.stop(0);
+        tokenFile.delete();
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Tests that updates are sent in the background with the cached token.
+     */
+    @Test
+    public void test0() throws Exception {
+        StatusClient client = new StatusClient(url(), tokenFile, 2, 10);
+        assertTrue(client.submit(new StatusClient.Update("owner", "repo", "sha1", Build.Result.pending, "job1")));
+        assertTrue(client.submit(new StatusClient.Update("owner", "repo", "sha2", Build.Result.pending, "job2")));
+        client.close(5000);
+
+        assertEquals(2, received.size());
+        assertTrue(received.contains("sha1 pending"));
+        assertTrue(received.contains("sha2 pending"));
+        assertEquals(Collections.nCopies(2, "token secret"), tokens);
+        assertEquals(2, client.stats()[0]);
+    }
+
+    /**
+     * Tests that a queued pending status is replaced by a final status for
+     * the same commit, and that a full queue drops updates instead of
+     * blocking.
+     */
+    @Test
+    public void test1() throws Exception {
+        release = new CountDownLatch(1);
+        StatusClient client = new StatusClient(url(), tokenFile, 1, 2);
+        client.submit(new StatusClient.Update("owner", "repo", "busy", Build.Result.pending, "job0"));
+        while (received.isEmpty()) {
+            Thread.sleep(10);
+        }
+        // The only sender is stuck on the stub, so these stay queued
+        client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.pending, "job"));
+        client.submit(new StatusClient.Update("owner", "repo", "other", Build.Result.pending, "job2"));
+        client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.success, "job"));
+        assertFalse(client.submit(new StatusClient.Update("owner", "repo", "third", Build.Result.pending, "job3")));
+        release.countDown();
+        client.close(5000);
+
+        assertEquals(3, received.size());
+        assertEquals("busy pending", received.get(0));
+        assertEquals("sha success", received.get(1));
+        assertEquals("other pending", received.get(2));
+        assertEquals(1, client.stats()[1]);
+        assertEquals(1, client.stats()[2]);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests that updates failing with server errors are retried with
+     * backoff until they are accepted, and that a rejected update is not.
+     */
+    @Test
+    public void test2() throws Exception {
+        StatusClient.BACKOFF_MILLIS = 20;
+        codes.add(500);
+        codes.add(503);
+        StatusClient client = new StatusClient(url(), tokenFile, 1, 10);
+        client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.success, "job"));
+        awaitReceived(3);
+        codes.add(422);
+        client.submit(new StatusClient.Update("owner", "repo", "bad", Build.Result.success, "job2"));
+        awaitReceived(4);
+        client.close(5000);
+
+        assertEquals(Collections.nCopies(3, "sha success"), received.subList(0, 3));
+        assertEquals("bad success", received.get(3));
+        long[] stats = client.stats();
+        assertEquals(1, stats[0]);
+        assertEquals(1, stats[3]);
+        assertEquals(2, stats[4]);
+    }
+
+    /**
+     * Tests that a rate limited update is retried no earlier than the
+     * response's Retry-After asks.
+     */
+    @Test
+    public void test3() throws Exception {
+        StatusClient.BACKOFF_MILLIS = 20;
+        retryAfter = "1";
+        codes.add(403);
+        StatusClient client = new StatusClient(url(), tokenFile, 1, 10);
+        client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.success, "job"));
+        awaitReceived(2);
+        client.close(5000);
+
+        assertEquals(2, received.size());
+        assertTrue(times.get(1) - times.get(0) >= 900);
+        assertEquals(1, client.stats()[0]);
+    }
+
+    /**
+     * Tests that updates left in the outbox by a closed client are sent by
+     * the next client on the same outbox, only the newest one per commit.
+     */
+    @Test
+    public void test4() throws Exception {
+        File outbox = Files.createTempDirectory("outbox").toFile();
+        try {
+            StatusClient.BACKOFF_MILLIS = 60000;
+            codes.add(500);
+            StatusClient client = new StatusClient(url(), tokenFile, 1, 10, outbox);
+            client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.pending, "job"));
+            awaitReceived(1);
+            client.submit(new StatusClient.Update("owner", "repo", "other", Build.Result.pending, "job2"));
+            awaitReceived(2);
+            client.close(5000);
+            assertEquals(1, client.queued());
+            assertFalse(client.submit(new StatusClient.Update("owner", "repo", "sha", Build.Result.success, "job")));
+            assertEquals(2, SegmentStore.open(outbox).size());
+
+            SegmentStore.close(outbox);
+            client = new StatusClient(url(), tokenFile, 1, 10, outbox);
+            awaitReceived(3);
+            client.close(5000);
+
+            assertEquals("sha pending", received.get(0));
+            assertEquals("other pending", received.get(1));
+            assertEquals("sha success", received.get(2));
+            assertEquals(3, received.size());
+            assertEquals(0, SegmentStore.open(outbox).size());
+        } finally {
+            SegmentStore.close(outbox);
+            MirrorCache.deleteRecursively(outbox);
+        }
+    }
+}
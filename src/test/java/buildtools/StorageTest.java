@@ -2,8 +2,13 @@ import org.junit.Test;
 import org.junit.Assert;
 
 import buildtools.Build;
+import buildtools.BuildQuery;
+import buildtools.ResourceUsage;
+import buildtools.StepResult;
 import buildtools.Storage;
+import buildtools.UsageGroup;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonSubTypes.Type;
@@ -289,4 +294,59 @@ public class StorageTest {
 
     assertEquals(result.length(), 0);
   }
-}
\ No newline at end of file
+
+  /**
+   * Tests that the measured usage of stored builds is added up per
+   * repository, day and step, and that builds without usage are left out.
+   */
+  @Test
+  public void test5() throws IOException {
+    Storage s = new Storage();
+    s.clear();
+
+    s.post(withSteps("usage-a", "owner/a", "2020-02-03 10:00:00",
+        step("build", new ResourceUsage(1000, 800, 100, 300, 10, 20)),
+        step("test", new ResourceUsage(2000, 1500, 200, 500, 30, 40))));
+    s.post(withSteps("usage-b", "owner/a", "2020-02-04 10:00:00",
+        step("build", new ResourceUsage(1000, 600, 100, 400, 10, 20))));
+    s.post(withSteps("usage-c", "owner/b", "2020-02-04 11:00:00",
+        step("build", new ResourceUsage(500, 200, 0, 100, 0, 0))));
+    s.post(withSteps("usage-d", "owner/b", "2020-02-04 12:00:00",
+        new StepResult("build", StepResult.Status.success, 0, 0, 10, new ArrayList<String>())));
+
+    List<UsageGroup> byRepo = s.usage(new BuildQuery(null, null, null, null, null, null, 0), "repo");
+    assertEquals(2, byRepo.size());
+    assertEquals("owner/b", byRepo.get(0).getKey());
+    assertEquals(1, byRepo.get(0).getBuilds());
+    UsageGroup a = byRepo.get(1);
+    assertEquals(2, a.getBuilds());
+    assertEquals(3, a.getSteps());
+    assertEquals(2900, a.getUsage().getUserMillis());
+    assertEquals(500, a.getUsage().getPeakRssBytes());
+    assertEquals(80, a.getUsage().getWriteBytes());
+    assertEquals(1650, a.getCpuMillisPerBuild());
+
+    List<UsageGroup> byStep = s.usage(new BuildQuery(null, "owner/a", null, null, null, null, 0), "step");
+    assertEquals(2, byStep.size());
+    assertEquals("build", byStep.get(0).getKey());
+    assertEquals(2, byStep.get(0).getSteps());
+
+    List<UsageGroup> byDay = s.usage(new BuildQuery(null, null, null, "2020-02-04", null, null, 0), "day");
+    assertEquals(1, byDay.size());
+    assertEquals("2020-02-04", byDay.get(0).getKey());
+    assertEquals(2, byDay.get(0).getBuilds());
+
+    assertEquals(2300, new Storage().getBuild("usage-a").getUsage().getUserMillis());
+    s.clear();
+  }
+
+  private static StepResult step(String name, ResourceUsage usage) {
+    return new StepResult(name, StepResult.Status.success, 0, 0, usage.getWallMillis(), new ArrayList<String>(), null, usage);
+  }
+
+  private static Build withSteps(String jobID, String repo, String date, StepResult... steps) {
+    Build build = new Build(jobID, Build.Result.success, "sha", repo, new ArrayList<ArrayList<String>>(), date);
+    build.setSteps(Arrays.asList(steps));
+    return build;
+  }
+}
@@ -0,0 +1,130 @@
+package buildtools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+    private File dir;
+    private int maxTraces;
+    private int maxSpans;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("trace").toFile();
+        maxTraces = Trace.MAX_TRACES;
+        maxSpans = Trace.MAX_SPANS;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Trace.MAX_TRACES = maxTraces;
+        Trace.MAX_SPANS = maxSpans;
+        Trace.ENABLED = true;
+        SegmentStore.close(new File(dir, "db"));
+        SegmentStore.close(new File(dir, "db/logs"));
+        SegmentStore.close(new File(dir, "db/traces"));
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    /**
+     * Tests that spans are kept in the order they started with their
+     * attributes, that matrix cells add theirs to the trace of their build,
+     * and that spans of unknown builds are dropped.
+     */
+    @Test
+    public void test0() {
+        Trace trace = Trace.start("test0");
+        trace.record("queued", 1000, 2000);
+        try (Trace.Span span = Trace.of("test0").span("checkout")) {
+            span.set("files", 3);
+        }
+        Trace.join("test0-cell", "test0", "JDK=11");
+        Trace.Span step = Trace.of("test0-cell").span("step Build");
+        Trace.forget("test0-cell");
+        Trace.of("test0-cell").span("lost").close();
+        Trace.of("unknown").span("lost").close();
+
+        List<Trace.Span> spans = Trace.recent("test0").getSpans();
+        assertEquals(3, spans.size());
+        assertEquals("queued", spans.get(0).getName());
+        assertEquals(1000, spans.get(0).getDurationMillis());
+        assertEquals("checkout", spans.get(1).getName());
+        assertEquals("3", spans.get(1).getAttributes().get("files"));
+        assertTrue(spans.get(1).getEnd() >= spans.get(1).getStart());
+        assertEquals("step Build", spans.get(2).getName());
+        assertEquals("JDK=11", spans.get(2).getAttributes().get("cell"));
+        assertEquals(-1, spans.get(2).getEnd());
+        step.close();
+        assertTrue(spans.get(2).getEnd() > 0);
+        assertSame(trace, Trace.recent("test0"));
+        assertNull(Trace.recent("unknown"));
+    }
+
+    /**
+     * Tests that only MAX_TRACES traces and MAX_SPANS spans per trace are
+     * kept, and that nothing is kept with ENABLED false.
+     */
+    @Test
+    public void test1() {
+        Trace.MAX_TRACES = 3;
+        Trace.MAX_SPANS = 2;
+        for (int i = 0; i < 5; i++) {
+            Trace.start("test1-" + i);
+        }
+        assertNull(Trace.recent("test1-1"));
+        assertNotNull(Trace.recent("test1-2"));
+        assertNotNull(Trace.recent("test1-4"));
+
+        Trace trace = Trace.of("test1-4");
+        for (int i = 0; i < 4; i++) {
+            trace.span("span" + i).close();
+        }
+        assertEquals(2, trace.getSpans().size());
+        assertEquals(2, trace.getDropped());
+
+        Trace.ENABLED = false;
+        Trace.start("test1-off").span("lost").close();
+        assertNull(Trace.recent("test1-off"));
+    }
+
+    /**
+     * Tests that a finished trace is stored, stored again when a span ends
+     * later, and read back the same from Storage.
+     */
+    @Test
+    public void test2() throws IOException {
+        Storage storage = new Storage(new File(dir, "db").getPath(), new File(dir, "db.json").getPath());
+        Trace trace = Trace.start("test2");
+        trace.span("checkout").set("paths", "src").close();
+        Trace.Span status = trace.span("status success");
+        List<Integer> stored = new ArrayList<>();
+        trace.finish(finished -> {
+            stored.add(finished.getSpans().size());
+            try {
+                storage.postTrace(finished);
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        assertEquals(-1, storage.getTrace("test2").getSpans().get(1).getEnd());
+
+        status.set("outcome", "sent").close();
+        assertEquals(2, stored.size());
+        Trace read = storage.getTrace("test2");
+        assertEquals(2, read.getSpans().size());
+        assertEquals("checkout", read.getSpans().get(0).getName());
+        assertEquals("src", read.getSpans().get(0).getAttributes().get("paths"));
+        assertEquals("sent", read.getSpans().get(1).getAttributes().get("outcome"));
+        assertEquals(status.getEnd(), read.getSpans().get(1).getEnd());
+        assertNull(storage.getTrace("missing"));
+    }
+}
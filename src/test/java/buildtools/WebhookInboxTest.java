@@ -0,0 +1,187 @@
+package buildtools;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WebhookInboxTest {
+    private File dir;
+    private int maxDeliveries = WebhookInbox.MAX_DELIVERIES;
+    private long deliveryTTL = WebhookInbox.DELIVERY_TTL_MILLIS;
+    private final LinkedBlockingQueue<BuildRequest> builds = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("inbox").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        WebhookInbox.MAX_DELIVERIES = maxDeliveries;
+        WebhookInbox.DELIVERY_TTL_MILLIS = deliveryTTL;
+        SegmentStore.close(dir);
+        MirrorCache.deleteRecursively(dir);
+    }
+
+    private BuildScheduler.Admission record(BuildRequest request) {
+        builds.add(request);
+        return BuildScheduler.Admission.accepted;
+    }
+
+    private static String push(String ref, String after, boolean deleted) {
+        JSONObject owner = new JSONObject().put("name", "owner");
+        JSONObject repository = new JSONObject()
+                .put("name", "repo")
+                .put("full_name", "owner/repo")
+                .put("owner", owner)
+                .put("clone_url", "https://github.com/owner/repo.git")
+                .put("default_branch", "master");
+        JSONArray commits = new JSONArray();
+        if (!deleted) {
+            commits.put(new JSONObject().put("id", after));
+        }
+        return new JSONObject()
+                .put("ref", ref)
+                .put("after", after)
+                .put("deleted", deleted)
+                .put("commits", commits)
+                .put("repository", repository)
+                .toString();
+    }
+
+    private void awaitParsed(WebhookInbox inbox, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            long[] stats = inbox.stats();
+            if (stats[2] + stats[3] + stats[4] + stats[5] >= count) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Tests that a push becomes a build and that a redelivery of the same
+     * delivery is dropped.
+     */
+    @Test
+    public void test0() throws Exception {
+        WebhookInbox inbox = new WebhookInbox(dir, this::record);
+        inbox.start();
+        assertTrue(inbox.accept("d1", "push", push("refs/heads/master", "aaa111", false)));
+        assertTrue(inbox.accept("d2", "push", push("refs/heads/feature", "bbb222", false)));
+        assertTrue(inbox.accept("d1", "push", push("refs/heads/master", "aaa111", false)));
+        awaitParsed(inbox, 3);
+        inbox.close(5000);
+
+        BuildRequest first = builds.poll();
+        assertEquals("aaa111", first.getCommitSha());
+        assertEquals("refs/heads/master", first.getBranchRef());
+        assertEquals("owner/repo", first.getRepoKey());
+        assertTrue(first.isDefaultBranch());
+        BuildRequest second = builds.poll();
+        assertEquals("bbb222", second.getCommitSha());
+        assertFalse(second.isDefaultBranch());
+        assertNull(builds.poll());
+        assertEquals(1, inbox.stats()[2]);
+        // Only the handled deliveries are left
+        assertEquals(2, SegmentStore.open(dir).size());
+    }
+
+    /**
+     * Tests that pings, branch deletions, other events and invalid
+     * payloads are handled without building anything.
+     */
+    @Test
+    public void test1() throws Exception {
+        WebhookInbox inbox = new WebhookInbox(dir, this::record);
+        inbox.start();
+        JSONObject ping = new JSONObject()
+                .put("hook", new JSONObject())
+                .put("repository", new JSONObject().put("full_name", "owner/repo"));
+        inbox.accept("d1", "ping", ping.toString());
+        inbox.accept("d2", "push", push("refs/heads/gone", "0000000000000000000000000000000000000000", true));
+        inbox.accept("d3", "issues", push("refs/heads/master", "aaa111", false));
+        inbox.accept("d4", "push", "{not json");
+        awaitParsed(inbox, 4);
+        inbox.close(5000);
+
+        assertTrue(builds.isEmpty());
+        long[] stats = inbox.stats();
+        assertEquals(4, stats[0]);
+        assertEquals(3, stats[3]);
+        assertEquals(1, stats[4]);
+    }
+
+    /**
+     * Tests that a webhook not handled because the scheduler was shut
+     * down is handled by the next inbox on the same directory.
+     */
+    @Test
+    public void test2() throws Exception {
+        WebhookInbox inbox = new WebhookInbox(dir, request -> BuildScheduler.Admission.shutdown);
+        inbox.start();
+        inbox.accept("d1", "push", push("refs/heads/master", "aaa111", false));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (inbox.queued() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        inbox.close(5000);
+        assertEquals(1, SegmentStore.open(dir).size());
+
+        SegmentStore.close(dir);
+        inbox = new WebhookInbox(dir, this::record);
+        inbox.start();
+        BuildRequest request = builds.poll(5, TimeUnit.SECONDS);
+        inbox.close(5000);
+
+        assertNotNull(request);
+        assertEquals("aaa111", request.getCommitSha());
+        assertEquals(1, SegmentStore.open(dir).size());
+    }
+
+    /**
+     * Tests that a redelivery after a restart is still dropped, and that
+     * deliveries beyond MAX_DELIVERIES or older than DELIVERY_TTL_MILLIS
+     * are forgotten.
+     */
+    @Test
+    public void test3() throws Exception {
+        WebhookInbox.MAX_DELIVERIES = 2;
+        WebhookInbox inbox = new WebhookInbox(dir, this::record);
+        inbox.start();
+        inbox.accept("d1", "push", push("refs/heads/a", "aaa111", false));
+        inbox.accept("d2", "push", push("refs/heads/b", "bbb222", false));
+        inbox.accept("d3", "push", push("refs/heads/c", "ccc333", false));
+        awaitParsed(inbox, 3);
+        inbox.close(5000);
+        assertEquals(2, SegmentStore.open(dir).size());
+        builds.clear();
+
+        SegmentStore.close(dir);
+        inbox = new WebhookInbox(dir, this::record);
+        inbox.start();
+        inbox.accept("d3", "push", push("refs/heads/c", "ccc333", false));
+        inbox.accept("d1", "push", push("refs/heads/a", "aaa111", false));
+        awaitParsed(inbox, 2);
+        inbox.close(5000);
+        assertEquals(1, inbox.stats()[2]);
+        assertEquals("aaa111", builds.poll().getCommitSha());
+        assertNull(builds.poll());
+
+        WebhookInbox.DELIVERY_TTL_MILLIS = -1;
+        SegmentStore.close(dir);
+        new WebhookInbox(dir, this::record);
+        assertEquals(0, SegmentStore.open(dir).size());
+    }
+}
@@ -0,0 +1,171 @@
+package server;
+
+import buildtools.JobLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glassfish.jersey.media.sse.OutboundEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseBroadcaster;
+import javax.ws.rs.sse.SseEventSink;
+
+import static org.junit.Assert.*;
+
+public class LogStreamTest {
+    private String logDirectory;
+    private int ringLines;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        logDirectory = JobLog.LOG_DIRECTORY;
+        ringLines = JobLog.RING_LINES;
+        dir = Files.createTempDirectory("logstream").toFile();
+        JobLog.LOG_DIRECTORY = dir.getPath();
+    }
+
+    @After
+    public void tearDown() {
+        JobLog.fileOf("job").delete();
+        dir.delete();
+        JobLog.LOG_DIRECTORY = logDirectory;
+        JobLog.RING_LINES = ringLines;
+    }
+
+    /**
+     * Collects the events as they would be written on the wire.
+     */
+    private static class Sink implements SseEventSink {
+        private final StringBuilder events = new StringBuilder();
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public boolean isClosed() {
+            return closed.getCount() == 0;
+        }
+
+        @Override
+        public synchronized CompletionStage<?> send(OutboundSseEvent event) {
+            if (event.getComment() != null) {
+                events.append(": ").append(event.getComment()).append("\n");
+            }
+            if (event.getName() != null) {
+                events.append("event: ").append(event.getName()).append("\n");
+            }
+            if (event.getId() != null) {
+                events.append("id: ").append(event.getId()).append("\n");
+            }
+            if (event.getData() != null) {
+                events.append("data: ").append(event.getData()).append("\n");
+            }
+            events.append("\n");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+        String await() throws InterruptedException {
+            assertTrue(closed.await(10, TimeUnit.SECONDS));
+            synchronized (this) {
+                return events.toString();
+            }
+        }
+    }
+
+    private static final Sse sse = new Sse() {
+        @Override
+        public OutboundSseEvent.Builder newEventBuilder() {
+            return new OutboundEvent.Builder();
+        }
+
+        @Override
+        public SseBroadcaster newBroadcaster() {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private String stream(long from) throws InterruptedException {
+        Sink sink = new Sink();
+        new LogStream("job", JobLog.fileOf("job"), from, sink, sse).start();
+        return sink.await();
+    }
+
+    /**
+     * Tests that lines of a running job are pushed as they are written
+     * and that the stream ends when the job finishes.
+     */
+    @Test
+    public void test0() throws Exception {
+        JobLog log = JobLog.open("job");
+        log.println("first");
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {}
+            log.println("second");
+            log.close();
+        });
+        writer.start();
+
+        String events = stream(0);
+        writer.join();
+        assertEquals("id: 0\ndata: first\n\nid: 1\ndata: second\n\nevent: end\ndata: 2\n\n", events);
+    }
+
+    /**
+     * Tests that a finished job is streamed from its log file, resuming
+     * after the given line.
+     */
+    @Test
+    public void test1() throws Exception {
+        JobLog log = JobLog.open("job");
+        log.println("first");
+        log.println("second");
+        log.println("third");
+        log.close();
+        assertNull(JobLog.running("job"));
+
+        assertEquals("id: 2\ndata: third\n\nevent: end\ndata: 3\n\n", stream(2));
+    }
+
+    /**
+     * Tests that a client resuming at a line that has already left the
+     * ring of a running job gets the missing lines from the log file,
+     * and the rest from the ring.
+     */
+    @Test
+    public void test2() throws Exception {
+        JobLog.RING_LINES = 2;
+        JobLog log = JobLog.open("job");
+        for (int i = 0; i < 5; i++) {
+            log.println("line " + i);
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ignored) {}
+            log.println("line 5");
+            log.close();
+        });
+        writer.start();
+
+        String events = stream(1);
+        writer.join();
+        assertEquals("id: 1\ndata: line 1\n\nid: 2\ndata: line 2\n\nid: 3\ndata: line 3\n\n"
+                + "id: 4\ndata: line 4\n\nid: 5\ndata: line 5\n\nevent: end\ndata: 6\n\n", events);
+    }
+}
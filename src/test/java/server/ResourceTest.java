@@ -263,8 +263,8 @@ public class ResourceTest {
                 "}";
 
         Resource resource = new Resource();
-        Response response = resource.push(payload);
-        assertEquals(200, response.getStatus());
+        Response response = resource.push(payload, null, null);
+        assertEquals(202, response.getStatus());
     }
 
     /**
@@ -453,8 +453,8 @@ public class ResourceTest {
                 "  }\n" +
                 "}";
         Resource resource = new Resource();
-        Response response = resource.push(payload);
-        assertEquals(200, response.getStatus());
+        Response response = resource.push(payload, null, null);
+        assertEquals(202, response.getStatus());
     }
 
 }
\ No newline at end of file